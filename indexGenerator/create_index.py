@@ -5,6 +5,7 @@ import sys
 import subprocess
 import gzip
 import re
+import struct
 import tempfile
 import shutil
 from optparse import OptionParser
@@ -13,6 +14,9 @@ EXTENSION_TAR_OPTS = {".tar.bz2": "j",
                       ".tar.gz": "z",
                       ".tar.xz": "J"}
 UNKNOWN_MD5 = "unknown"
+MANIFEST_NAME = "index.seq"
+BINARY_NAME = "index.bin"
+DELTA_NAME = "index.delta.%d.gz"
 
 
 def splitValidNames(pkg):
@@ -44,6 +48,24 @@ def readField(field, index):
                     + "\" but got \"" + line + "\"")
 
 
+def readOptionalField(field, nextField, index):
+    line = index.readline()
+    if line == "":
+        raise EOFError()
+
+    line = line.strip()
+    value = None
+    if line.startswith(field):
+        value = line[len(field):].strip()
+        line = index.readline().strip()
+
+    if not line.startswith(nextField):
+        raise Exception("Expected field \"" + nextField
+                        + "\" but got \"" + line + "\"")
+
+    return value
+
+
 def readDeps(index):
     deps = []
     while True:
@@ -71,7 +93,9 @@ def readIndex(filename):
         entry["Version"] = readField("Version:", index)
         entry["File"] = readField("File:", index)
         entry["MD5"] = readField("MD5:", index)
-        readField("Deps:", index)
+        sha256 = readOptionalField("SHA256:", "Deps:", index)
+        if sha256:
+            entry["SHA256"] = sha256
         entry["Deps"] = readDeps(index)
         idx[entry["File"]] = entry
 
@@ -80,8 +104,9 @@ def readIndex(filename):
 
 def writeIndex(existingIndex, output):
     for pkg, entry in existingIndex.iteritems():
-        for f in ["Name", "Version", "File", "MD5"]:
-            output.write(f + ": " + entry[f] + "\n")
+        for f in ["Name", "Version", "File", "MD5", "SHA256"]:
+            if f in entry:
+                output.write(f + ": " + entry[f] + "\n")
 
         output.write("Deps:\n")
         for d in entry["Deps"]:
@@ -90,12 +115,272 @@ def writeIndex(existingIndex, output):
         output.write("\n")
 
 
+def writeDelta(newIndex, existingIndex, output):
+    changed = dict((f, e) for f, e in newIndex.iteritems()
+                   if existingIndex.get(f) != e)
+    writeIndex(changed, output)
+    for f in existingIndex:
+        if f not in newIndex:
+            output.write("Removed: " + f + "\n\n")
+
+
+##########
+# Deltas
+#
+# Clients holding an older copy of the index can download only what changed.
+# The manifest (index.seq) has the sequence number of the index and the base,
+# the oldest sequence the deltas can update from:
+#
+#   Sequence: 42
+#   Base: 12
+#
+# index.delta.<n>.gz updates the index from sequence n-1 to n. It has the
+# index format, its entries replacing the ones with the same File, plus
+# "Removed: <file>" entries. Deltas are written before the manifest and never
+# change, and applying one twice is harmless, so clients reading the manifest
+# and then the index or the deltas always end up with a consistent index.
+
+
+def readManifest(manifestFile):
+    manifest = {}
+    try:
+        f = open(manifestFile, "r")
+    except IOError:
+        return None
+    try:
+        for line in f:
+            if ":" in line:
+                key, value = line.split(":", 1)
+                manifest[key.strip()] = int(value.strip())
+    finally:
+        f.close()
+    if "Sequence" not in manifest or "Base" not in manifest:
+        return None
+    return manifest
+
+
+def writeAtomically(filename, write, gzipped, binary=False):
+    fd, tmpfile = tempfile.mkstemp(dir=os.path.dirname(filename),
+                                   prefix=".index")
+    os.close(fd)
+    if gzipped:
+        output = gzip.open(tmpfile, 'wb')
+    else:
+        output = open(tmpfile, binary and 'wb' or 'w')
+    try:
+        write(output)
+    except:
+        output.close()
+        os.remove(tmpfile)
+        raise
+    output.close()
+    os.rename(tmpfile, filename)
+
+
+def updateDeltas(indexFile, newIndex, existingIndex, existingValid, keep):
+    """Write the delta from the existing index, and the new index itself"""
+    folder = os.path.dirname(os.path.abspath(indexFile))
+    manifestFile = os.path.join(folder, MANIFEST_NAME)
+    manifest = readManifest(manifestFile)
+    changed = newIndex != existingIndex
+
+    if manifest is None or not existingValid:
+        # start over, clients need the whole index
+        seq = (manifest or {}).get("Sequence", 0) + 1
+        base = seq
+    elif changed:
+        seq = manifest["Sequence"] + 1
+        base = manifest["Base"]
+        writeAtomically(os.path.join(folder, DELTA_NAME % seq),
+                        lambda out: writeDelta(newIndex, existingIndex, out),
+                        True)
+    else:
+        return False
+
+    if changed or not existingValid:
+        writeAtomically(indexFile, lambda out: writeIndex(newIndex, out), True)
+
+    # drop the oldest deltas
+    base = max(base, seq - keep)
+    writeAtomically(manifestFile, lambda out: out.write(
+        "Sequence: %d\nBase: %d\n" % (seq, base)), False)
+    for f in os.listdir(folder):
+        m = re.match(r"index\.delta\.(\d+)\.gz$", f)
+        if m and int(m.group(1)) <= base:
+            os.remove(os.path.join(folder, f))
+
+    return True
+
+
+##########
+# Binary index
+#
+# Compact form of the index that clients map in memory, looking up only the
+# names they need. Big endian; offsets are from the start of the file:
+#
+#   header: "SNIB", format version (1), then count and offset of the string
+#           table, the version table and the directory (int pairs)
+#   string table: offsets of the strings, each one an unsigned short length
+#           and its UTF-8 bytes
+#   version table: offsets of the versions, each one the string id, the
+#           component count (byte) and the components: a 0 byte and a long
+#           for numeric ones, a 1 byte and a string id for the rest
+#   directory: one entry per name sorted by its UTF-8 bytes; name string id,
+#           offset and count of its artifacts
+#   artifacts: version id, file, md5 and sha256 string ids (-1 if none),
+#           requirement count, and per requirement name string id, type
+#           (byte, see REQ_TYPES), version id, repo type and repo string ids
+
+BINARY_MAGIC = b"SNIB"
+BINARY_VERSION = 1
+# in the order of the client's enum, longest prefixes are matched first
+REQ_TYPES = ["<", "<=", "=", ">=", ">", "=~"]
+REQ_TYPE_PREFIXES = ["=~", "<=", ">=", "<", "=", ">"]
+DEFAULT_REQ_TYPE = ">="
+REPO_TYPES = ["GIT", "MERCURIAL", "TARGZ", "TARBZ2", "TARXZ", "SYMLINK",
+              "ARCHIVE"]
+LONG_RE = re.compile(r"^[+-]?[0-9]+$")
+
+
+def toBytes(s):
+    if isinstance(s, bytes):
+        return s
+    return s.encode("utf-8")
+
+
+def splitNonEmpty(pattern, s):
+    # like java's split, without the trailing empty strings
+    parts = re.split(pattern, s)
+    while parts and parts[-1] == "":
+        parts.pop()
+    return parts
+
+
+def parseDep(dep):
+    parts = splitNonEmpty(r"\s", dep)
+    if len(parts) < 4 or parts[1] not in REPO_TYPES:
+        raise ValueError("Invalid dependency \"%s\"" % dep)
+    version = parts[3]
+    reqType = DEFAULT_REQ_TYPE
+    for t in REQ_TYPE_PREFIXES:
+        if version.startswith(t):
+            reqType = t
+            version = version[len(t):]
+            break
+    return (parts[0], REQ_TYPES.index(reqType), version, parts[1], parts[2])
+
+
+class BinaryWriter:
+    def __init__(self):
+        self.strings = []
+        self.stringIds = {}
+        self.versions = []
+        self.versionIds = {}
+
+    def string(self, s):
+        if s not in self.stringIds:
+            self.stringIds[s] = len(self.strings)
+            self.strings.append(toBytes(s))
+        return self.stringIds[s]
+
+    def version(self, v):
+        if v not in self.versionIds:
+            components = []
+            for c in splitNonEmpty(r"\.", v):
+                if LONG_RE.match(c) and -2 ** 63 <= int(c) < 2 ** 63:
+                    components.append(struct.pack(">bq", 0, int(c)))
+                else:
+                    components.append(struct.pack(">bi", 1, self.string(c)))
+            self.versionIds[v] = len(self.versions)
+            self.versions.append(struct.pack(">iB", self.string(v),
+                                             len(components))
+                                 + b"".join(components))
+        return self.versionIds[v]
+
+    def artifact(self, entry):
+        reqs = [parseDep(d) for d in entry["Deps"]]
+        data = [struct.pack(">iiiii", self.version(entry["Version"]),
+                            self.string(entry["File"]),
+                            self.string(entry["MD5"]),
+                            self.string(entry["SHA256"])
+                            if "SHA256" in entry else -1,
+                            len(reqs))]
+        for (name, reqType, version, repoType, repo) in reqs:
+            data.append(struct.pack(">ibiii", self.string(name), reqType,
+                                    self.version(version),
+                                    self.string(repoType), self.string(repo)))
+        return b"".join(data)
+
+
+def writeBinaryIndex(index, output):
+    writer = BinaryWriter()
+    byName = {}
+    for entry in index.values():
+        byName.setdefault(entry["Name"], []).append(entry)
+    names = sorted(byName.keys(), key=toBytes)
+
+    artifacts = []
+    for name in names:
+        artifacts.append([writer.artifact(e) for e in byName[name]])
+    nameIds = [writer.string(name) for name in names]
+
+    # lay out the tables after the header
+    offset = 4 * 8
+    stringsOffset = offset
+    offset += 4 * len(writer.strings)
+    stringOffsets = []
+    for s in writer.strings:
+        stringOffsets.append(offset)
+        offset += 2 + len(s)
+    versionsOffset = offset
+    offset += 4 * len(writer.versions)
+    versionOffsets = []
+    for v in writer.versions:
+        versionOffsets.append(offset)
+        offset += len(v)
+    directoryOffset = offset
+    offset += 12 * len(names)
+
+    output.write(BINARY_MAGIC)
+    output.write(struct.pack(">iiiiiii", BINARY_VERSION,
+                             len(writer.strings), stringsOffset,
+                             len(writer.versions), versionsOffset,
+                             len(names), directoryOffset))
+    for o in stringOffsets:
+        output.write(struct.pack(">i", o))
+    for s in writer.strings:
+        output.write(struct.pack(">H", len(s)))
+        output.write(s)
+    for o in versionOffsets:
+        output.write(struct.pack(">i", o))
+    for v in writer.versions:
+        output.write(v)
+    for i in range(len(names)):
+        output.write(struct.pack(">iii", nameIds[i], offset,
+                                 len(artifacts[i])))
+        offset += sum(len(a) for a in artifacts[i])
+    for entries in artifacts:
+        for a in entries:
+            output.write(a)
+
+
+def updateBinaryIndex(binFile, index):
+    try:
+        writeAtomically(binFile, lambda out: writeBinaryIndex(index, out),
+                        False, True)
+    except ValueError, e:
+        # clients use the text index
+        sys.stderr.write("Can't write the binary index: %s\n" % e)
+        if os.path.exists(binFile):
+            os.remove(binFile)
+
+
 ##########
 # MD5s
 
 
-def getMd5s(filelist):
-    pargs = ["md5sum"]
+def getMd5s(filelist, command="md5sum"):
+    pargs = [command]
     pargs.extend(filelist)
     hasher = subprocess.Popen(pargs, stdout=subprocess.PIPE,
                               stderr=subprocess.PIPE)
@@ -109,6 +394,10 @@ def getMd5s(filelist):
     return hashes
 
 
+def getSha256s(filelist):
+    return getMd5s(filelist, "sha256sum")
+
+
 def getFakeMd5s(filelist):
     hashes = {}
     for f in filelist:
@@ -141,7 +430,7 @@ def getDeps(f, ext):
     return deps
 
 
-def processPkg(pkg, relFilename, name, extension, hashes, get_deps):
+def processPkg(pkg, relFilename, name, extension, hashes, sha256s, get_deps):
     split = name.rsplit("-", 1)
     name = split[0]
     version = split[1]
@@ -160,11 +449,13 @@ def processPkg(pkg, relFilename, name, extension, hashes, get_deps):
              "File": relFilename,
              "MD5": hashes.get(pkg, UNKNOWN_MD5),
              "Deps": deps}
+    if pkg in sha256s:
+        entry["SHA256"] = sha256s[pkg]
 
     return entry
 
 
-def makeNewIndex(pkgs, repo, existingIndex, md5s, get_deps):
+def makeNewIndex(pkgs, repo, existingIndex, md5s, sha256s, get_deps):
     newIndex = {}
     for (pkg, name, extension) in pkgs:
         # make relative path
@@ -174,12 +465,13 @@ def makeNewIndex(pkgs, repo, existingIndex, md5s, get_deps):
         changed = True
         if relFilename in existingIndex:
             entry = existingIndex[relFilename]
-            if entry["MD5"] == md5s.get(pkg, UNKNOWN_MD5):
+            if entry["MD5"] == md5s.get(pkg, UNKNOWN_MD5) and \
+                    entry.get("SHA256") == sha256s.get(pkg):
                 changed = False
 
         if changed:
             entry = processPkg(pkg, relFilename, name, extension,
-                               md5s, options.get_deps)
+                               md5s, sha256s, options.get_deps)
 
         newIndex[relFilename] = entry
 
@@ -198,6 +490,18 @@ if __name__ == "__main__":
                       default=True, help="don't get deps for artifacts")
     parser.add_option("-m", "--no-md5", action="store_false", dest="get_md5",
                       default=True, help="don't calc md5 for artifacts")
+    parser.add_option("-s", "--sha256", action="store_true", dest="get_sha256",
+                      default=False, help="add the sha256 of the artifacts,"
+                      " clients verify it besides the md5")
+    parser.add_option("-d", "--deltas", action="store", type="int",
+                      dest="deltas", default=0,
+                      help="also write the changes to the index as deltas,"
+                      " keeping the last DELTAS of them, so clients only"
+                      " download what changed (needs gz_index_filename)")
+    parser.add_option("-b", "--binary", action="store_true", dest="binary",
+                      default=False, help="also write the index in binary"
+                      " form (index.bin), clients map it and look up only the"
+                      " names they need (needs gz_index_filename)")
     parser.add_option("-r", "--recursive", action="store_true",
                       dest="recursive", default=False,
                       help="descend into any directories recursively")
@@ -237,22 +541,34 @@ if __name__ == "__main__":
         md5s = getMd5s(filelist)
     else:
         md5s = getFakeMd5s(filelist)
+    sha256s = {}
+    if options.get_sha256:
+        sha256s = getSha256s([pkg for (pkg, name, extension) in pkgs])
 
     # read existing index
     existingIndex = {}
+    existingValid = False
     if indexFile:
         try:
             existingIndex = readIndex(indexFile)
+            existingValid = True
         except:
             sys.stderr.write("Existing index broken - regenerating...\n")
     else:
         output = sys.stdout
 
     # create new index
-    newIndex = makeNewIndex(pkgs, repo, existingIndex, md5s, options.get_deps)
+    newIndex = makeNewIndex(pkgs, repo, existingIndex, md5s, sha256s,
+                            options.get_deps)
 
+    if indexFile and options.deltas > 0:
+        if updateDeltas(indexFile, newIndex, existingIndex, existingValid,
+                        options.deltas):
+            sys.stderr.write("Updated index\n")
+        else:
+            sys.stderr.write("Index up to date\n")
     # if the index has changed, write it
-    if newIndex != existingIndex:
+    elif newIndex != existingIndex:
         if indexFile:
             fd, tmpfile = tempfile.mkstemp(dir=os.path.dirname(indexFile),
                                            prefix=".index")
@@ -268,3 +584,9 @@ if __name__ == "__main__":
             sys.stderr.write("Updated index\n")
     else:
         sys.stderr.write("Index up to date\n")
+
+    if indexFile and options.binary:
+        binFile = os.path.join(os.path.dirname(os.path.abspath(indexFile)),
+                               BINARY_NAME)
+        if newIndex != existingIndex or not os.path.exists(binFile):
+            updateBinaryIndex(binFile, newIndex)
@@ -0,0 +1,123 @@
+#!/usr/bin/env python
+
+# Serves a repo directory over HTTP for supernanny clients. Index requests
+# carrying If-None-Match and "Prefer: wait=N" are held until the index
+# changes (or N seconds pass), so clients waiting for a publication to be
+# indexed get it as soon as maintain-index.sh rewrites the index instead of
+# polling.
+
+import os
+import sys
+import time
+import email.utils
+from optparse import OptionParser
+
+try:
+    from BaseHTTPServer import HTTPServer
+    from SimpleHTTPServer import SimpleHTTPRequestHandler
+    from SocketServer import ThreadingMixIn
+except ImportError:
+    from http.server import HTTPServer, SimpleHTTPRequestHandler
+    from socketserver import ThreadingMixIn
+
+INDEX_FILES = ("/index.gz", "/index", "/index.seq", "/index.bin")
+MAX_WAIT = 60
+CHECK_INTERVAL = 0.1
+
+
+class ThreadingHTTPServer(ThreadingMixIn, HTTPServer):
+    daemon_threads = True
+
+
+def getEtag(path):
+    try:
+        st = os.stat(path)
+    except OSError:
+        return None
+    return '"%x-%x"' % (int(st.st_mtime * 1000), st.st_size)
+
+
+def getWait(prefer):
+    for pref in (prefer or "").split(","):
+        pref = pref.strip()
+        if pref.startswith("wait="):
+            try:
+                return min(int(pref[len("wait="):]), MAX_WAIT)
+            except ValueError:
+                return 0
+    return 0
+
+
+class IndexRequestHandler(SimpleHTTPRequestHandler):
+    def do_GET(self):
+        if self.path in INDEX_FILES:
+            self.sendIndex(True)
+        else:
+            SimpleHTTPRequestHandler.do_GET(self)
+
+    def do_HEAD(self):
+        if self.path in INDEX_FILES:
+            self.sendIndex(False)
+        else:
+            SimpleHTTPRequestHandler.do_HEAD(self)
+
+    def sendIndex(self, withBody):
+        path = self.translate_path(self.path)
+        ifNoneMatch = self.headers.get("If-None-Match")
+        etag = getEtag(path)
+        if etag is not None and etag == ifNoneMatch:
+            # hold the request until the index changes
+            deadline = time.time() + getWait(self.headers.get("Prefer"))
+            while etag == ifNoneMatch and time.time() < deadline:
+                time.sleep(CHECK_INTERVAL)
+                etag = getEtag(path)
+        if etag is None:
+            self.send_error(404, "File not found")
+            return
+        if etag == ifNoneMatch:
+            self.send_response(304)
+            self.send_header("ETag", etag)
+            self.end_headers()
+            return
+
+        # the index is replaced by a rename, an open file never changes
+        try:
+            f = open(path, "rb")
+        except IOError:
+            self.send_error(404, "File not found")
+            return
+        try:
+            st = os.fstat(f.fileno())
+            self.send_response(200)
+            self.send_header("Content-Type", "application/octet-stream")
+            self.send_header("Content-Length", str(st.st_size))
+            self.send_header("Last-Modified",
+                             email.utils.formatdate(st.st_mtime, usegmt=True))
+            self.send_header("ETag", '"%x-%x"' % (int(st.st_mtime * 1000),
+                                                  st.st_size))
+            self.end_headers()
+            if withBody:
+                self.copyfile(f, self.wfile)
+        finally:
+            f.close()
+
+
+def main():
+    parser = OptionParser(usage="Usage: %prog [-p port] repo_directory")
+    parser.add_option("-p", "--port", dest="port", type="int", default=8080,
+                      help="port to listen on (8080)")
+    (options, args) = parser.parse_args()
+    if len(args) != 1:
+        parser.error("repo_directory is required")
+
+    os.chdir(args[0])
+    server = ThreadingHTTPServer(("", options.port), IndexRequestHandler)
+    sys.stderr.write("Serving %s on port %d\n" % (args[0], options.port))
+    try:
+        server.serve_forever()
+    except KeyboardInterrupt:
+        pass
+
+
+if __name__ == "__main__":
+    main()
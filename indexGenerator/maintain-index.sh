@@ -1,11 +1,12 @@
 #!/bin/bash
 
-USAGE="Usage: $0 [-n] [-b] repo_directory\n Use -b to batch all events (adds a delay of at least 0.1s before processing the index)\n Use -n to not parse dependencies"
+USAGE="Usage: $0 [-n] [-b] [-d deltas] [-i] [-s port] repo_directory\n Use -b to batch all events (adds a delay of at least 0.1s before processing the index)\n Use -n to not parse dependencies\n Use -d to also write the index changes as deltas, keeping the given number of them\n Use -i to also write the binary index (index.bin)\n Use -s to also serve the repo on the given port, answering clients waiting for index updates as soon as it changes"
 
 DIR=`dirname $0`
 DO_BATCH=0
 CREATE_OPTS=""
 INDEX_NAME="index.gz"
+SERVE_PORT=""
 
 while (( "$#" )); do
     case "$1" in
@@ -18,7 +19,18 @@ while (( "$#" )); do
             ;;
         -n)
             echo "Won't parse dependencies of artifacts"
-            CREATE_OPTS="-n -m"
+            CREATE_OPTS="$CREATE_OPTS -n -m"
+            ;;
+        -d)
+            shift
+            CREATE_OPTS="$CREATE_OPTS -d $1"
+            ;;
+        -i)
+            CREATE_OPTS="$CREATE_OPTS -b"
+            ;;
+        -s)
+            shift
+            SERVE_PORT=$1
             ;;
         *)
             ARTIFACTS=$1
@@ -31,8 +43,11 @@ trap 'kill $(jobs -p)' EXIT
 
 #create index before watching on events
 python $DIR/create_index.py $CREATE_OPTS $ARTIFACTS $ARTIFACTS/$INDEX_NAME;
+if [ -n "$SERVE_PORT" ]; then
+    python $DIR/index_server.py -p $SERVE_PORT $ARTIFACTS &
+fi
 inotifywait -m -e close_write,moved_from,moved_to,delete $ARTIFACTS \
-| grep -v $INDEX_NAME --line-buffered \
+| grep -v -e $INDEX_NAME -e index.seq -e index.delta. -e index.bin --line-buffered \
 | while read line; do
     # read all other incoming events with a short timeout to process
     # all of them together
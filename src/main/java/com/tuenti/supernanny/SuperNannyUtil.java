@@ -16,8 +16,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.text.MessageFormat;
@@ -26,6 +29,7 @@ import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
+import java.util.StringTokenizer;
 import java.util.Vector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -47,6 +51,8 @@ import com.tuenti.supernanny.repo.artifacts.Requirement;
  */
 @Singleton
 public class SuperNannyUtil implements Util {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
 	@Inject
 	RepoProvider repoProvider;
 
@@ -65,6 +71,14 @@ public class SuperNannyUtil implements Util {
 		return file;
 	}
 
+	@Override
+	public File getCacheFolder() {
+		if (p.noCache) {
+			return null;
+		}
+		return new File(System.getProperty("user.home"), CACHE_FOLDER);
+	}
+
 	@Override
 	public File getDepsFolder() {
 		return new File(root, DEP_FOLDER);
@@ -72,7 +86,12 @@ public class SuperNannyUtil implements Util {
 
 	@Override
 	public void deleteDir(File dir) throws IOException {
-		execProcess("rm -rf " + dir.getAbsolutePath());
+		Process p = Runtime.getRuntime().exec(new String[] { "rm", "-rf", dir.getAbsolutePath() });
+		try {
+			p.waitFor();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
 	}
 
 	@Override
@@ -96,11 +115,15 @@ public class SuperNannyUtil implements Util {
 					.getRepo(RepositoryType.valueOf(depParts[1]), depParts[2]);
 			String name = depParts[0];
 			String folder = ".";
-			if (depParts.length == 4) {
+			if (depParts.length >= 4) {
 				folder = depParts[3];
 			}
+			Integer compressThreads = null;
+			if (depParts.length >= 5) {
+				compressThreads = Integer.valueOf(depParts[4]);
+			}
 
-			exports.add(new Export(repo, name, new File(folder)));
+			exports.add(new Export(repo, name, new File(folder), compressThreads));
 		}
 
 		return exports;
@@ -223,58 +246,167 @@ public class SuperNannyUtil implements Util {
 	 */
 	@Override
 	public String readProcess(String command) throws SuperNannyError, IOException {
-		l.info("Executing: " + command);
+		return runProcess(split(command), null);
+	}
+
+	@Override
+	public String readProcess(String[] command) throws SuperNannyError, IOException {
+		return runProcess(command, null);
+	}
+
+	@Override
+	public InputStream openProcess(final String command) throws SuperNannyError, IOException {
+		final Process p = exec(split(command));
+		p.getOutputStream().close();
+
+		// a full stderr pipe would block the process
+		final ProcessReader err = read(p.getErrorStream());
+
+		return new FilterInputStream(p.getInputStream()) {
+			private boolean closed = false;
+
+			@Override
+			public void close() throws IOException {
+				if (closed) {
+					return;
+				}
+				closed = true;
+				super.close();
+
+				int exitVal = waitFor(p, err);
+				if (exitVal != 0) {
+					throw new SuperNannyError(MessageFormat.format(
+							"Error executing: {0}; output: \n{1}; exit code {2}", command,
+							err.getOutput(), exitVal));
+				}
+			}
+		};
+	}
+
+	@Override
+	public String pipeProcess(String command, InputStream in) throws SuperNannyError,
+			IOException {
+		return runProcess(split(command), in);
+	}
+
+	/**
+	 * Run a process until it exits, feeding it the input if there is any.
+	 * 
+	 * @return the process' stdout
+	 */
+	private String runProcess(String[] command, InputStream in) throws SuperNannyError,
+			IOException {
+		Process p = exec(command);
+
+		// read stdout and stderr while the process runs, a full pipe would
+		// block it forever
+		ProcessReader out = read(p.getInputStream());
+		ProcessReader err = read(p.getErrorStream());
+		if (in != null) {
+			feed(p, in);
+		}
+
+		int exitVal = waitFor(p, out, err);
+		String stdOut = out.getOutput();
+		l.fine(stdOut);
+		if (exitVal != 0) {
+			throw new SuperNannyError(MessageFormat.format(
+					"Error executing: {0}; output: {1}; exit code {2}", join(command), "\n"
+							+ err.getOutput() + stdOut, exitVal));
+		}
+
+		return stdOut;
+	}
 
-		Process p = null;
+	private Process exec(String[] command) throws SuperNannyError {
+		l.info("Executing: " + join(command));
 		try {
-			p = Runtime.getRuntime().exec(command);
+			return Runtime.getRuntime().exec(command);
 		} catch (IOException e) {
 			l.log(Level.SEVERE,
 					"Failed running the required program. Please install and check it and try again!",
 					e);
 			throw new SuperNannyError(e);
 		}
+	}
 
-		int exitVal = -1;
-		try {
-			exitVal = p.waitFor();
-		} catch (InterruptedException e) {
-			throw new SuperNannyError(e);
+	/**
+	 * Split a command line in its arguments like Runtime.exec does.
+	 */
+	private String[] split(String command) {
+		StringTokenizer tokens = new StringTokenizer(command);
+		String[] args = new String[tokens.countTokens()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = tokens.nextToken();
 		}
+		return args;
+	}
 
-		BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-
-		StringBuffer sb = new StringBuffer("");
+	private String join(String[] command) {
+		StringBuilder line = new StringBuilder();
+		for (String arg : command) {
+			if (line.length() > 0) {
+				line.append(' ');
+			}
+			line.append(arg);
+		}
+		return line.toString();
+	}
 
-		// start an async read from stdout
-		ProcessReader r = new ProcessReader(input);
-		r.run();
+	/**
+	 * Start reading one of the outputs of a process.
+	 */
+	private ProcessReader read(InputStream stream) {
+		ProcessReader reader = new ProcessReader(new BufferedReader(new InputStreamReader(stream)));
+		reader.start();
+		return reader;
+	}
 
-		// read from stderr
-		input = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-		sb.append("\n");
-		String line = null;
-		while ((line = input.readLine()) != null) {
-			sb.append(line + "\n");
+	/**
+	 * Write the input to the stdin of the process and close it.
+	 */
+	private void feed(Process p, InputStream in) throws IOException {
+		OutputStream stdin = p.getOutputStream();
+		try {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				try {
+					stdin.write(buffer, 0, read);
+				} catch (IOException e) {
+					// the process stopped reading, its exit code tells if
+					// it's an error
+					l.fine("Process closed its input: " + e.getMessage());
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// failed reading the input, don't leave the process behind
+			p.destroy();
+			throw e;
+		} finally {
+			try {
+				stdin.close();
+			} catch (IOException e) {
+			}
 		}
+	}
 
-		// wait for the stdout thread to finish and append the result
+	/**
+	 * Wait for the process to exit and for its outputs to be read.
+	 * 
+	 * @return the exit code
+	 */
+	private int waitFor(Process p, ProcessReader... readers) throws SuperNannyError {
 		try {
-			r.join();
+			int exitVal = p.waitFor();
+			for (ProcessReader reader : readers) {
+				reader.join();
+			}
+			return exitVal;
 		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-		String stdOut = r.getOutput();
-		sb.append(stdOut);
-
-		l.fine(stdOut);
-		if (exitVal != 0) {
-			throw new SuperNannyError(MessageFormat.format(
-					"Error executing: {0}; output: {1}; exit code {2}", command, sb.toString(),
-					exitVal));
+			throw new SuperNannyError(e);
 		}
-
-		return stdOut;
 	}
 
 	@Override
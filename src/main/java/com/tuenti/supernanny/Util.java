@@ -10,6 +10,7 @@ package com.tuenti.supernanny;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 import com.tuenti.supernanny.dependencies.RepositoryType;
@@ -35,6 +36,7 @@ public interface Util {
 	public static final String VERSION = "Supernanny 2.2";
 	public static final String PROPERTIES_FILE = "supernanny.properties";
 	public static final String LIB_DELIMITER = "_";
+	public static final String CACHE_FOLDER = ".supernanny" + File.separator + "cache";
 
 	/**
 	 * Parse the exports file.
@@ -65,6 +67,14 @@ public interface Util {
 	 */
 	public abstract File getTmpFile();
 
+	/**
+	 * Local cache shared by all projects of the current user (indexes,
+	 * artifacts).
+	 * 
+	 * @return cache folder or null if caching is disabled.
+	 */
+	public abstract File getCacheFolder();
+
 	/**
 	 * All dependencies will be fetched under this folder.
 	 * 
@@ -172,6 +182,47 @@ public interface Util {
 	 */
 	public String readProcess(String command) throws SuperNannyError, IOException;
 
+	/**
+	 * Execute a process given by its arguments, which unlike the command of
+	 * readProcess(String) aren't split on spaces.
+	 * 
+	 * @param command
+	 *            Program and its arguments
+	 * @return Command's stdout
+	 * @throws SuperNannyError
+	 * @throws IOException
+	 */
+	public String readProcess(String[] command) throws SuperNannyError, IOException;
+
+	/**
+	 * Execute a process feeding the given stream to its stdin. The process
+	 * output is drained while the input is written, so the stream can be
+	 * consumed as it arrives (e.g. from the network).
+	 * 
+	 * @param command
+	 *            Command to run
+	 * @param in
+	 *            Data for the process' stdin, read until the process stops
+	 *            accepting it or the stream ends
+	 * @return Command's stdout
+	 * @throws SuperNannyError
+	 *             if the process fails
+	 * @throws IOException
+	 */
+	public String pipeProcess(String command, InputStream in) throws SuperNannyError, IOException;
+
+	/**
+	 * Execute a process, streaming its stdout.
+	 * 
+	 * @param command
+	 *            Command to run
+	 * @return Command's stdout, closing it waits for the process and throws
+	 *         SuperNannyError if it failed
+	 * @throws SuperNannyError
+	 * @throws IOException
+	 */
+	public InputStream openProcess(String command) throws SuperNannyError, IOException;
+
 	/**
 	 * Read a file returning all lines read
 	 * 
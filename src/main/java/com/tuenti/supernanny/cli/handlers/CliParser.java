@@ -68,6 +68,66 @@ public class CliParser {
 
 	@Argument(prefix = "--", description = "Artifact verification timeout")
 	public String verifyTimeout = "30";
+
+	@Argument(prefix = "--", description = "Don't use the local cache of indexes and artifacts (~/.supernanny/cache)")
+	public boolean noCache = false;
+
+	@Argument(prefix = "--", description = "Maximum size in MB of the local artifact cache")
+	public String cacheSize = "2048";
+
+	@Argument(prefix = "--", description = "Use the external tar command instead of the built-in one to extract and create archives")
+	public boolean externalTar = false;
+
+	@Argument(prefix = "--", description = "Threads to compress published archives with, 0 for one per core")
+	public String compressThreads = "1";
+
+	@Argument(prefix = "--", description = "Start fetching dependencies while they are still being resolved")
+	public boolean pipeline = false;
+
+	@Argument(prefix = "--", description = "Dependency resolver: eager, concurrent (eager with parallel repo lookups) or backtracking (tries older versions on conflicts)")
+	public String resolver = "eager";
+
+	@Argument(prefix = "--", description = "Fetch the dependencies in the lock file (.DEP.lock) without resolving them")
+	public boolean locked = false;
+
+	@Argument(prefix = "--", description = "Git backend: cli (runs the git command) or jgit (in the JVM, reusing clones and remote refs)")
+	public String gitBackend = "cli";
+
+	@Argument(prefix = "--", description = "Fetch only the required commits of git dependencies, without history (cli git backend)")
+	public boolean shallow = false;
+
+	@Argument(prefix = "--", description = "Fetch git dependencies without the file contents, which are downloaded on checkout (cli git backend)")
+	public boolean blobless = false;
+
+	@Argument(prefix = "--", description = "Extract git dependencies with git archive instead of checking them out and copying them")
+	public boolean dvcsArchive = false;
+
+	@Argument(prefix = "--", description = "Mercurial backend: cli (a hg process per command) or cmdserver (a hg command server per clone)")
+	public String hgBackend = "cli";
+
+	@Argument(prefix = "--", description = "Update fetched dependencies in place, writing only the files that changed (not with --externalTar, --linkStore or --pipeline)")
+	public boolean incremental = false;
+
+	@Argument(prefix = "--", description = "Extract each archive once in the local cache and hard link (or reflink) its files to the deps folder")
+	public boolean linkStore = false;
+
+	@Argument(prefix = "--", description = "Maximum size in MB of the extracted archives of --linkStore")
+	public String linkStoreSize = "4096";
+
+	@Argument(prefix = "--", description = "Seconds without data before an archive download is retried, resuming where it stopped")
+	public String httpTimeout = "60";
+
+	@Argument(prefix = "--", description = "Connections to download each large archive with, in ranged segments")
+	public String downloadSegments = "1";
+
+	@Argument(prefix = "--", description = "Connections kept open to each repo host, shared by index loads, downloads and uploads")
+	public String maxConnectionsPerHost = "8";
+
+	@Argument(prefix = "--", description = "Upload published archives while they are compressed, without a temporary file")
+	public boolean streamPublish = false;
+
+	@Argument(prefix = "--", description = "Map the binary index of archive repos that have one, instead of parsing the text index")
+	public boolean binaryIndex = false;
 	
 	public void setPretend(boolean b) {
 		this.pretend = b;
@@ -109,6 +109,12 @@ public class CliPublishHandler implements CliHandler {
 					throw new SuperNannyError("User aborted");
 				}
 				new DepPublisher().resolve(exports, version.getVersionString(), p);
+				for (Export d : exports) {
+					if (d.getCompressionStats() != null) {
+						System.out.println(MessageFormat.format("  Compressed {0}: {1}",
+								d.getName(), d.getCompressionStats()));
+					}
+				}
 			}
 		} catch (IOException e) {
 			l.warning(e.getMessage());
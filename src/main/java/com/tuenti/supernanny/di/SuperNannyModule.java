@@ -9,18 +9,28 @@ package com.tuenti.supernanny.di;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import com.google.inject.AbstractModule;
+import com.google.inject.Provider;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.Singleton;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
+import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.SuperNannyUtil;
 import com.tuenti.supernanny.Util;
 import com.tuenti.supernanny.cli.handlers.CliParser;
+import com.tuenti.supernanny.http.HttpTransport;
 import com.tuenti.supernanny.repo.RepoProvider;
+import com.tuenti.supernanny.resolution.BacktrackingResolver;
+import com.tuenti.supernanny.resolution.ConcurrentResolver;
 import com.tuenti.supernanny.resolution.EagerResolver;
 import com.tuenti.supernanny.resolution.Resolver;
+import com.tuenti.supernanny.strategy.DvcsStrategy;
+import com.tuenti.supernanny.strategy.GitStrategy;
+import com.tuenti.supernanny.strategy.JGitStrategy;
 
 /**
  * Guice module for SuperNanny.
@@ -37,11 +47,69 @@ public class SuperNannyModule extends AbstractModule {
 		bind(Integer.class).annotatedWith(Names.named("poolSize")).toInstance(
 				Util.EXECUTOR_POOL_SIZE);
 		bind(RepoProvider.class).in(Scopes.SINGLETON);
-		bind(Resolver.class).to(EagerResolver.class);
+		bind(HttpTransport.class).in(Scopes.SINGLETON);
 	}
 
+	/**
+	 * Pool of the one who asks for it, which shuts it down: the fetcher's
+	 * runs repo init and fetching.
+	 */
 	@Provides
 	ExecutorService provideExecutor(@Named("poolSize") Integer poolSize) {
 		return Executors.newFixedThreadPool(poolSize);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Pool of the concurrent resolver's lookups, apart from the fetcher's so
+	 * they don't queue behind downloads in pipelined mode. The resolver waits
+	 * for them from its own thread, never from one of the pool. Its threads
+	 * are daemons, so it needs no shutdown.
+	 */
+	@Provides
+	@Singleton
+	@Named("resolver")
+	ExecutorService provideResolverExecutor(@Named("poolSize") Integer poolSize) {
+		return Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+			private final ThreadFactory threads = Executors.defaultThreadFactory();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = threads.newThread(r);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Resolver selected with --resolver, must be requested after the command
+	 * line is parsed.
+	 */
+	@Provides
+	Resolver provideResolver(CliParser p, Provider<EagerResolver> eager,
+			Provider<ConcurrentResolver> concurrent, Provider<BacktrackingResolver> backtracking) {
+		if (p.resolver == null || p.resolver.equals("eager")) {
+			return eager.get();
+		} else if (p.resolver.equals("concurrent")) {
+			return concurrent.get();
+		} else if (p.resolver.equals("backtracking")) {
+			return backtracking.get();
+		}
+		throw new SuperNannyError("Unknown resolver " + p.resolver);
+	}
+
+	/**
+	 * Git backend selected with --gitBackend.
+	 */
+	@Provides
+	@Named("git")
+	DvcsStrategy provideGitStrategy(CliParser p, Provider<GitStrategy> cli,
+			Provider<JGitStrategy> jgit) {
+		if (p.gitBackend == null || p.gitBackend.equals("cli")) {
+			return cli.get();
+		} else if (p.gitBackend.equals("jgit")) {
+			return jgit.get();
+		}
+		throw new SuperNannyError("Unknown git backend " + p.gitBackend);
+	}
+}
@@ -0,0 +1,430 @@
+package com.tuenti.supernanny.http;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLConnection;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+
+/**
+ * Downloads with timeouts, retries and resume, through the shared
+ * HttpTransport.
+ *
+ * Failed connections and server errors (5xx, 429) are retried with exponential
+ * backoff. A connection dropped halfway resumes with a Range request from the
+ * last byte read (If-Range makes sure the file didn't change in the
+ * meantime), so callers reading the stream don't notice. Servers ignoring the
+ * range send the whole file again and the bytes already read are skipped.
+ * Large files can be downloaded in parallel ranged segments.
+ */
+@Singleton
+public class HttpDownloader {
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+	private static final int ATTEMPTS = 5;
+	private static final long MAX_BACKOFF = 16 * 1000;
+	/** Smallest segment worth its own connection. */
+	private static final long MIN_SEGMENT_SIZE = 8 * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The server answered with an error status.
+	 */
+	public static class HttpStatusException extends IOException {
+		private static final long serialVersionUID = 5873419244390627251L;
+		private final int status;
+
+		public HttpStatusException(String url, int status) {
+			super("HTTP " + status + " for " + url);
+			this.status = status;
+		}
+
+		public int getStatus() {
+			return status;
+		}
+
+		/**
+		 * @return if trying again may succeed
+		 */
+		public boolean isTransient() {
+			return status >= 500 || status == 429;
+		}
+	}
+
+	/**
+	 * The download failed after all the attempts, what was read until then is
+	 * valid and can be resumed.
+	 */
+	public static class InterruptedDownloadException extends IOException {
+		private static final long serialVersionUID = -3526920134851163093L;
+
+		public InterruptedDownloadException(String url, long position, IOException cause) {
+			super("Download of " + url + " interrupted at byte " + position + ": "
+					+ cause.getMessage());
+			initCause(cause);
+		}
+	}
+
+	@Inject
+	private Logger l;
+	@Inject
+	private CliParser p;
+	@Inject
+	private HttpTransport transport;
+	private long backoff = 500;
+
+	/**
+	 * Initial wait before retrying, doubled on every attempt.
+	 */
+	public void setBackoff(long millis) {
+		this.backoff = millis;
+	}
+
+	/**
+	 * Open the file at the given url.
+	 *
+	 * @param offset
+	 *            first byte to read, e.g. the length of a partial download
+	 * @return stream that reconnects and resumes when the connection drops
+	 */
+	public InputStream open(String url, long offset) throws IOException {
+		ResumingInputStream in = new ResumingInputStream(url, offset, -1);
+		in.connect();
+		return in;
+	}
+
+	/**
+	 * Download the file at the given url, resuming it if the file has the
+	 * beginning of it. If a download in segments fails the file is emptied,
+	 * its holes can't be resumed.
+	 *
+	 * @param segments
+	 *            maximum number of connections to download it in parallel
+	 */
+	public void download(String url, File file, int segments) throws IOException {
+		long offset = file.isFile() ? file.length() : 0;
+		if (segments > 1 && offset == 0) {
+			long length = getRangeableLength(url);
+			if (length >= 2 * MIN_SEGMENT_SIZE) {
+				downloadSegments(url, file, length,
+						(int) Math.min(segments, length / MIN_SEGMENT_SIZE));
+				return;
+			}
+		}
+
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			ResumingInputStream in = new ResumingInputStream(url, offset, -1);
+			try {
+				in.connect();
+				out.setLength(offset);
+				out.seek(offset);
+				copy(in, out);
+			} finally {
+				in.close();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void downloadSegments(final String url, final File file, long length, int segments)
+			throws IOException {
+		l.fine(MessageFormat.format("Downloading {0} in {1} segments", url, segments));
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(length);
+		} finally {
+			out.close();
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(segments);
+		boolean complete = false;
+		try {
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			long segmentSize = (length + segments - 1) / segments;
+			for (long start = 0; start < length; start += segmentSize) {
+				final long first = start;
+				final long last = Math.min(start + segmentSize, length) - 1;
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws IOException {
+						RandomAccessFile out = new RandomAccessFile(file, "rw");
+						try {
+							ResumingInputStream in = new ResumingInputStream(url, first, last);
+							try {
+								in.connect();
+								out.seek(first);
+								copy(in, out);
+							} finally {
+								in.close();
+							}
+						} finally {
+							out.close();
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+			complete = true;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted downloading " + url);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			if (!complete) {
+				out = new RandomAccessFile(file, "rw");
+				try {
+					out.setLength(0);
+				} finally {
+					out.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return length of the file, or -1 if unknown or the server doesn't
+	 *         accept ranges
+	 */
+	private long getRangeableLength(String url) throws IOException {
+		if (!HttpTransport.handles(url)) {
+			return -1;
+		}
+		for (int attempt = 1;; attempt++) {
+			try {
+				HttpResponse response = transport.execute(new HttpHead(url), HttpStatus.SC_OK);
+				Header ranges = response.getFirstHeader("Accept-Ranges");
+				Header length = response.getFirstHeader("Content-Length");
+				if (ranges == null || !"bytes".equals(ranges.getValue()) || length == null) {
+					return -1;
+				}
+				return Long.parseLong(length.getValue());
+			} catch (IOException e) {
+				retryOrThrow(url, attempt, e);
+			}
+		}
+	}
+
+	private void copy(InputStream in, RandomAccessFile out) throws IOException {
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+	}
+
+	/**
+	 * Wait before the next attempt, or throw the error if it can't be retried.
+	 */
+	private void retryOrThrow(String url, int attempt, IOException e) throws IOException {
+		if (attempt >= ATTEMPTS || e instanceof FileNotFoundException
+				|| (e instanceof HttpStatusException && !((HttpStatusException) e).isTransient())) {
+			throw e;
+		}
+		long wait = Math.min(backoff << (attempt - 1), MAX_BACKOFF);
+		l.warning(MessageFormat.format("Downloading {0} failed ({1}), retrying in {2} ms", url,
+				e.getMessage(), wait));
+		try {
+			Thread.sleep(wait);
+		} catch (InterruptedException ie) {
+			throw e;
+		}
+	}
+
+	/**
+	 * Stream of a byte range of the file that reconnects where it left off
+	 * when the connection fails.
+	 */
+	private class ResumingInputStream extends InputStream {
+		private final String url;
+		private final long last;
+		/** Last byte the server said it would send, -1 if unknown. */
+		private long expectedLast = -1;
+		private long position;
+		private InputStream in;
+		/** Request of the stream, null if it isn't http. */
+		private HttpGet request;
+		private boolean eof;
+		/** ETag or Last-Modified of the first response. */
+		private String validator;
+		private int attempt = 1;
+
+		/**
+		 * @param last
+		 *            last byte to read, -1 to read until the end
+		 */
+		public ResumingInputStream(String url, long first, long last) {
+			this.url = url;
+			this.position = first;
+			this.last = last;
+		}
+
+		/**
+		 * Connect, retrying until it succeeds or the attempts run out.
+		 */
+		public void connect() throws IOException {
+			while (true) {
+				try {
+					in = openRange();
+					return;
+				} catch (IOException e) {
+					retryOrThrow(url, attempt++, e);
+				}
+			}
+		}
+
+		private InputStream openRange() throws IOException {
+			if (!HttpTransport.handles(url)) {
+				URLConnection c = new URL(url).openConnection();
+				c.setConnectTimeout(CONNECT_TIMEOUT);
+				c.setReadTimeout(Integer.parseInt(p.httpTimeout) * 1000);
+				InputStream in = c.getInputStream();
+				skip(in, position);
+				return in;
+			}
+
+			HttpGet get = new HttpGet(url);
+			boolean ranged = position > 0 || last >= 0;
+			if (ranged) {
+				get.setHeader("Range", "bytes=" + position + "-"
+						+ (last >= 0 ? String.valueOf(last) : ""));
+				if (validator != null) {
+					get.setHeader("If-Range", validator);
+				}
+			}
+			HttpResponse response = transport.execute(get, HttpStatus.SC_OK,
+					HttpStatus.SC_PARTIAL_CONTENT);
+			int status = response.getStatusLine().getStatusCode();
+			request = get;
+
+			Header newValidator = response.getFirstHeader("ETag");
+			if (newValidator == null) {
+				newValidator = response.getFirstHeader("Last-Modified");
+			}
+			if (validator != null && status == HttpStatus.SC_OK
+					&& (newValidator == null || !validator.equals(newValidator.getValue()))) {
+				get.abort();
+				throw new IOException(url + " changed while it was being downloaded");
+			}
+			validator = newValidator == null ? null : newValidator.getValue();
+			long length = response.getEntity().getContentLength();
+			if (length >= 0) {
+				long start = status == HttpStatus.SC_PARTIAL_CONTENT ? position : 0;
+				expectedLast = start + length - 1;
+			}
+
+			InputStream in = response.getEntity().getContent();
+			if (ranged && status == HttpStatus.SC_OK) {
+				// the whole file, skip what was already read
+				skip(in, position);
+			}
+			return in;
+		}
+
+		private void skip(InputStream in, long n) throws IOException {
+			while (n > 0) {
+				long skipped = in.skip(n);
+				if (skipped <= 0) {
+					if (in.read() == -1) {
+						throw new IOException("Unexpected end of " + url);
+					}
+					skipped = 1;
+				}
+				n -= skipped;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int read = read(b, 0, 1);
+			return read == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (last >= 0) {
+				if (position > last) {
+					return -1;
+				}
+				len = (int) Math.min(len, last - position + 1);
+			}
+			while (true) {
+				try {
+					if (in == null) {
+						in = openRange();
+					}
+					int read = in.read(b, off, len);
+					if (read == -1 && position <= Math.max(last, expectedLast)) {
+						throw new IOException("Unexpected end of " + url + " at byte " + position);
+					}
+					if (read == -1) {
+						eof = true;
+					} else if (read > 0) {
+						position += read;
+						// made progress, the next failure gets all the attempts
+						attempt = 1;
+					}
+					return read;
+				} catch (IOException e) {
+					closeQuietly();
+					try {
+						retryOrThrow(url, attempt++, e);
+					} catch (IOException gaveUp) {
+						throw new InterruptedDownloadException(url, position, gaveUp);
+					}
+					l.fine("Resuming " + url + " from byte " + position);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (request != null && !eof && (expectedLast < 0 || position <= expectedLast)) {
+				// closing the stream would read the rest to reuse the
+				// connection, drop it instead
+				request.abort();
+			} else if (in != null) {
+				in.close();
+			}
+			in = null;
+			request = null;
+		}
+
+		private void closeQuietly() {
+			try {
+				close();
+			} catch (IOException e) {
+				in = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.tuenti.supernanny.http;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+import com.tuenti.supernanny.http.HttpDownloader.HttpStatusException;
+
+/**
+ * HTTP client shared by index loads, archive downloads and WebDAV uploads.
+ *
+ * Connections are pooled and kept alive, so fetching many artifacts from a
+ * repo host sets up a few connections instead of one per request. The pool
+ * limits the connections per host (--maxConnectionsPerHost), requests over
+ * the limit wait for a free one. The client is created on first use, once the
+ * command line has been parsed. WebDAV uploads get a client of their own on
+ * the same pool, so their credentials are never sent to other hosts.
+ */
+public class HttpTransport {
+	private static final int CONNECT_TIMEOUT = 10 * 1000;
+
+	@Inject
+	private CliParser p;
+	private DefaultHttpClient client;
+
+	/**
+	 * @return if the url can go through this transport (http or https)
+	 */
+	public static boolean handles(String url) {
+		return url.startsWith("http://") || url.startsWith("https://");
+	}
+
+	public synchronized AbstractHttpClient getClient() {
+		if (client == null) {
+			int maxPerHost = Integer.parseInt(p.maxConnectionsPerHost);
+			ThreadSafeClientConnManager manager = new ThreadSafeClientConnManager();
+			manager.setDefaultMaxPerRoute(maxPerHost);
+			manager.setMaxTotal(4 * maxPerHost);
+			client = new DefaultHttpClient(manager);
+			setTimeouts(client.getParams());
+		}
+		return client;
+	}
+
+	/**
+	 * Create a client sharing only the connection pool of the shared one.
+	 * Credentials and redirect handling set on it (e.g. by Sardine) don't
+	 * apply to the requests of the shared client.
+	 */
+	public AbstractHttpClient createClient() {
+		DefaultHttpClient own = new DefaultHttpClient(getClient().getConnectionManager());
+		setTimeouts(own.getParams());
+		return own;
+	}
+
+	private void setTimeouts(HttpParams params) {
+		HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+		HttpConnectionParams.setSoTimeout(params, Integer.parseInt(p.httpTimeout) * 1000);
+	}
+
+	/**
+	 * Execute the request, checking its status.
+	 *
+	 * @param expected
+	 *            accepted statuses, anything else releases the connection and
+	 *            throws
+	 * @throws FileNotFoundException
+	 *             on 404
+	 * @throws HttpStatusException
+	 *             on other unexpected statuses
+	 */
+	public HttpResponse execute(HttpUriRequest request, int... expected) throws IOException {
+		HttpResponse response = getClient().execute(request);
+		int status = response.getStatusLine().getStatusCode();
+		for (int e : expected) {
+			if (status == e) {
+				return response;
+			}
+		}
+		EntityUtils.consume(response.getEntity());
+		if (status == 404) {
+			throw new FileNotFoundException(request.getURI().toString());
+		}
+		throw new HttpStatusException(request.getURI().toString(), status);
+	}
+
+	/**
+	 * Close the pooled connections.
+	 */
+	public synchronized void shutdown() {
+		if (client != null) {
+			client.getConnectionManager().shutdown();
+			client = null;
+		}
+	}
+}
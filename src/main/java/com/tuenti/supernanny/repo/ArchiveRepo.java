@@ -1,11 +1,7 @@
 package com.tuenti.supernanny.repo;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.URL;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -16,20 +12,24 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 import com.google.inject.Inject;
-import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
 import com.tuenti.supernanny.dependencies.RepositoryType;
 import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
 import com.tuenti.supernanny.repo.artifacts.Artifact;
 import com.tuenti.supernanny.repo.artifacts.Export;
 import com.tuenti.supernanny.repo.artifacts.ReqType;
 import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.repo.cache.ExtractedStore;
 import com.tuenti.supernanny.repo.exceptions.ResolutionException;
-import com.tuenti.supernanny.repo.index.IndexReader;
+import com.tuenti.supernanny.repo.index.BinaryIndex;
+import com.tuenti.supernanny.repo.index.IndexCache;
+import com.tuenti.supernanny.repo.index.IndexCache.CachedIndex;
+import com.tuenti.supernanny.repo.index.IndexWatcher;
 import com.tuenti.supernanny.strategy.ArchiveStrategy;
+import com.tuenti.supernanny.strategy.CompressionStats;
 import com.tuenti.supernanny.util.Version;
 
 public class ArchiveRepo implements Repository {
@@ -37,7 +37,19 @@ public class ArchiveRepo implements Repository {
 	private Util util;
 	@Inject
 	private ArchiveStrategy strategy;
+	@Inject
+	private IndexCache indexCache;
+	@Inject
+	private ExtractedStore extractedStore;
+	@Inject
+	private IndexWatcher indexWatcher;
+	@Inject
+	private CliParser p;
 	private String uri;
+	/** Last index loaded, to revalidate it. */
+	private CachedIndex index;
+	/** Mapped binary index, its artifacts are decoded by name when needed. */
+	private BinaryIndex binaryIndex;
 	private Map<String, List<Artifact>> repository = new HashMap<String, List<Artifact>>();
 	private boolean verifyPublishedArtifact;
 	private int verificationTimeout;
@@ -48,7 +60,7 @@ public class ArchiveRepo implements Repository {
 		verificationTimeout = verifyTimeout;
 	}
 
-	public void setArtifacts(Collection<ArchiveArtifact> artifacts) {
+	public synchronized void setArtifacts(Collection<ArchiveArtifact> artifacts) {
 		repository.clear();
 		for (Artifact artifact : artifacts) {
 			artifact.setOrigin(this);
@@ -68,32 +80,55 @@ public class ArchiveRepo implements Repository {
 		}
 	}
 
+	/**
+	 * @return artifacts with the given name, latest first; null if there are
+	 *         none
+	 */
+	private synchronized List<Artifact> getArtifacts(String name) {
+		List<Artifact> artifacts = repository.get(name);
+		if (artifacts == null && binaryIndex != null) {
+			List<ArchiveArtifact> found;
+			try {
+				found = binaryIndex.getArtifacts(name);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			if (found.isEmpty()) {
+				return null;
+			}
+			artifacts = new ArrayList<Artifact>(found);
+			for (Artifact artifact : artifacts) {
+				artifact.setOrigin(this);
+			}
+			Collections.sort(artifacts, Artifact.getArtifactComparator(true));
+			repository.put(name, artifacts);
+		}
+		return artifacts;
+	}
+
 	@Override
 	public List<Artifact> getPossibleArtifactsFor(Requirement req) throws ResolutionException {
-		return repository.get(req.getName());
+		return getArtifacts(req.getName());
 	}
 
 	@Override
 	public void init() {
 		try {
-			URL urlgz = new URL(uri + "index.gz");
-			URL urlplain = new URL(uri + "index");
-			BufferedReader in;
-			try {
-				in = new BufferedReader(new InputStreamReader(new GZIPInputStream(
-						urlgz.openStream())));
-			} catch (FileNotFoundException e) {
-				try {
-					in = new BufferedReader(new InputStreamReader(urlplain.openStream()));
-				} catch (FileNotFoundException f) {
-					throw new SuperNannyError("Can't find index file " + urlgz + " or " + urlplain);
+			if (p.binaryIndex) {
+				BinaryIndex binary = indexCache.getBinaryIndex(uri);
+				if (binary != null) {
+					synchronized (this) {
+						binaryIndex = binary;
+						repository.clear();
+					}
+					return;
 				}
 			}
-
-			IndexReader indexReader = new IndexReader(in);
-			setArtifacts(indexReader.parse());
-			in.close();
-		} catch (Exception e) {
+			// a reload only needs what changed since the last one
+			index = index == null ? indexCache.getIndex(uri) : indexCache.refresh(uri, index, 0);
+			binaryIndex = null;
+			setArtifacts(index.artifacts);
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
@@ -102,7 +137,7 @@ public class ArchiveRepo implements Repository {
 	public String fetch(Artifact artifact, File destination) throws IOException {
 		if (artifact instanceof ArchiveArtifact) {
 			ArchiveArtifact arch = (ArchiveArtifact) artifact;
-			strategy.fetch(uri, arch.getFilename(), destination);
+			strategy.fetch(uri, arch.getFilename(), arch.getMd5(), arch.getSha256(), destination);
 			String resolvedVersion = artifact.getVersion().toString();
 			util.stampProject(artifact.getName(), destination, artifact.getOriginUrl(),
 					resolvedVersion, getRepoType());
@@ -114,7 +149,7 @@ public class ArchiveRepo implements Repository {
 
 	@Override
 	public Version getLatestVersion(String name) {
-		List<Artifact> artifacts = repository.get(name);
+		List<Artifact> artifacts = getArtifacts(name);
 		if (artifacts != null) {
 			return artifacts.get(0).getVersion();
 		}
@@ -122,7 +157,7 @@ public class ArchiveRepo implements Repository {
 	}
 
 	public boolean existsVersion(String name, String version) {
-		List<Artifact> artifacts = repository.get(name);
+		List<Artifact> artifacts = getArtifacts(name);
 		if (artifacts != null) {
 			for (Artifact artifact : artifacts) {
 				if (version.equals(artifact.getVersion().getVersionString())) {
@@ -134,23 +169,15 @@ public class ArchiveRepo implements Repository {
 		return false;
 	}
 
-	private boolean verifyArtifact(String name, String version) {
-		int maxWait = verificationTimeout * 1000;
-		int interval = 500;
-		long maxTime = System.currentTimeMillis() + maxWait;
-		while (System.currentTimeMillis() < maxTime) {
-			// reread the index
-			init();
-			if (existsVersion(name, version)) {
-				return true;
-			}
-
-			try {
-				Thread.sleep(interval);
-			} catch (InterruptedException e) {
-			}
+	private boolean verifyArtifact(String name, String version, String fileName, String md5) {
+		CachedIndex updated = indexWatcher.waitFor(uri, index, fileName, name, version, md5,
+				verificationTimeout * 1000L);
+		if (updated == null) {
+			return false;
 		}
-		return false;
+		index = updated;
+		setArtifacts(index.artifacts);
+		return true;
 	}
 
 	public void publish(Export export, String version, String prefix, String suffix,
@@ -158,14 +185,20 @@ public class ArchiveRepo implements Repository {
 		String nameToPublish = prefix + export.getName();
 
 		// publish the dependency
-		strategy.publish(export.getFolder(), uri, nameToPublish, version, suffix, extension);
+		export.setCompressionStats(strategy.publish(export.getFolder(), uri, nameToPublish,
+				version, suffix, extension, export.getCompressThreads()));
 
 		boolean published = true;
 
 		if (verifyPublishedArtifact) {
 			System.out.println("Artifact published - waiting for index to update... (max "
 					+ verificationTimeout + " seconds)");
-			published = verifyArtifact(nameToPublish, version);
+			// archives made by the external tar come without stats, any
+			// archive of the version is taken as the published one then
+			CompressionStats stats = export.getCompressionStats();
+			published = verifyArtifact(nameToPublish, version,
+					ArchiveStrategy.getArchiveName(nameToPublish, version, suffix, extension),
+					stats != null ? stats.getMd5() : null);
 		}
 
 		if (published) {
@@ -186,7 +219,17 @@ public class ArchiveRepo implements Repository {
 
 		Requirement dummyReq = new Requirement(a.getName(), ReqType.EQ, a.getVersion().toString(),
 				a.getOrigin().getRepoType(), a.getOriginUrl());
-		return dummyReq.equals(existing);
+		if (!dummyReq.equals(existing)) {
+			return false;
+		}
+
+		// a linked dependency must be linked to the archive in the index, it
+		// may have been published again with the same version
+		String linkedMd5 = extractedStore.getLinkedMd5(dep);
+		if (linkedMd5 != null && a instanceof ArchiveArtifact) {
+			return linkedMd5.equalsIgnoreCase(((ArchiveArtifact) a).getMd5());
+		}
+		return true;
 	}
 
 	@Override
@@ -8,6 +8,11 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.codec.binary.Hex;
 
@@ -26,6 +31,7 @@ import com.tuenti.supernanny.util.Version;
 import com.tuenti.supernanny.util.Versions;
 
 public abstract class DVCSRepo implements Repository {
+	private static final String TAGS_PREFIX = "refs/tags/";
 
 	public class ResolveInfo {
 		public Version reqVersion;
@@ -45,6 +51,8 @@ public abstract class DVCSRepo implements Repository {
 	protected String uri;
 	protected DependencyParser dparser;
 	protected String tmpname;
+	/** Changesets by ref name, listed once on init, null if not supported. */
+	private volatile NavigableMap<String, String> refs;
 
 	protected abstract DvcsStrategy getStrategy();
 
@@ -84,7 +92,7 @@ public abstract class DVCSRepo implements Repository {
 	private ResolveInfo getMatchingVersionFor(Requirement req) throws IOException, ResolutionException {
 		ResolveInfo ri = new ResolveInfo(req.getVersion(), req.getVersion().toString(), null);
 		if (!ri.refname.contains("*")) {
-			ri.changeset = getStrategy().resolveReference(uri, ri.refname);
+			ri.changeset = resolveReference(ri.refname);
 			if (ri.changeset != null){
 				return ri;
 			}
@@ -97,7 +105,7 @@ public abstract class DVCSRepo implements Repository {
 				ri.reqVersion = version;
 				ri.refname = req.getName() + Util.ARCHIVE_VERSION_DELIMITER
 						+ ri.reqVersion.toString();
-				ri.changeset = getStrategy().resolveReference(uri, ri.refname);
+				ri.changeset = resolveReference(ri.refname);
 				return ri;
 			}
 		}
@@ -110,9 +118,6 @@ public abstract class DVCSRepo implements Repository {
 		try {
 			ResolveInfo ri = getMatchingVersionFor(req);
 
-			// update repo
-			getStrategy().checkoutVersion(uri, req.getName(), ri.refname, ri.changeset,
-					getRepoFolder());
 			// extract the subpath if there is any
 			File sourceFolder = getRepoFolder();
 			String subDir = null;
@@ -122,8 +127,19 @@ public abstract class DVCSRepo implements Repository {
 			}
 			File depFile = new File(sourceFolder, ".DEP");
 			List<Requirement> reqs = new LinkedList<Requirement>();
-			if (depFile.exists()) {
-				reqs = dparser.parseDepsFile(depFile);
+
+			// nothing else can check out the clone until its .DEP is read
+			Lock lock = getStrategy().getLock(getRepoFolder()).writeLock();
+			lock.lock();
+			try {
+				// update repo
+				getStrategy().checkoutVersion(uri, req.getName(), ri.refname, ri.changeset,
+						getRepoFolder());
+				if (depFile.exists()) {
+					reqs = dparser.parseDepsFile(depFile);
+				}
+			} finally {
+				lock.unlock();
 			}
 			List<Artifact> artifacts = new ArrayList<Artifact>();
 			artifacts.add(new DVCSArtifact(req.getName(), ri.reqVersion, this, ri.changeset, subDir, reqs));
@@ -133,8 +149,39 @@ public abstract class DVCSRepo implements Repository {
 		}
 	}
 
+	/**
+	 * Resolve a ref (tag or branch) like ls-remote does.
+	 */
+	private String resolveReference(String ref) throws IOException {
+		NavigableMap<String, String> refs = this.refs;
+		if (refs == null) {
+			return getStrategy().resolveReference(uri, ref);
+		}
+		for (String name : new String[] { ref, "refs/heads/" + ref, TAGS_PREFIX + ref }) {
+			String changeset = refs.get(name);
+			if (changeset != null) {
+				return changeset;
+			}
+		}
+		return null;
+	}
+
 	@Override
 	public void init() {
+		initClone();
+
+		// every requirement on this repo is resolved from a single listing
+		try {
+			Map<String, String> listed = getStrategy().listRefs(uri);
+			if (listed != null) {
+				refs = new TreeMap<String, String>(listed);
+			}
+		} catch (Exception e) {
+			// refs will be looked up one by one, failing on resolution
+		}
+	}
+
+	private synchronized void initClone() {
 		File clone = getRepoFolder();
 		if (clone.exists())
 			return;
@@ -148,6 +195,8 @@ public abstract class DVCSRepo implements Repository {
 
 	@Override
 	public String fetch(Artifact artifact, File destination) throws IOException {
+		// locked artifacts are fetched without initializing the repo first
+		initClone();
 		File clone = getRepoFolder();
 		String version = artifact.getVersion().toString();
 		String subDir = null;
@@ -172,7 +221,7 @@ public abstract class DVCSRepo implements Repository {
 	}
 
 	private Version[] getAvailableVersions(String name) throws SuperNannyError, IOException {
-		String[] tags = getStrategy().getTags(uri, name);
+		String[] tags = getTags(name);
 		Version[] vs = new Version[tags.length];
 		int prefixLength = (name + Util.ARCHIVE_VERSION_DELIMITER).length();
 		for (int i = 0; i < tags.length; i++) {
@@ -181,6 +230,29 @@ public abstract class DVCSRepo implements Repository {
 		return vs;
 	}
 
+	/**
+	 * Tags of the versions of name (name-1.0), from the ref table if there is
+	 * one.
+	 */
+	private String[] getTags(String name) throws IOException {
+		NavigableMap<String, String> refs = this.refs;
+		if (refs == null) {
+			return getStrategy().getTags(uri, name);
+		}
+		String prefix = TAGS_PREFIX + name + Util.ARCHIVE_VERSION_DELIMITER;
+		Set<String> names = refs.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet();
+		if (names.isEmpty()) {
+			throw new SuperNannyError(MessageFormat.format(
+					"Tags not found in {0}. Make sure the correct tag exists.", uri));
+		}
+		String[] tags = new String[names.size()];
+		int i = 0;
+		for (String ref : names) {
+			tags[i++] = ref.substring(TAGS_PREFIX.length());
+		}
+		return tags;
+	}
+
 	@Override
 	public boolean isUpdated(Artifact a, File dep) throws IOException {
 		Requirement existing = util.getProjectInfo(dep);
@@ -1,10 +1,10 @@
 package com.tuenti.supernanny.repo;
 
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 import com.tuenti.supernanny.dependencies.RepositoryType;
 import com.tuenti.supernanny.dependencies.DependencyParser;
 import com.tuenti.supernanny.strategy.DvcsStrategy;
-import com.tuenti.supernanny.strategy.GitStrategy;
 
 public class GitRepo extends DVCSRepo implements Repository {
 	@Override
@@ -13,7 +13,8 @@ public class GitRepo extends DVCSRepo implements Repository {
 	}
 
 	@Inject
-	private GitStrategy strategy;
+	@Named("git")
+	private DvcsStrategy strategy;
 
 	public GitRepo(String uri, DependencyParser dparser) {
 		super(uri, dparser);
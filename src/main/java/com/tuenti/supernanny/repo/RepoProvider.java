@@ -1,10 +1,13 @@
 package com.tuenti.supernanny.repo;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -22,6 +25,7 @@ public class RepoProvider {
 	@Inject
 	CliParser p;
 	private Map<String, Repository> repositories = new HashMap<String, Repository>();
+	private Set<Repository> initialized = Collections.synchronizedSet(new HashSet<Repository>());
 	private DependencyParser dependencyParser;
 
 	/**
@@ -35,18 +39,21 @@ public class RepoProvider {
 	 * @throws Exception 
 	 */
 	public void warmUp(List<Requirement> reqs, ExecutorService service) throws Exception {
-		for (Requirement req : reqs) {
-			if (!hasRepoForTypeAndUri(req.getRepoType(), req.getRepo())) {
-				makeRepo(req.getRepoType(), req.getRepo(), false);
+		List<Repository> repos;
+		synchronized (this) {
+			for (Requirement req : reqs) {
+				if (!hasRepoForTypeAndUri(req.getRepoType(), req.getRepo())) {
+					makeRepo(req.getRepoType(), req.getRepo());
+				}
 			}
+			repos = new ArrayList<Repository>(repositories.values());
 		}
 		List<Future<Void>> futures = new LinkedList<Future<Void>>();
-		for (Entry<String, Repository> entry : repositories.entrySet()) {
-			final Repository repo = entry.getValue();
+		for (final Repository repo : repos) {
 			futures.add(service.submit(new Callable<Void>() {
 				@Override
 				public Void call() throws Exception {
-					repo.init();
+					initRepo(repo);
 					return null;
 				}
 			}));
@@ -56,11 +63,10 @@ public class RepoProvider {
 		}
 	}
 
+	/**
+	 * Create and register a repo, without initializing it.
+	 */
 	private Repository makeRepo(RepositoryType type, String uri) {
-		return makeRepo(type, uri, true);
-	}
-
-	private Repository makeRepo(RepositoryType type, String uri, boolean initRepo) {
 		int timeout = Integer.parseInt(p.verifyTimeout);
 		boolean verifyArtifact = !p.skipVerifyArtifacts;
 		
@@ -87,13 +93,23 @@ public class RepoProvider {
 			throw new RuntimeException("Unsupported repo type " + type);
 		}
 		injector.injectMembers(repo);
-		this.addRepo(type, uri, repo);
-		if (initRepo) {
-			repo.init();
-		}
+		repositories.put(getKeyFor(type, uri), repo);
 		return repo;
 	}
 
+	/**
+	 * Initialize the repo once. Repos of different types and uris are
+	 * initialized in parallel, threads asking for the same repo wait for it.
+	 */
+	private void initRepo(Repository repo) {
+		synchronized (repo) {
+			if (!initialized.contains(repo)) {
+				repo.init();
+				initialized.add(repo);
+			}
+		}
+	}
+
 	/**
 	 * Strig tags at the end of uris for associating uris with repos
 	 * 
@@ -109,9 +125,21 @@ public class RepoProvider {
 		return uri;
 	}
 
-	public void addRepo(RepositoryType type, String uri, Repository repo) {
+	/**
+	 * Register an already initialized repo.
+	 */
+	public synchronized void addRepo(RepositoryType type, String uri, Repository repo) {
 		uri = normalizeUri(uri);
 		repositories.put(getKeyFor(type, uri), repo);
+		initialized.add(repo);
+	}
+
+	/**
+	 * Key that identifies the repo for the given type and uri, requirements
+	 * with the same key are served by the same repo.
+	 */
+	public String getRepoKey(RepositoryType type, String uri) {
+		return getKeyFor(type, normalizeUri(uri));
 	}
 
 	/**
@@ -162,7 +190,30 @@ public class RepoProvider {
 		return repositories.get(getKeyFor(type, uri)) != null;
 	}
 
+	/**
+	 * Get the initialized repo for the given type and uri. It's safe to call
+	 * from several threads.
+	 */
 	public Repository getRepo(RepositoryType type, String uri) {
+		Repository repo;
+		Repository wrapped;
+		synchronized (this) {
+			if (!hasRepoForTypeAndUri(type, uri)) {
+				makeRepo(type, uri);
+			}
+			repo = repositories.get(getRepoKey(type, uri));
+			wrapped = getRepoForTypeAndUri(type, uri);
+		}
+		initRepo(repo);
+		return wrapped;
+	}
+
+	/**
+	 * Get the repo for the given type and uri without initializing it, for
+	 * artifacts that are already resolved (e.g. from a lock file). Fetching
+	 * doesn't need the repo to be initialized.
+	 */
+	public synchronized Repository getUninitializedRepo(RepositoryType type, String uri) {
 		if (!hasRepoForTypeAndUri(type, uri)) {
 			makeRepo(type, uri);
 		}
@@ -11,14 +11,31 @@ import com.tuenti.supernanny.util.Version;
 public class ArchiveArtifact extends Artifact {
 	protected String filename;
 	protected String md5;
+	protected String sha256;
 
 	public ArchiveArtifact(String name, Version version, String filename, String md5, Repository origin, List<Requirement> requirements) {
+		this(name, version, filename, md5, null, origin, requirements);
+	}
+
+	public ArchiveArtifact(String name, Version version, String filename, String md5, String sha256, Repository origin, List<Requirement> requirements) {
 		super(name, version, origin, requirements);
 		this.filename = filename;
 		this.md5 = md5;
+		this.sha256 = sha256;
 	}
 
 	public String getFilename() {
 		return filename;
 	}
+
+	public String getMd5() {
+		return md5;
+	}
+
+	/**
+	 * @return SHA-256 of the archive, null if the index doesn't have it
+	 */
+	public String getSha256() {
+		return sha256;
+	}
 }
@@ -3,17 +3,25 @@ package com.tuenti.supernanny.repo.artifacts;
 import java.io.File;
 
 import com.tuenti.supernanny.repo.Repository;
+import com.tuenti.supernanny.strategy.CompressionStats;
 
 public class Export {
 	private Repository repository;
 	private String name;
 	private File folder;
+	private Integer compressThreads;
+	private CompressionStats compressionStats;
 
 	public Export(Repository repository, String name, File folder) {
+		this(repository, name, folder, null);
+	}
+
+	public Export(Repository repository, String name, File folder, Integer compressThreads) {
 		super();
 		this.repository = repository;
 		this.name = name;
 		this.folder = folder;
+		this.compressThreads = compressThreads;
 	}
 	
 	public Repository getRepository() {
@@ -32,4 +40,22 @@ public class Export {
 	public File getFolder() {
 		return folder;
 	}
+
+	/**
+	 * @return threads to compress the archive with, null for the default
+	 */
+	public Integer getCompressThreads() {
+		return compressThreads;
+	}
+
+	/**
+	 * @return figures of the last publish compression, null if unknown
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
+	public void setCompressionStats(CompressionStats compressionStats) {
+		this.compressionStats = compressionStats;
+	}
 }
@@ -41,20 +41,26 @@ public class Requirement {
 
 	public Requirement(String name, ReqType type, String version, RepositoryType repoType,
 			String repo) {
+		this(name, type, new Version(version), repoType, repo);
+	}
+
+	public Requirement(String name, ReqType type, Version version, RepositoryType repoType,
+			String repo) {
 		super();
 		this.name = name;
-		this.version = new Version(version);
+		this.version = version;
 		this.type = type;
 		this.repoType = repoType;
 		this.repo = repo;
 
 		// get a version for wildcard comparisons
-		if (version.contains("*")) {
+		String versionString = version.getVersionString();
+		if (versionString.contains("*")) {
 			switch (type) {
 			case SW:
 			case GE:
 			case GT:
-				this.versionWithoutWildcards = new Version(version.replace("*", ""));
+				this.versionWithoutWildcards = new Version(versionString.replace("*", ""));
 				break;
 			default:
 				throw new SuperNannyError("Don't use wildcards with types other than SW,GT,GE in "
@@ -0,0 +1,221 @@
+package com.tuenti.supernanny.repo.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+
+/**
+ * Content addressable store of downloaded archives, shared by all projects of
+ * the user.
+ *
+ * Archives are keyed by the MD5 published in the repo index. The store is
+ * bounded in size, the least recently used archives are evicted first (every
+ * hit refreshes the file's modification time). Several processes can use the
+ * store at the same time: new entries are written to a temporary file and
+ * renamed into place, and eviction runs holding an exclusive lock on the
+ * store's lock file. Interrupted downloads kept to be resumed don't count
+ * towards the size, they are deleted after a day like temporary files.
+ */
+@Singleton
+public class ArtifactStore {
+	private static final String ARTIFACTS_FOLDER = "artifacts";
+	private static final String LOCK_FILE = ".lock";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String PARTIAL_SUFFIX = ".partial";
+	private static final Pattern MD5 = Pattern.compile("[0-9a-fA-F]{32}");
+	private static final long STALE_TMP_AGE = 24 * 60 * 60 * 1000L;
+
+	@Inject
+	private Util util;
+	@Inject
+	private CliParser p;
+	@Inject
+	private Logger l;
+
+	/**
+	 * Check if an artifact with the given index MD5 can be stored.
+	 *
+	 * Indexes generated without MD5s have "unknown" (or garbage) in that
+	 * field, those can't be used as keys.
+	 */
+	public boolean isStorable(String md5) {
+		return getFolder() != null && md5 != null && MD5.matcher(md5).matches();
+	}
+
+	/**
+	 * Get the stored archive for the given MD5.
+	 *
+	 * @return the archive or null if it isn't in the store.
+	 */
+	public File get(String md5) {
+		if (!isStorable(md5)) {
+			return null;
+		}
+		File f = new File(getFolder(), md5.toLowerCase());
+		if (!f.isFile()) {
+			return null;
+		}
+		// mark as recently used
+		f.setLastModified(System.currentTimeMillis());
+		l.fine("Using stored archive " + f);
+		return f;
+	}
+
+	/**
+	 * Get a temporary file inside the store to download an archive to. Once
+	 * complete it must be moved into the store with put.
+	 */
+	public File newTmpFile(String md5) throws IOException {
+		File folder = getFolder();
+		folder.mkdirs();
+		return File.createTempFile(md5.toLowerCase(), TMP_SUFFIX, folder);
+	}
+
+	/**
+	 * Get a temporary file like newTmpFile, with the beginning of the archive
+	 * if a previous run left an interrupted download of it.
+	 */
+	public File claimPartial(String md5) throws IOException {
+		File tmpFile = newTmpFile(md5);
+		// rename is atomic, only one process gets the partial download
+		new File(getFolder(), md5.toLowerCase() + PARTIAL_SUFFIX).renameTo(tmpFile);
+		return tmpFile;
+	}
+
+	/**
+	 * Keep an interrupted download (from claimPartial) to resume it later.
+	 */
+	public void keepPartial(String md5, File tmpFile) {
+		if (tmpFile.length() == 0
+				|| !tmpFile.renameTo(new File(getFolder(), md5.toLowerCase() + PARTIAL_SUFFIX))) {
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Move a complete download into the store.
+	 *
+	 * @param md5
+	 *            the archive's MD5 as published in the index
+	 * @param tmpFile
+	 *            the downloaded file (from newTmpFile)
+	 * @return the stored archive
+	 * @throws IOException
+	 */
+	public File put(String md5, File tmpFile) throws IOException {
+		File f = new File(getFolder(), md5.toLowerCase());
+		// another process may have stored it in the meantime, rename
+		// replaces it atomically with the same content
+		if (!tmpFile.renameTo(f)) {
+			tmpFile.delete();
+			throw new IOException("Can't move " + tmpFile + " to " + f);
+		}
+		evict(f);
+		return f;
+	}
+
+	/**
+	 * Delete least recently used archives until the store fits in its
+	 * maximum size.
+	 * 
+	 * @param keep
+	 *            archive that is about to be used, never evicted
+	 */
+	public void evict(File keep) throws IOException {
+		File folder = getFolder();
+		long maxSize = Long.parseLong(p.cacheSize) * 1024 * 1024;
+
+		synchronized (this) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(folder, LOCK_FILE), "rw");
+			try {
+				FileChannel channel = lockFile.getChannel();
+				FileLock lock = channel.lock();
+				try {
+					// sizes and times are read once, other processes keep
+					// touching the files while they are sorted
+					List<StoredFile> files = new ArrayList<StoredFile>();
+					long total = 0;
+					long staleTime = System.currentTimeMillis() - STALE_TMP_AGE;
+					for (File f : folder.listFiles()) {
+						long lastModified = f.lastModified();
+						boolean partial = f.getName().endsWith(PARTIAL_SUFFIX);
+						// leftovers of interrupted downloads
+						if ((partial || f.getName().endsWith(TMP_SUFFIX)) && lastModified < staleTime
+								&& f.delete()) {
+							continue;
+						}
+						// skip the lock, downloads in progress and the ones to
+						// resume, which aren't archives of the store yet
+						if (partial || f.getName().startsWith(".") || f.getName().endsWith(TMP_SUFFIX)) {
+							continue;
+						}
+						StoredFile stored = new StoredFile(f, lastModified, f.length());
+						files.add(stored);
+						total += stored.length;
+					}
+					if (total <= maxSize) {
+						return;
+					}
+
+					Collections.sort(files);
+					for (StoredFile stored : files) {
+						if (total <= maxSize) {
+							break;
+						}
+						if (stored.file.equals(keep)) {
+							continue;
+						}
+						if (stored.file.delete()) {
+							l.fine("Evicted " + stored.file + " from the artifact store");
+							total -= stored.length;
+						}
+					}
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Archive of the store, sorted from the least recently used.
+	 */
+	private static class StoredFile implements Comparable<StoredFile> {
+		final File file;
+		final long lastModified;
+		final long length;
+
+		StoredFile(File file, long lastModified, long length) {
+			this.file = file;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+
+		@Override
+		public int compareTo(StoredFile o) {
+			return lastModified < o.lastModified ? -1 : (lastModified == o.lastModified ? 0 : 1);
+		}
+	}
+
+	private File getFolder() {
+		File cacheFolder = util.getCacheFolder();
+		if (cacheFolder == null) {
+			return null;
+		}
+		return new File(cacheFolder, ARTIFACTS_FOLDER);
+	}
+}
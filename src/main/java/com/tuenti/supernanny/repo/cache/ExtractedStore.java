@@ -0,0 +1,321 @@
+package com.tuenti.supernanny.repo.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.tuenti.supernanny.SuperNannyError;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+
+/**
+ * Store of extracted archives, shared by all projects of the user, that deps
+ * folders link to instead of having their own copy.
+ *
+ * Each archive is extracted once, keyed by the MD5 published in the repo
+ * index, and its files are made read-only since every deps folder linking to
+ * them shares their contents. The deps folder gets reflinks (copy on write)
+ * where the file system supports them, hard links otherwise. Hard links share
+ * the inode, so the files in the deps folder are read-only too: writing to
+ * them fails instead of changing the store and every other project, they must
+ * be replaced instead. Deleting a linked dependency only removes its links,
+ * and entries can be evicted from the store without breaking the deps folders
+ * linking to them.
+ *
+ * The store is bounded in size (--linkStoreSize), the least recently linked
+ * entries are evicted first, and entries not linked for a month are evicted
+ * anyway. The size of each entry is kept next to it, since walking the trees
+ * on every eviction would be too slow.
+ */
+@Singleton
+public class ExtractedStore {
+	/** Marker in the linked dependency with the MD5 of its store entry. */
+	public static final String MARKER_FILE = ".supernanny-store";
+	private static final String EXTRACTED_FOLDER = "extracted";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String SIZE_SUFFIX = ".size";
+	private static final Pattern MD5 = Pattern.compile("[0-9a-fA-F]{32}");
+	private static final long STALE_AGE = 30 * 24 * 60 * 60 * 1000L;
+
+	@Inject
+	private Util util;
+	@Inject
+	private CliParser p;
+	@Inject
+	private Logger l;
+
+	public boolean isStorable(String md5) {
+		return getFolder() != null && md5 != null && MD5.matcher(md5).matches();
+	}
+
+	/**
+	 * @return the extracted archive or null if it isn't in the store.
+	 */
+	public File get(String md5) {
+		if (!isStorable(md5)) {
+			return null;
+		}
+		File f = new File(getFolder(), md5.toLowerCase());
+		return f.isDirectory() ? f : null;
+	}
+
+	/**
+	 * Get a temporary folder inside the store to extract an archive to. Once
+	 * complete it must be moved into the store with put.
+	 */
+	public File newTmpFolder(String md5) throws IOException {
+		File folder = getFolder();
+		folder.mkdirs();
+		File tmp = File.createTempFile(md5.toLowerCase(), TMP_SUFFIX, folder);
+		tmp.delete();
+		tmp.mkdir();
+		return tmp;
+	}
+
+	/**
+	 * Make a complete extraction read-only and move it into the store.
+	 *
+	 * @return the stored folder
+	 */
+	public File put(String md5, File tmpFolder) throws IOException {
+		long size = makeReadOnly(tmpFolder);
+		File f = new File(getFolder(), md5.toLowerCase());
+		if (tmpFolder.renameTo(f)) {
+			writeSize(f, size);
+		} else {
+			// another process stored it in the meantime
+			util.deleteDir(tmpFolder);
+			if (!f.isDirectory()) {
+				throw new IOException("Can't move " + tmpFolder + " to " + f);
+			}
+		}
+		evict(f);
+		return f;
+	}
+
+	/**
+	 * Populate the destination with links to the stored files.
+	 *
+	 * @return false if they can't be linked (e.g. the store is in another file
+	 *         system), leaving the destination empty
+	 */
+	public boolean link(String md5, File extracted, File destination) throws IOException {
+		String source = extracted.getAbsolutePath() + File.separator + ".";
+		String target = destination.getAbsolutePath();
+		destination.mkdirs();
+		String[][] commands = { { "cp", "-a", "--reflink=always", source, target },
+				{ "cp", "-al", source, target } };
+		for (String[] command : commands) {
+			try {
+				util.readProcess(command);
+				// mark as recently used
+				extracted.setLastModified(System.currentTimeMillis());
+				// files written in the deps folder must not be links, or
+				// they would write to the store
+				new File(destination, Util.SUPERNANNY_VERSION_FILE).delete();
+				new File(destination, MARKER_FILE).delete();
+				FileWriter marker = new FileWriter(new File(destination, MARKER_FILE));
+				try {
+					marker.write(md5.toLowerCase() + "\n");
+				} finally {
+					marker.close();
+				}
+				return true;
+			} catch (SuperNannyError e) {
+				l.fine("Can't link " + extracted + " with " + command[1] + ": " + e.getMessage());
+				util.deleteDir(destination);
+				destination.mkdirs();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Delete the entries that weren't linked for a long time, then the least
+	 * recently linked ones until the store fits in its maximum size. Deps
+	 * folders still linking to them keep their files.
+	 * 
+	 * @param keep
+	 *            entry that is about to be linked, never evicted
+	 */
+	private void evict(File keep) throws IOException {
+		File[] children = getFolder().listFiles();
+		if (children == null) {
+			return;
+		}
+		long maxSize = Long.parseLong(p.linkStoreSize) * 1024 * 1024;
+		long staleTime = System.currentTimeMillis() - STALE_AGE;
+		// times are read once, other processes keep linking entries while
+		// they are sorted
+		List<StoredEntry> entries = new ArrayList<StoredEntry>();
+		long total = 0;
+		for (File child : children) {
+			if (child.getName().endsWith(SIZE_SUFFIX)) {
+				continue;
+			}
+			long lastModified = child.lastModified();
+			if (lastModified < staleTime && !child.equals(keep)) {
+				delete(child);
+				continue;
+			}
+			// extractions in progress
+			if (child.getName().endsWith(TMP_SUFFIX) || !child.isDirectory()) {
+				continue;
+			}
+			StoredEntry entry = new StoredEntry(child, lastModified, readSize(child));
+			entries.add(entry);
+			total += entry.size;
+		}
+		if (total <= maxSize) {
+			return;
+		}
+
+		Collections.sort(entries);
+		for (StoredEntry entry : entries) {
+			if (total <= maxSize) {
+				break;
+			}
+			if (!entry.folder.equals(keep)) {
+				delete(entry.folder);
+				total -= entry.size;
+			}
+		}
+	}
+
+	private void delete(File entry) throws IOException {
+		util.deleteDir(entry);
+		new File(entry.getPath() + SIZE_SUFFIX).delete();
+		l.fine("Evicted " + entry + " from the extracted store");
+	}
+
+	/**
+	 * @return size of the files of the entry, as stored by put
+	 */
+	private long readSize(File entry) throws IOException {
+		File sizeFile = new File(entry.getPath() + SIZE_SUFFIX);
+		if (sizeFile.isFile()) {
+			BufferedReader in = new BufferedReader(new FileReader(sizeFile));
+			try {
+				return Long.parseLong(in.readLine().trim());
+			} catch (RuntimeException e) {
+				// rewritten below
+			} finally {
+				in.close();
+			}
+		}
+		long size = getSize(entry);
+		writeSize(entry, size);
+		return size;
+	}
+
+	private void writeSize(File entry, long size) throws IOException {
+		FileWriter out = new FileWriter(entry.getPath() + SIZE_SUFFIX);
+		try {
+			out.write(size + "\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return size of the files under the folder, without following links
+	 */
+	private long getSize(File folder) throws IOException {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		long size = 0;
+		String canonicalFolder = folder.getCanonicalPath();
+		for (File f : children) {
+			if (!f.getCanonicalPath().equals(canonicalFolder + File.separator + f.getName())) {
+				continue;
+			}
+			size += f.isDirectory() ? getSize(f) : f.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Remove write permissions from the files, folders stay writable so the
+	 * entry can be deleted.
+	 * 
+	 * @return size of the files
+	 */
+	private long makeReadOnly(File folder) throws IOException {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		long size = 0;
+		String canonicalFolder = folder.getCanonicalPath();
+		for (File f : children) {
+			// symlinks don't resolve to their folder plus their name, leave
+			// their targets alone
+			if (!f.getCanonicalPath().equals(canonicalFolder + File.separator + f.getName())) {
+				continue;
+			}
+			if (f.isDirectory()) {
+				size += makeReadOnly(f);
+			} else {
+				f.setWritable(false, false);
+				size += f.length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return MD5 of the store entry the dependency is linked to, null if it
+	 *         isn't linked
+	 */
+	public String getLinkedMd5(File dep) throws IOException {
+		File marker = new File(dep, MARKER_FILE);
+		if (!marker.isFile()) {
+			return null;
+		}
+		BufferedReader in = new BufferedReader(new FileReader(marker));
+		try {
+			return in.readLine();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Entry of the store, sorted from the least recently linked.
+	 */
+	private static class StoredEntry implements Comparable<StoredEntry> {
+		final File folder;
+		final long lastModified;
+		final long size;
+
+		StoredEntry(File folder, long lastModified, long size) {
+			this.folder = folder;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		@Override
+		public int compareTo(StoredEntry o) {
+			return lastModified < o.lastModified ? -1 : (lastModified == o.lastModified ? 0 : 1);
+		}
+	}
+
+	private File getFolder() {
+		File cacheFolder = util.getCacheFolder();
+		if (cacheFolder == null) {
+			return null;
+		}
+		return new File(cacheFolder, EXTRACTED_FOLDER);
+	}
+}
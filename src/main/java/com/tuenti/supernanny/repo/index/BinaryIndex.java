@@ -0,0 +1,218 @@
+package com.tuenti.supernanny.repo.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.tuenti.supernanny.dependencies.RepositoryType;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.artifacts.ReqType;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.util.Version;
+
+/**
+ * Binary index of an archive repo (index.bin, create_index.py --binary),
+ * mapped in memory.
+ *
+ * Names are looked up with a binary search of its sorted directory, and only
+ * the artifacts of the names looked up are decoded. Versions come parsed, so
+ * nothing in the index goes through the text or dependency parsers. The
+ * layout is described in create_index.py.
+ */
+public class BinaryIndex {
+	private static final int MAGIC = 0x534e4942; // SNIB
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int DIRECTORY_ENTRY_SIZE = 12;
+	private static final ReqType[] REQ_TYPES = { ReqType.LT, ReqType.LE, ReqType.EQ, ReqType.GE,
+			ReqType.GT, ReqType.SW };
+
+	private final ByteBuffer buffer;
+	private final int stringCount;
+	private final int stringsOffset;
+	private final int versionCount;
+	private final int versionsOffset;
+	private final int nameCount;
+	private final int directoryOffset;
+	/** Versions decoded so far, shared by artifacts and requirements. */
+	private final Map<Integer, Version> versions = new HashMap<Integer, Version>();
+
+	/**
+	 * Map the file in memory. The mapping stays valid if the file is replaced
+	 * by a rename.
+	 */
+	public static BinaryIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return new BinaryIndex(raf.getChannel().map(MapMode.READ_ONLY, 0, raf.length()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public BinaryIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Unknown binary index format");
+		}
+		stringCount = buffer.getInt(8);
+		stringsOffset = buffer.getInt(12);
+		versionCount = buffer.getInt(16);
+		versionsOffset = buffer.getInt(20);
+		nameCount = buffer.getInt(24);
+		directoryOffset = buffer.getInt(28);
+		checkTable(stringsOffset, stringCount, 4);
+		checkTable(versionsOffset, versionCount, 4);
+		checkTable(directoryOffset, nameCount, DIRECTORY_ENTRY_SIZE);
+	}
+
+	private void checkTable(int offset, int count, int entrySize) throws IOException {
+		if (offset < HEADER_SIZE || count < 0
+				|| (long) offset + (long) count * entrySize > buffer.limit()) {
+			throw new IOException("Broken binary index");
+		}
+	}
+
+	/**
+	 * @return number of artifact names in the index
+	 */
+	public int getNameCount() {
+		return nameCount;
+	}
+
+	/**
+	 * Get the artifacts with the given name, in the order of the index.
+	 *
+	 * @return the artifacts, empty if the index has none
+	 * @throws IOException
+	 *             if the index is broken
+	 */
+	public synchronized List<ArchiveArtifact> getArtifacts(String name) throws IOException {
+		List<ArchiveArtifact> artifacts = new ArrayList<ArchiveArtifact>();
+		try {
+			int entry = find(name.getBytes("UTF-8"));
+			if (entry < 0) {
+				return artifacts;
+			}
+			int offset = buffer.getInt(entry + 4);
+			int count = buffer.getInt(entry + 8);
+			for (int i = 0; i < count; i++) {
+				Version version = getVersion(buffer.getInt(offset));
+				String file = getString(buffer.getInt(offset + 4));
+				String md5 = getString(buffer.getInt(offset + 8));
+				int sha256 = buffer.getInt(offset + 12);
+				int reqCount = buffer.getInt(offset + 16);
+				offset += 20;
+				List<Requirement> reqs = new ArrayList<Requirement>(reqCount);
+				for (int j = 0; j < reqCount; j++) {
+					String reqName = getString(buffer.getInt(offset));
+					ReqType type = REQ_TYPES[buffer.get(offset + 4)];
+					Version reqVersion = getVersion(buffer.getInt(offset + 5));
+					RepositoryType repoType = RepositoryType.valueOf(getString(buffer
+							.getInt(offset + 9)));
+					String repo = getString(buffer.getInt(offset + 13));
+					reqs.add(new Requirement(reqName, type, reqVersion, repoType, repo));
+					offset += 17;
+				}
+				artifacts.add(new ArchiveArtifact(name, version, file, md5, sha256 < 0 ? null
+						: getString(sha256), null, reqs));
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Broken binary index");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Broken binary index: " + e.getMessage());
+		}
+		return artifacts;
+	}
+
+	/**
+	 * @return offset of the directory entry of the name, -1 if it isn't there
+	 */
+	private int find(byte[] name) {
+		int low = 0;
+		int high = nameCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entry = directoryOffset + middle * DIRECTORY_ENTRY_SIZE;
+			int cmp = compare(buffer.getInt(entry), name);
+			if (cmp < 0) {
+				low = middle + 1;
+			} else if (cmp > 0) {
+				high = middle - 1;
+			} else {
+				return entry;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Compare the UTF-8 bytes of a string of the table with the given ones,
+	 * without decoding it.
+	 */
+	private int compare(int id, byte[] bytes) {
+		int offset = getStringOffset(id);
+		int length = buffer.getShort(offset) & 0xffff;
+		for (int i = 0; i < length && i < bytes.length; i++) {
+			int cmp = (buffer.get(offset + 2 + i) & 0xff) - (bytes[i] & 0xff);
+			if (cmp != 0) {
+				return cmp;
+			}
+		}
+		return length - bytes.length;
+	}
+
+	private int getStringOffset(int id) {
+		if (id < 0 || id >= stringCount) {
+			throw new IndexOutOfBoundsException("String " + id);
+		}
+		return buffer.getInt(stringsOffset + 4 * id);
+	}
+
+	private String getString(int id) {
+		int offset = getStringOffset(id);
+		byte[] bytes = new byte[buffer.getShort(offset) & 0xffff];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = buffer.get(offset + 2 + i);
+		}
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private Version getVersion(int id) {
+		Version version = versions.get(id);
+		if (version == null) {
+			if (id < 0 || id >= versionCount) {
+				throw new IndexOutOfBoundsException("Version " + id);
+			}
+			int offset = buffer.getInt(versionsOffset + 4 * id);
+			String versionString = getString(buffer.getInt(offset));
+			Comparable[] parsed = new Comparable[buffer.get(offset + 4) & 0xff];
+			offset += 5;
+			for (int i = 0; i < parsed.length; i++) {
+				if (buffer.get(offset) == 0) {
+					parsed[i] = buffer.getLong(offset + 1);
+					offset += 9;
+				} else {
+					parsed[i] = getString(buffer.getInt(offset + 1));
+					offset += 5;
+				}
+			}
+			version = new Version(versionString, parsed);
+			versions.put(id, version);
+		}
+		return version;
+	}
+}
@@ -0,0 +1,613 @@
+package com.tuenti.supernanny.repo.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.util.EntityUtils;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.SuperNannyError;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.dependencies.RepositoryType;
+import com.tuenti.supernanny.http.HttpTransport;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.artifacts.ReqType;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.util.Version;
+
+/**
+ * Local cache of parsed archive repo indexes.
+ *
+ * Each index is stored pre-parsed in a compact binary form together with the
+ * HTTP validators (ETag/Last-Modified) it was downloaded with. Index loads are
+ * conditional GETs; when the server answers 304 the cached artifacts are used
+ * and neither the download nor the text parse happen.
+ *
+ * Repos whose index is generated with deltas (create_index.py --deltas) have
+ * a manifest, index.seq, with the sequence number of the index and the oldest
+ * one the deltas can update from. index.delta.N.gz updates the index from N-1
+ * to N. A cached index with a sequence number is updated by revalidating the
+ * manifest and applying the deltas newer than it, the whole index is only
+ * downloaded when they aren't available anymore.
+ *
+ * The binary index of a repo (index.bin) is kept next to the parsed one, and
+ * revalidated the same way.
+ */
+public class IndexCache {
+	private static final int MAGIC = 0x534e4943; // SNIC
+	private static final int FORMAT_VERSION = 3;
+	private static final String INDEX_FOLDER = "index";
+	private static final String MANIFEST = "index.seq";
+	private static final String DELTA_PREFIX = "index.delta.";
+	private static final String BINARY_INDEX = "index.bin";
+
+	/**
+	 * Index contents plus the validators needed to revalidate them.
+	 *
+	 * The validators are the ones of the manifest when the index has a
+	 * sequence number.
+	 */
+	public static class CachedIndex {
+		public String etag;
+		public long lastModified;
+		public String source;
+		public List<ArchiveArtifact> artifacts;
+		/** Sequence number of the index, -1 if the repo has no deltas. */
+		public long sequence;
+
+		public CachedIndex(String etag, long lastModified, String source,
+				List<ArchiveArtifact> artifacts) {
+			this(etag, lastModified, source, artifacts, -1);
+		}
+
+		public CachedIndex(String etag, long lastModified, String source,
+				List<ArchiveArtifact> artifacts, long sequence) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.source = source;
+			this.artifacts = artifacts;
+			this.sequence = sequence;
+		}
+	}
+
+	@Inject
+	private Util util;
+	@Inject
+	private Logger l;
+	@Inject
+	private HttpTransport transport;
+
+	/**
+	 * Get all artifacts of the index found at the repo uri, using the cached
+	 * copy if the server says it's still valid.
+	 *
+	 * @param uri
+	 *            Repo uri (ending in /)
+	 * @return artifacts in the index
+	 * @throws IOException
+	 */
+	public List<ArchiveArtifact> getArtifacts(String uri) throws IOException {
+		return getIndex(uri).artifacts;
+	}
+
+	/**
+	 * Get the index found at the repo uri, revalidating the cached copy.
+	 */
+	public CachedIndex getIndex(String uri) throws IOException {
+		File cacheFile = getCacheFile(uri);
+		CachedIndex cached = null;
+		if (cacheFile != null && cacheFile.exists()) {
+			try {
+				cached = readCache(cacheFile);
+			} catch (IOException e) {
+				l.warning("Ignoring broken index cache " + cacheFile + ": " + e);
+			}
+		}
+		return refresh(uri, cached, 0);
+	}
+
+	/**
+	 * Revalidate an index previously loaded from the repo uri.
+	 *
+	 * @param previous
+	 *            index loaded before, null to load it
+	 * @param wait
+	 *            seconds the server may hold the request until the index
+	 *            changes (Prefer: wait), 0 to answer right away. Servers not
+	 *            supporting it answer right away anyway.
+	 * @return previous itself if the index didn't change, a new one otherwise
+	 */
+	public CachedIndex refresh(String uri, CachedIndex previous, int wait) throws IOException {
+		CachedIndex index = null;
+		if (HttpTransport.handles(uri)) {
+			index = refreshFromDeltas(uri, previous, wait);
+		}
+		if (index == null && previous != null && previous.source.endsWith("/index")) {
+			// the repo has no index.gz, don't ask for it every time
+			try {
+				index = download(new URL(uri + "index"), false, previous, wait);
+			} catch (FileNotFoundException e) {
+				index = null;
+			}
+		}
+		if (index == null) {
+			try {
+				index = download(new URL(uri + "index.gz"), true, previous, wait);
+			} catch (FileNotFoundException e) {
+				try {
+					index = download(new URL(uri + "index"), false, previous, wait);
+				} catch (FileNotFoundException f) {
+					throw new SuperNannyError("Can't find index file " + uri + "index.gz or "
+							+ uri + "index");
+				}
+			}
+		}
+
+		File cacheFile = getCacheFile(uri);
+		if (index == previous) {
+			l.fine("Index for " + uri + " not modified");
+		} else if (cacheFile != null
+				&& (index.etag != null || index.lastModified > 0 || index.sequence >= 0)) {
+			try {
+				writeCache(cacheFile, index);
+			} catch (IOException e) {
+				l.warning("Can't write index cache " + cacheFile + ": " + e);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Get the binary index of the repo, downloading it to the cache if it
+	 * changed.
+	 *
+	 * @return the mapped index, null if the repo has none or the cache is
+	 *         disabled
+	 */
+	public BinaryIndex getBinaryIndex(String uri) throws IOException {
+		File cacheFile = getCacheFile(uri);
+		if (cacheFile == null || !HttpTransport.handles(uri)) {
+			return null;
+		}
+		File binFile = new File(cacheFile.getPath() + ".bin");
+		File validatorsFile = new File(cacheFile.getPath() + ".bin.validators");
+
+		HttpGet get = new HttpGet(uri + BINARY_INDEX);
+		if (binFile.exists() && validatorsFile.exists()) {
+			DataInputStream in = new DataInputStream(new FileInputStream(validatorsFile));
+			try {
+				String etag = in.readUTF();
+				setValidators(get, "".equals(etag) ? null : etag, in.readLong(), 0);
+			} catch (IOException e) {
+				l.warning("Ignoring broken validators " + validatorsFile + ": " + e);
+			} finally {
+				in.close();
+			}
+		}
+		HttpResponse response;
+		try {
+			response = transport.execute(get, HttpStatus.SC_OK, HttpStatus.SC_NOT_MODIFIED);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			EntityUtils.consume(response.getEntity());
+			l.fine("Binary index for " + uri + " not modified, using " + binFile);
+		} else {
+			// replaced by a rename, indexes mapped by other processes stay valid
+			binFile.getParentFile().mkdirs();
+			File tmpFile = new File(binFile.getPath() + "." + System.nanoTime() + ".tmp");
+			InputStream in = response.getEntity().getContent();
+			try {
+				OutputStream out = new FileOutputStream(tmpFile);
+				try {
+					byte[] buffer = new byte[64 * 1024];
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						out.write(buffer, 0, read);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+			validatorsFile.delete();
+			if (!tmpFile.renameTo(binFile)) {
+				tmpFile.delete();
+				throw new IOException("Can't move " + tmpFile + " to " + binFile);
+			}
+			String etag = getEtag(response);
+			DataOutputStream out = new DataOutputStream(new FileOutputStream(validatorsFile));
+			try {
+				out.writeUTF(etag == null ? "" : etag);
+				out.writeLong(getLastModified(response));
+			} finally {
+				out.close();
+			}
+		}
+
+		try {
+			return BinaryIndex.open(binFile);
+		} catch (IOException e) {
+			l.warning("Ignoring broken binary index " + uri + BINARY_INDEX + ": " + e.getMessage());
+			binFile.delete();
+			validatorsFile.delete();
+			return null;
+		}
+	}
+
+	/**
+	 * Update the index with the deltas newer than the previous one.
+	 *
+	 * @return previous itself if the index didn't change, null if the repo has
+	 *         no manifest
+	 */
+	private CachedIndex refreshFromDeltas(String uri, CachedIndex previous, int wait)
+			throws IOException {
+		String source = uri + "index.gz";
+		boolean useCached = previous != null && previous.sequence >= 0
+				&& source.equals(previous.source);
+		HttpGet get = new HttpGet(uri + MANIFEST);
+		if (useCached) {
+			setValidators(get, previous.etag, previous.lastModified, wait);
+		}
+		HttpResponse response;
+		try {
+			response = transport.execute(get, HttpStatus.SC_OK, HttpStatus.SC_NOT_MODIFIED);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+			EntityUtils.consume(response.getEntity());
+			if (useCached) {
+				return previous;
+			}
+			throw new IOException("Unexpected 304 for " + get.getURI());
+		}
+		String etag = getEtag(response);
+		long lastModified = getLastModified(response);
+		long sequence = -1;
+		long base = -1;
+		BufferedReader in = new BufferedReader(new InputStreamReader(response.getEntity()
+				.getContent()));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("Sequence:")) {
+					sequence = Long.parseLong(line.substring("Sequence:".length()).trim());
+				} else if (line.startsWith("Base:")) {
+					base = Long.parseLong(line.substring("Base:".length()).trim());
+				}
+			}
+		} catch (NumberFormatException e) {
+			throw new IOException("Invalid index manifest " + get.getURI() + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		if (sequence < 0 || base < 0) {
+			throw new IOException("Invalid index manifest " + get.getURI());
+		}
+
+		List<ArchiveArtifact> artifacts = null;
+		if (useCached && previous.sequence >= base && previous.sequence <= sequence) {
+			// the manifest is read before the index and the deltas, they may
+			// be newer; applying a delta again is harmless
+			try {
+				artifacts = previous.artifacts;
+				for (long n = previous.sequence + 1; n <= sequence; n++) {
+					artifacts = applyDelta(new URL(uri + DELTA_PREFIX + n + ".gz"), artifacts);
+				}
+				l.fine("Updated index for " + uri + " from " + previous.sequence + " to "
+						+ sequence);
+			} catch (IOException e) {
+				l.warning("Can't update index " + uri + " with deltas, downloading it: "
+						+ e.getMessage());
+				artifacts = null;
+			}
+		}
+		if (artifacts == null) {
+			try {
+				artifacts = download(new URL(source), true, null, 0).artifacts;
+			} catch (FileNotFoundException e) {
+				return null;
+			}
+		}
+		return new CachedIndex(etag, lastModified, source, artifacts, sequence);
+	}
+
+	private List<ArchiveArtifact> applyDelta(URL url, List<ArchiveArtifact> artifacts)
+			throws IOException {
+		HttpResponse response = transport.execute(new HttpGet(url.toString()), HttpStatus.SC_OK);
+		BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(response
+				.getEntity().getContent())));
+		try {
+			return new IndexReader(in).applyDelta(artifacts);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void setValidators(HttpGet get, String etag, long lastModified, int wait) {
+		if (etag != null) {
+			get.setHeader("If-None-Match", etag);
+		}
+		if (lastModified > 0) {
+			get.setHeader("If-Modified-Since", DateUtils.formatDate(new Date(lastModified)));
+		}
+		if (wait > 0) {
+			get.setHeader("Prefer", "wait=" + wait);
+		}
+	}
+
+	private String getEtag(HttpResponse response) {
+		Header etagHeader = response.getFirstHeader("ETag");
+		return etagHeader == null ? null : etagHeader.getValue();
+	}
+
+	private long getLastModified(HttpResponse response) {
+		Header lastModifiedHeader = response.getFirstHeader("Last-Modified");
+		if (lastModifiedHeader != null) {
+			try {
+				return DateUtils.parseDate(lastModifiedHeader.getValue()).getTime();
+			} catch (DateParseException e) {
+				l.fine("Ignoring invalid Last-Modified: " + e.getMessage());
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Download and parse the index at the given url, sending the validators of
+	 * the cached copy if it came from the same url.
+	 *
+	 * @return the cached index itself if it's still valid, a new one otherwise
+	 */
+	private CachedIndex download(URL url, boolean gzipped, CachedIndex cached, int wait)
+			throws IOException {
+		boolean useCached = cached != null && url.toString().equals(cached.source);
+		InputStream stream;
+		String etag = null;
+		long lastModified = 0;
+		if (HttpTransport.handles(url.toString())) {
+			HttpGet get = new HttpGet(url.toString());
+			if (useCached) {
+				setValidators(get, cached.etag, cached.lastModified, wait);
+			}
+			HttpResponse response = transport.execute(get, HttpStatus.SC_OK,
+					HttpStatus.SC_NOT_MODIFIED);
+			if (response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+				EntityUtils.consume(response.getEntity());
+				if (useCached) {
+					return cached;
+				}
+				throw new IOException("Unexpected 304 for " + url);
+			}
+			etag = getEtag(response);
+			lastModified = getLastModified(response);
+			stream = response.getEntity().getContent();
+		} else {
+			URLConnection connection = url.openConnection();
+			stream = connection.getInputStream();
+			lastModified = connection.getLastModified();
+		}
+
+		if (gzipped) {
+			stream = new GZIPInputStream(stream);
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+		try {
+			// a truncated or broken index must not be cached with the
+			// validators of the complete one
+			IndexReader indexReader = new IndexReader(in);
+			return new CachedIndex(etag, lastModified, url.toString(), indexReader.parseStrict());
+		} finally {
+			in.close();
+		}
+	}
+
+	private File getCacheFile(String uri) {
+		File cacheFolder = util.getCacheFolder();
+		if (cacheFolder == null) {
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			String name = new String(Hex.encodeHex(md.digest(uri.getBytes())));
+			return new File(new File(cacheFolder, INDEX_FOLDER), name);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Store the index in the compact form. Strings are deduplicated into a
+	 * table since names, repo uris and versions repeat all over the index.
+	 *
+	 * The file is written to a temporary file and renamed, so concurrent
+	 * processes never see a partial cache.
+	 */
+	public void writeCache(File cacheFile, CachedIndex index) throws IOException {
+		File folder = cacheFile.getParentFile();
+		folder.mkdirs();
+		File tmpFile = new File(folder, cacheFile.getName() + "." + System.nanoTime() + ".tmp");
+
+		List<String> strings = new ArrayList<String>();
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		for (ArchiveArtifact a : index.artifacts) {
+			addString(a.getName(), strings, stringIds);
+			addString(a.getVersion().getVersionString(), strings, stringIds);
+			addString(a.getFilename(), strings, stringIds);
+			addString(a.getMd5(), strings, stringIds);
+			addString(getSha256(a), strings, stringIds);
+			for (Requirement r : a.getRequirements()) {
+				addString(r.getName(), strings, stringIds);
+				addString(r.getType().name(), strings, stringIds);
+				addString(r.getVersion().getVersionString(), strings, stringIds);
+				addString(r.getRepoType().name(), strings, stringIds);
+				addString(r.getRepo(), strings, stringIds);
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+				tmpFile)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(index.etag == null ? "" : index.etag);
+			out.writeLong(index.lastModified);
+			out.writeUTF(index.source);
+			out.writeLong(index.sequence);
+
+			out.writeInt(strings.size());
+			for (String s : strings) {
+				out.writeUTF(s);
+			}
+
+			out.writeInt(index.artifacts.size());
+			for (ArchiveArtifact a : index.artifacts) {
+				out.writeInt(stringIds.get(a.getName()));
+				out.writeInt(stringIds.get(a.getVersion().getVersionString()));
+				out.writeInt(stringIds.get(a.getFilename()));
+				out.writeInt(stringIds.get(a.getMd5()));
+				out.writeInt(stringIds.get(getSha256(a)));
+				out.writeInt(a.getRequirements().size());
+				for (Requirement r : a.getRequirements()) {
+					out.writeInt(stringIds.get(r.getName()));
+					out.writeInt(stringIds.get(r.getType().name()));
+					out.writeInt(stringIds.get(r.getVersion().getVersionString()));
+					out.writeInt(stringIds.get(r.getRepoType().name()));
+					out.writeInt(stringIds.get(r.getRepo()));
+				}
+			}
+		} finally {
+			out.close();
+		}
+
+		if (!tmpFile.renameTo(cacheFile)) {
+			tmpFile.delete();
+			throw new IOException("Can't move " + tmpFile + " to " + cacheFile);
+		}
+	}
+
+	/**
+	 * Read an index previously stored with writeCache.
+	 *
+	 * @throws IOException
+	 *             also if the file is corrupt
+	 */
+	public CachedIndex readCache(File cacheFile) throws IOException {
+		long size = cacheFile.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(
+				cacheFile)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown index cache format");
+			}
+			String etag = in.readUTF();
+			long lastModified = in.readLong();
+			String source = in.readUTF();
+			long sequence = in.readLong();
+
+			// every string takes its 2 byte length at least
+			String[] strings = new String[checkCount(in.readInt(), size / 2)];
+			for (int i = 0; i < strings.length; i++) {
+				strings[i] = in.readUTF();
+			}
+
+			// versions are shared between artifacts and requirements, parse
+			// each one only once
+			Map<String, Version> versions = new HashMap<String, Version>();
+			// artifacts and requirements take 5 string ids and a count
+			int count = checkCount(in.readInt(), size / 24);
+			List<ArchiveArtifact> artifacts = new ArrayList<ArchiveArtifact>(count);
+			for (int i = 0; i < count; i++) {
+				String name = strings[in.readInt()];
+				Version version = getVersion(strings[in.readInt()], versions);
+				String file = strings[in.readInt()];
+				String md5 = strings[in.readInt()];
+				String sha256 = strings[in.readInt()];
+				int reqCount = checkCount(in.readInt(), size / 20);
+				List<Requirement> reqs = new ArrayList<Requirement>(reqCount);
+				for (int j = 0; j < reqCount; j++) {
+					String reqName = strings[in.readInt()];
+					ReqType type = ReqType.valueOf(strings[in.readInt()]);
+					String reqVersion = strings[in.readInt()];
+					RepositoryType repoType = RepositoryType.valueOf(strings[in.readInt()]);
+					String repo = strings[in.readInt()];
+					reqs.add(new Requirement(reqName, type, reqVersion, repoType, repo));
+				}
+				artifacts.add(new ArchiveArtifact(name, version, file, md5,
+						"".equals(sha256) ? null : sha256, null, reqs));
+			}
+
+			return new CachedIndex("".equals(etag) ? null : etag, lastModified, source, artifacts,
+					sequence);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt index cache, unknown string " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Corrupt index cache: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Check a count read from the cache before allocating for it.
+	 */
+	private static int checkCount(int count, long max) throws IOException {
+		if (count < 0 || count > max) {
+			throw new IOException("Corrupt index cache, wrong count " + count);
+		}
+		return count;
+	}
+
+	private static String getSha256(ArchiveArtifact a) {
+		return a.getSha256() == null ? "" : a.getSha256();
+	}
+
+	private static void addString(String s, List<String> strings, Map<String, Integer> stringIds) {
+		if (!stringIds.containsKey(s)) {
+			stringIds.put(s, strings.size());
+			strings.add(s);
+		}
+	}
+
+	private static Version getVersion(String s, Map<String, Version> versions) {
+		Version v = versions.get(s);
+		if (v == null) {
+			v = new Version(s);
+			versions.put(s, v);
+		}
+		return v;
+	}
+}
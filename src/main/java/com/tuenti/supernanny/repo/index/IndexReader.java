@@ -2,10 +2,14 @@ package com.tuenti.supernanny.repo.index;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import com.tuenti.supernanny.dependencies.DependencyParser;
+import com.tuenti.supernanny.dependencies.InvalidFormatException;
 import com.tuenti.supernanny.dependencies.SNDependencyParser;
 import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
 import com.tuenti.supernanny.repo.artifacts.ReqType;
@@ -56,6 +60,8 @@ public class IndexReader {
 		}
 	}
 	
+	private static final String REMOVED_FIELD = "Removed:";
+
 	private CountingBufferedReader reader;
 	private DependencyParser depParser;
 
@@ -76,6 +82,31 @@ public class IndexReader {
 		throw new UnexpectedField("Expected field \"" + name + "\" but got \"" + line + "\" in line " + reader.getNline());
 	}
 
+	/**
+	 * Read a field that may be missing, followed by a mandatory one.
+	 *
+	 * @return value of the optional field, null if it isn't there
+	 */
+	private String readOptionalField(String name, String next) throws EndOfFileException,
+			UnexpectedField, IOException {
+		String line = reader.readLine();
+		if (line == null) {
+			throw new EndOfFileException();
+		}
+		String value = null;
+		if (line.startsWith(name)) {
+			value = line.substring(name.length()).trim();
+			line = reader.readLine();
+			if (line == null) {
+				throw new EndOfFileException();
+			}
+		}
+		if (!line.startsWith(next)) {
+			throw new UnexpectedField("Expected field \"" + next + "\" but got \"" + line + "\" in line " + reader.getNline());
+		}
+		return value;
+	}
+
 	private List<String> readDeps() throws EndOfFileException, UnexpectedField, IOException {
 		String line;
 		List<String> deps = new LinkedList<String>();
@@ -92,28 +123,102 @@ public class IndexReader {
 	}
 
 	public List<ArchiveArtifact> parse() throws IOException {
-		String name, version, file, md5;
-		List<String> deps;
 		List<ArchiveArtifact> artifacts = new LinkedList<ArchiveArtifact>();
+		try {
+			readArtifacts(artifacts);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		return artifacts;
+	}
+
+	/**
+	 * Parse the whole index.
+	 *
+	 * @throws IOException
+	 *             if an entry is broken or the index is truncated, instead of
+	 *             returning the artifacts read until then
+	 */
+	public List<ArchiveArtifact> parseStrict() throws IOException {
+		List<ArchiveArtifact> artifacts = new LinkedList<ArchiveArtifact>();
+		readArtifacts(artifacts);
+		return artifacts;
+	}
+
+	private void readArtifacts(List<ArchiveArtifact> artifacts) throws IOException {
 		try {
 			while (true) {
+				String name;
 				try {
 					name = readField("Name:");
 				} catch (EndOfFileException e) {
 					// expected end of file
+					return;
+				}
+				artifacts.add(readArtifact(name));
+			}
+		} catch (EndOfFileException e) {
+			throw new IOException("Unexpected end of index in line " + reader.getNline());
+		} catch (UnexpectedField e) {
+			throw new IOException(e.getMessage());
+		} catch (InvalidFormatException e) {
+			throw new IOException("Invalid dependency in index: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Apply a delta of the index to the given artifacts. Deltas have the index
+	 * format, their entries replacing the artifacts with the same file, plus
+	 * "Removed: file" entries.
+	 *
+	 * @return the updated artifacts
+	 * @throws IOException
+	 *             if the delta is broken, nothing is applied then
+	 */
+	public List<ArchiveArtifact> applyDelta(List<ArchiveArtifact> artifacts) throws IOException {
+		Map<String, ArchiveArtifact> byFile = new LinkedHashMap<String, ArchiveArtifact>();
+		for (ArchiveArtifact a : artifacts) {
+			byFile.put(a.getFilename(), a);
+		}
+		try {
+			while (true) {
+				String line = reader.readLine();
+				if (line == null) {
 					break;
 				}
-				version = readField("Version:");
-				file = readField("File:");
-				md5 = readField("MD5:");
-				readField("Deps:");
-				deps = readDeps();
-				List<Requirement> reqs = depParser.parseDeps(deps);
-				artifacts.add(new ArchiveArtifact(name, new Version(version), file, md5, null, reqs));
+				if (line.startsWith(REMOVED_FIELD)) {
+					byFile.remove(line.substring(REMOVED_FIELD.length()).trim());
+					line = reader.readLine();
+					if (line != null && !"".equals(line)) {
+						throw new UnexpectedField("Expected an empty line but got \"" + line
+								+ "\" in line " + reader.getNline());
+					}
+				} else if (line.startsWith("Name:")) {
+					ArchiveArtifact a = readArtifact(line.substring("Name:".length()).trim());
+					byFile.put(a.getFilename(), a);
+				} else {
+					throw new UnexpectedField("Expected field \"Name:\" or \"" + REMOVED_FIELD
+							+ "\" but got \"" + line + "\" in line " + reader.getNline());
+				}
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
+		} catch (EndOfFileException e) {
+			throw new IOException("Unexpected end of index delta in line " + reader.getNline());
+		} catch (UnexpectedField e) {
+			throw new IOException(e.getMessage());
+		} catch (InvalidFormatException e) {
+			throw new IOException("Invalid dependency in index delta: " + e.getMessage());
 		}
-		return artifacts;
+		return new ArrayList<ArchiveArtifact>(byFile.values());
+	}
+
+	private ArchiveArtifact readArtifact(String name) throws EndOfFileException, UnexpectedField,
+			InvalidFormatException, IOException {
+		String version = readField("Version:");
+		String file = readField("File:");
+		String md5 = readField("MD5:");
+		String sha256 = readOptionalField("SHA256:", "Deps:");
+		List<String> deps = readDeps();
+		List<Requirement> reqs = depParser.parseDeps(deps);
+		return new ArchiveArtifact(name, new Version(version), file, md5, sha256, null, reqs);
 	}
 }
@@ -0,0 +1,141 @@
+package com.tuenti.supernanny.repo.index;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.util.EntityUtils;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+import com.tuenti.supernanny.http.HttpTransport;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.index.IndexCache.CachedIndex;
+
+/**
+ * Waits for a published artifact to show up in the index of its repo.
+ *
+ * The archive is checked first with HEAD requests, the index can't list it
+ * before it's there. Then the index is revalidated with conditional requests,
+ * so it's only downloaded and parsed again when it changed. Checks are spaced
+ * with an exponential backoff.
+ *
+ * Revalidations ask the server to hold the answer until the index changes
+ * (Prefer: wait, RFC 7240). Servers supporting it (see
+ * indexGenerator/index_server.py) answer as soon as the index is updated, the
+ * rest answer right away and are polled.
+ */
+public class IndexWatcher {
+	private static final long FIRST_INTERVAL = 250;
+	private static final long MAX_INTERVAL = 4000;
+	/** Longest the server is asked to hold a revalidation, in seconds. */
+	private static final int MAX_WAIT = 20;
+	private static final String UNKNOWN_MD5 = "unknown";
+
+	@Inject
+	private Logger l;
+	@Inject
+	private CliParser p;
+	@Inject
+	private IndexCache indexCache;
+	@Inject
+	private HttpTransport transport;
+
+	/**
+	 * Wait until the index of the repo lists the artifact.
+	 *
+	 * @param previous
+	 *            index loaded before publishing, null if there's none
+	 * @param fileName
+	 *            archive published to the repo
+	 * @param md5
+	 *            MD5 of the published archive, null if unknown. An index
+	 *            listing the version with another MD5 is an older publication
+	 *            of it.
+	 * @param timeout
+	 *            milliseconds to wait
+	 * @return the index listing the artifact, null if it didn't in time
+	 */
+	public CachedIndex waitFor(String uri, CachedIndex previous, String fileName, String name,
+			String version, String md5, long timeout) {
+		long deadline = System.currentTimeMillis() + timeout;
+		long interval = FIRST_INTERVAL;
+		if (HttpTransport.handles(uri)) {
+			while (!exists(uri + fileName)) {
+				if (!sleep(interval, deadline)) {
+					return null;
+				}
+				interval = Math.min(interval * 2, MAX_INTERVAL);
+			}
+		}
+
+		int maxWait = Math.max(0, Math.min(MAX_WAIT, Integer.parseInt(p.httpTimeout) / 2));
+		CachedIndex index = previous;
+		interval = FIRST_INTERVAL;
+		while (true) {
+			long start = System.currentTimeMillis();
+			if (start >= deadline) {
+				return null;
+			}
+			int wait = (int) Math.min(maxWait, (deadline - start) / 1000);
+			try {
+				index = indexCache.refresh(uri, index, index == null ? 0 : wait);
+				if (lists(index, name, version, md5)) {
+					return index;
+				}
+			} catch (IOException e) {
+				l.fine("Checking the index of " + uri + " failed: " + e.getMessage());
+			}
+
+			// a held request already waited
+			if (!sleep(interval - (System.currentTimeMillis() - start), deadline)) {
+				return null;
+			}
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+		}
+	}
+
+	private boolean lists(CachedIndex index, String name, String version, String md5) {
+		for (ArchiveArtifact a : index.artifacts) {
+			if (name.equals(a.getName()) && version.equals(a.getVersion().getVersionString())) {
+				if (md5 == null || md5.equalsIgnoreCase(a.getMd5())
+						|| UNKNOWN_MD5.equals(a.getMd5())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private boolean exists(String url) {
+		try {
+			EntityUtils.consume(transport.execute(new HttpHead(url), HttpStatus.SC_OK).getEntity());
+			return true;
+		} catch (FileNotFoundException e) {
+			l.fine(url + " not found yet");
+		} catch (IOException e) {
+			l.fine("Checking " + url + " failed: " + e.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Sleep the given time, without going past the deadline.
+	 *
+	 * @return if there's time left
+	 */
+	private boolean sleep(long millis, long deadline) {
+		long sleep = Math.min(millis, deadline - System.currentTimeMillis());
+		if (sleep > 0) {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return System.currentTimeMillis() < deadline;
+	}
+}
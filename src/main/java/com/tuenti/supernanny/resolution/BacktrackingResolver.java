@@ -0,0 +1,252 @@
+package com.tuenti.supernanny.resolution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.tuenti.supernanny.repo.artifacts.Artifact;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.repo.exceptions.ResolutionException;
+import com.tuenti.supernanny.util.Versions;
+
+/**
+ * Resolver that backtracks on conflicts instead of giving up.
+ *
+ * Artifacts are decided one name at a time, in the order they are first
+ * required, trying the most recent candidate first. A candidate is skipped if
+ * it doesn't match every requirement already placed on its name by the chosen
+ * artifacts (version bounds), or if its own requirements don't match an
+ * already chosen artifact. When no candidate is left the previous decision is
+ * revisited with its next candidate.
+ *
+ * When there are no conflicts the result is the same as the eager resolver's.
+ *
+ * Only the final set of artifacts is notified to the listener, since any
+ * choice can be undone until the resolution ends.
+ */
+public class BacktrackingResolver extends EagerResolver {
+	/** Candidates tried before giving up, the search is exponential at worst. */
+	private static final int MAX_STEPS = 1000000;
+
+	/**
+	 * A requirement placed on a name, by an artifact or by the initial list.
+	 */
+	private static class Constraint {
+		private final Requirement requirement;
+		private final Artifact source;
+
+		private Constraint(Requirement requirement, Artifact source) {
+			this.requirement = requirement;
+			this.source = source;
+		}
+	}
+
+	/**
+	 * Decision of the artifact for a name and what has to be undone to
+	 * revisit it.
+	 */
+	private static class Decision {
+		private final String name;
+		private final List<Artifact> candidates;
+		private int index = -1;
+		private int orderMark;
+		private List<String> constrained = new ArrayList<String>();
+
+		private Decision(String name, List<Artifact> candidates) {
+			this.name = name;
+			this.candidates = candidates;
+		}
+	}
+
+	/**
+	 * Candidates by requirement, keyed on its string since Requirement has no
+	 * equals, so revisited names don't look them up again.
+	 */
+	private final Map<String, List<Artifact>> candidateCache = new HashMap<String, List<Artifact>>();
+
+	private Map<String, List<Constraint>> constraints;
+	private Map<String, Artifact> chosen;
+	private List<String> order;
+	private String lastConflict;
+	private int steps;
+
+	@Override
+	public Set<Artifact> resolve(List<Requirement> initialRequirements,
+			ResolutionListener listener) throws ResolutionException {
+		constraints = new HashMap<String, List<Constraint>>();
+		chosen = new HashMap<String, Artifact>();
+		order = new ArrayList<String>();
+		lastConflict = null;
+		steps = 0;
+
+		for (Requirement req : initialRequirements) {
+			addConstraint(req, null);
+		}
+
+		LinkedList<Decision> decisions = new LinkedList<Decision>();
+		while (decisions.size() < order.size()) {
+			String name = order.get(decisions.size());
+			Decision decision = new Decision(name, getCandidates(name));
+			decision.orderMark = order.size();
+			decisions.add(decision);
+
+			// find the next decision that can take a candidate, going back as
+			// needed
+			while (!tryNextCandidate(decision)) {
+				decisions.removeLast();
+				if (decisions.isEmpty()) {
+					throw new ResolutionException(lastConflict);
+				}
+				decision = decisions.getLast();
+				undo(decision);
+			}
+		}
+
+		warnDifferentMajors();
+		Set<Artifact> result = new HashSet<Artifact>(chosen.values());
+		if (listener != null) {
+			for (Artifact artifact : result) {
+				listener.artifactChosen(artifact);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Choose the next compatible candidate of the decision.
+	 *
+	 * @return false if there are no candidates left
+	 */
+	private boolean tryNextCandidate(Decision decision) throws ResolutionException {
+		while (++decision.index < decision.candidates.size()) {
+			if (++steps > MAX_STEPS) {
+				throw new ResolutionException("Giving up resolution after " + MAX_STEPS
+						+ " steps, last conflict: " + lastConflict);
+			}
+			Artifact candidate = decision.candidates.get(decision.index);
+			if (isCompatible(candidate)) {
+				chosen.put(decision.name, candidate);
+				for (Requirement req : candidate.getRequirements()) {
+					addConstraint(req, candidate);
+					decision.constrained.add(req.getName());
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Undo the current choice of a decision, leaving it ready to try its next
+	 * candidate.
+	 */
+	private void undo(Decision decision) {
+		chosen.remove(decision.name);
+		for (int i = decision.constrained.size() - 1; i >= 0; i--) {
+			List<Constraint> list = constraints.get(decision.constrained.get(i));
+			list.remove(list.size() - 1);
+			if (list.isEmpty()) {
+				constraints.remove(decision.constrained.get(i));
+			}
+		}
+		decision.constrained.clear();
+		while (order.size() > decision.orderMark) {
+			order.remove(order.size() - 1);
+		}
+	}
+
+	private void addConstraint(Requirement req, Artifact source) {
+		List<Constraint> list = constraints.get(req.getName());
+		if (list == null) {
+			list = new ArrayList<Constraint>(2);
+			constraints.put(req.getName(), list);
+			if (!chosen.containsKey(req.getName())) {
+				order.add(req.getName());
+			}
+		}
+		list.add(new Constraint(req, source));
+	}
+
+	/**
+	 * Check the candidate against the requirements placed on its name, and
+	 * its requirements against the chosen artifacts.
+	 */
+	private boolean isCompatible(Artifact candidate) {
+		for (Constraint constraint : constraints.get(candidate.getName())) {
+			if (!constraint.requirement.matches(candidate.getName(), candidate.getVersion())) {
+				lastConflict = "Requirement conflict: "
+						+ (constraint.source == null ? "the project" : constraint.source
+								.toShortString()) + " depends on " + constraint.requirement + ", which "
+						+ candidate.toShortString() + " doesn't match.";
+				return false;
+			}
+		}
+		for (Requirement req : candidate.getRequirements()) {
+			Artifact other = chosen.get(req.getName());
+			if (other != null && !req.matches(other.getName(), other.getVersion())) {
+				lastConflict = "Requirement conflict: " + candidate.toShortString()
+						+ " depends on " + req + " but " + other.toShortString()
+						+ " is already selected.";
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Warn of the chosen artifacts with another major version than the one
+	 * an artifact requires, like the eager resolver.
+	 */
+	private void warnDifferentMajors() {
+		for (Map.Entry<String, List<Constraint>> entry : constraints.entrySet()) {
+			Artifact a = chosen.get(entry.getKey());
+			for (Constraint constraint : entry.getValue()) {
+				if (constraint.source != null
+						&& Versions.isDifferentMajor(a.getVersion(), constraint.requirement.getVersion())) {
+					System.out.println("WARNING: Differing major versions for " + a.getName() + ": ["
+							+ constraint.source.toShortString() + "] requires "
+							+ constraint.requirement + " and " + a.getVersion() + " is chosen.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Candidates for the name, most recent first, from the repo of the first
+	 * requirement placed on it.
+	 */
+	private List<Artifact> getCandidates(String name) {
+		Requirement req = constraints.get(name).get(0).requirement;
+		checkSymlink(req);
+		String key = req.getRepoType() + " " + req;
+		List<Artifact> candidates = candidateCache.get(key);
+		if (candidates != null) {
+			return candidates;
+		}
+		candidates = new ArrayList<Artifact>();
+		try {
+			List<Artifact> possible = getPossibleArtifactsFor(req);
+			if (possible != null) {
+				for (Artifact a : possible) {
+					// discard what the requirement alone already excludes
+					if (req.matches(a.getName(), a.getVersion())) {
+						candidates.add(a);
+					}
+				}
+			}
+		} catch (ResolutionException e) {
+			// no candidates, like a failed lookup in the eager resolver
+		}
+		Collections.sort(candidates, Artifact.getArtifactComparator(true));
+		if (candidates.isEmpty()) {
+			lastConflict = "No artifact found for " + req;
+		}
+		candidateCache.put(key, candidates);
+		return candidates;
+	}
+}
@@ -0,0 +1,115 @@
+package com.tuenti.supernanny.resolution;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+import com.tuenti.supernanny.repo.Repository;
+import com.tuenti.supernanny.repo.artifacts.Artifact;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.repo.exceptions.ResolutionException;
+
+/**
+ * Eager resolver that looks up the candidates of a whole level of the
+ * dependency graph in parallel.
+ *
+ * Before each level is resolved, the requirements that may need a lookup are
+ * grouped by repo and each group is looked up in its own task (a repo, like a
+ * git clone, can't serve two lookups at the same time). The level is then
+ * resolved exactly like the eager resolver does, taking the candidates from
+ * the lookups, so the result is the same.
+ *
+ * The lookups run in a pool of their own, so resolve must not be called from
+ * one of its threads.
+ */
+public class ConcurrentResolver extends EagerResolver {
+	@Inject
+	@Named("resolver")
+	private ExecutorService executor;
+
+	/**
+	 * Candidates of a requirement, or the error looking them up, thrown only
+	 * if the resolution actually needs them.
+	 */
+	private static class Lookup {
+		private List<Artifact> artifacts;
+		private ResolutionException error;
+	}
+
+	private final Map<Requirement, Lookup> lookups = new ConcurrentHashMap<Requirement, Lookup>();
+
+	@Override
+	protected void prefetch(Collection<Requirement> requirements) throws ResolutionException {
+		Map<String, List<Requirement>> byRepo = new LinkedHashMap<String, List<Requirement>>();
+		for (Requirement req : requirements) {
+			checkSymlink(req);
+			if (lookups.containsKey(req)) {
+				continue;
+			}
+			String key = repoProvider.getRepoKey(req.getRepoType(), req.getRepo());
+			List<Requirement> group = byRepo.get(key);
+			if (group == null) {
+				group = new ArrayList<Requirement>();
+				byRepo.put(key, group);
+			}
+			group.add(req);
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (final List<Requirement> group : byRepo.values()) {
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					for (Requirement req : group) {
+						lookup(req);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ResolutionException(e);
+			} catch (ExecutionException e) {
+				throw new ResolutionException(e.getCause());
+			}
+		}
+	}
+
+	private void lookup(Requirement req) {
+		Lookup lookup = new Lookup();
+		try {
+			Repository repo = repoProvider.getRepo(req.getRepoType(), req.getRepo());
+			lookup.artifacts = repo.getPossibleArtifactsFor(req);
+		} catch (ResolutionException e) {
+			lookup.error = e;
+		} catch (RuntimeException e) {
+			lookup.error = new ResolutionException(e);
+		}
+		lookups.put(req, lookup);
+	}
+
+	@Override
+	protected List<Artifact> getPossibleArtifactsFor(Requirement req) throws ResolutionException {
+		Lookup lookup = lookups.get(req);
+		if (lookup == null) {
+			return super.getPossibleArtifactsFor(req);
+		}
+		if (lookup.error != null) {
+			throw lookup.error;
+		}
+		return lookup.artifacts;
+	}
+}
@@ -15,9 +15,11 @@ import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
@@ -25,6 +27,8 @@ import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.Util;
 import com.tuenti.supernanny.cli.handlers.CliParser;
 import com.tuenti.supernanny.dependencies.DependencyParser;
@@ -47,30 +51,115 @@ import com.tuenti.supernanny.repo.exceptions.ResolutionException;
  */
 public class DepFetcher {
 
+	private static final String STAGING_DIR = ".supernanny-staging";
+
 	private final class FetchTask implements Callable<FetchTask> {
 		private final Set<String> expectedDirs;
 		private final Artifact artifact;
+		private final File staging;
+		private volatile boolean aborted;
 		private boolean hadToFetch;
 
 		private FetchTask(Set<String> expectedDirs, Artifact artifact) {
+			this(expectedDirs, artifact, null);
+		}
+
+		/**
+		 * @param staging
+		 *            folder to fetch into instead of the deps folder, null to
+		 *            fetch in place
+		 */
+		private FetchTask(Set<String> expectedDirs, Artifact artifact, File staging) {
 			this.expectedDirs = expectedDirs;
 			this.artifact = artifact;
+			this.staging = staging;
 		}
 
 		@Override
 		public FetchTask call() throws Exception {
-			hadToFetch = fetchArtifact(expectedDirs, artifact);
+			if (!aborted) {
+				hadToFetch = fetchArtifact(expectedDirs, artifact, staging);
+			}
 			return this;
 		}
 	}
 
+	/**
+	 * Starts fetching artifacts as the resolver chooses them. Everything is
+	 * fetched to a staging folder, and only moved to the deps folder once the
+	 * resolution has succeeded, so a conflict leaves the deps untouched.
+	 */
+	private final class PipelinedFetch implements ResolutionListener {
+		private final Set<String> expectedDirs;
+		private final File staging;
+		private final Set<String> submitted = new HashSet<String>();
+		private final List<FetchTask> tasks = new LinkedList<FetchTask>();
+		private final List<Future<FetchTask>> futures = new LinkedList<Future<FetchTask>>();
+
+		private PipelinedFetch(Set<String> expectedDirs, File staging) {
+			this.expectedDirs = expectedDirs;
+			this.staging = staging;
+		}
+
+		@Override
+		public void artifactChosen(Artifact artifact) {
+			if (!submitted.add(artifact.getName())) {
+				return;
+			}
+			FetchTask task = new FetchTask(expectedDirs, artifact, staging);
+			tasks.add(task);
+			futures.add(executor.submit(task));
+			expectedDirs.add(artifact.getName());
+		}
+
+		/**
+		 * Stop the pending fetches, wait for the running ones and delete
+		 * everything fetched.
+		 */
+		private void rollback() throws IOException {
+			for (FetchTask task : tasks) {
+				task.aborted = true;
+			}
+			for (Future<FetchTask> future : futures) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					// it's being discarded anyway
+				}
+			}
+			util.deleteDir(staging);
+		}
+
+		/**
+		 * Move the fetched artifacts to the deps folder.
+		 */
+		private void commit(List<FetchTask> fetched) throws IOException {
+			for (FetchTask task : fetched) {
+				if (!task.hadToFetch) {
+					continue;
+				}
+				File staged = new File(staging, task.artifact.getName());
+				File destination = new File(util.getDepsFolder(), task.artifact.getName());
+				if (destination.exists() || util.isSymlink(destination)) {
+					util.deleteDir(destination);
+				}
+				if (!staged.renameTo(destination)) {
+					throw new IOException("Can't move " + staged + " to " + destination);
+				}
+			}
+			util.deleteDir(staging);
+		}
+	}
+
 	Util util;
 	Logger l;
 	ExecutorService executor;
 	@Inject
 	RepoProvider repoProvider;
 	@Inject
-	Resolver resolver;
+	Provider<Resolver> resolverProvider;
+	@Inject
+	LockFile lockFileWriter;
 
 	@Inject
 	public DepFetcher(ExecutorService executor, Util util, Logger l) {
@@ -83,13 +172,15 @@ public class DepFetcher {
 		try {
 			doResolve(p);
 		} finally {
+			// the fetcher's own pool, the resolver has another
 			executor.shutdown();
 		}
 	}
 
 	private void doResolve(CliParser p) throws IOException {
+		Resolver resolver = resolverProvider.get();
+
 		// fetch needed deps
-		System.out.println("Init repos");
 		DependencyParser dparser = new SNDependencyParser(ReqType.SW, util);
 		List<Requirement> reqs = null;
 		try {
@@ -105,30 +196,74 @@ public class DepFetcher {
 		DependencyParser defaultParser = new SNDependencyParser(ReqType.GE, util);
 		repoProvider.setDependencyParser(defaultParser);
 
-		// init all known repos in parallel to speed things up
-		try {
-			repoProvider.warmUp(reqs, executor);
-		} catch (Exception e) {
-			System.err.println("Error initializing repos: " + e);
-			System.exit(1);
+		File lockFile = LockFile.getLockFile(p.depfile.split(",")[0]);
+		List<Artifact> lockedArtifacts = null;
+		if (p.locked) {
+			// the graph is already resolved, repos aren't needed until fetch
+			System.out.println("Read " + lockFile);
+			lockedArtifacts = readLockFile(lockFile, reqs);
+		} else {
+			// init all known repos in parallel to speed things up
+			System.out.println("Init repos");
+			try {
+				repoProvider.warmUp(reqs, executor);
+			} catch (Exception e) {
+				System.err.println("Error initializing repos: " + e);
+				System.exit(1);
+			}
 		}
 
 		final Set<String> expectedDirs = Collections.synchronizedSet(new HashSet<String>());
 		try {
-			System.out.println("Resolve dependencies");
-			Set<Artifact> artifacts = resolver.resolve(reqs);
-
-			System.out.println("Fetch dependencies");
-			List<Future<FetchTask>> futures = new LinkedList<Future<FetchTask>>();
-			for (final Artifact artifact : artifacts) {
-				futures.add(executor.submit(new FetchTask(expectedDirs, artifact)));
-				expectedDirs.add(artifact.getName());
+			List<Future<FetchTask>> futures;
+			Set<Artifact> artifacts = null;
+			PipelinedFetch pipeline = null;
+			if (lockedArtifacts != null) {
+				System.out.println("Fetch locked dependencies");
+				futures = new LinkedList<Future<FetchTask>>();
+				for (final Artifact artifact : lockedArtifacts) {
+					futures.add(executor.submit(new FetchTask(expectedDirs, artifact)));
+					expectedDirs.add(artifact.getName());
+				}
+			} else if (p.pipeline) {
+				File staging = new File(util.getDepsFolder(), STAGING_DIR);
+				if (staging.exists()) {
+					util.deleteDir(staging);
+				}
+				staging.mkdirs();
+				expectedDirs.add(STAGING_DIR);
+				pipeline = new PipelinedFetch(expectedDirs, staging);
+
+				System.out.println("Resolve and fetch dependencies");
+				boolean resolved = false;
+				try {
+					artifacts = resolver.resolve(reqs, pipeline);
+					resolved = true;
+				} finally {
+					if (!resolved) {
+						pipeline.rollback();
+					}
+				}
+				futures = pipeline.futures;
+			} else {
+				System.out.println("Resolve dependencies");
+				artifacts = resolver.resolve(reqs);
+
+				System.out.println("Fetch dependencies");
+				futures = new LinkedList<Future<FetchTask>>();
+				for (final Artifact artifact : artifacts) {
+					futures.add(executor.submit(new FetchTask(expectedDirs, artifact)));
+					expectedDirs.add(artifact.getName());
+				}
 			}
 
 			List<String[]> rows = new ArrayList<String[]>();
+			List<FetchTask> fetched = new ArrayList<FetchTask>();
+			boolean failed = false;
 			for (Future<FetchTask> future : futures) {
 				try {
 					FetchTask fetchTask = future.get();
+					fetched.add(fetchTask);
 					String prefix = "Ok";
 					if (fetchTask.hadToFetch) {
 						prefix = "Get";
@@ -139,9 +274,16 @@ public class DepFetcher {
 							artifact.getOrigin().getRepoType().toString(), artifact.getOriginUrl(), });
 				} catch (Exception e) {
 					e.printStackTrace();
+					failed = true;
 				}
 			}
 			util.printColumns(rows, "  ", "  ", 1, true);
+			if (pipeline != null) {
+				pipeline.commit(fetched);
+			}
+			if (artifacts != null && !failed) {
+				lockFileWriter.write(lockFile, artifacts);
+			}
 
 			if (!p.skipCleanup) {
 				System.out.println("Cleanup");
@@ -166,11 +308,37 @@ public class DepFetcher {
 		}
 	}
 
-	private boolean fetchArtifact(Set<String> expectedDirs, Artifact artifact) throws IOException {
+	/**
+	 * Read the locked artifacts, checking that the lock is still valid for the
+	 * dep file requirements.
+	 */
+	private List<Artifact> readLockFile(File lockFile, List<Requirement> reqs) throws IOException {
+		if (!lockFile.exists()) {
+			throw new SuperNannyError("Lock file " + lockFile
+					+ " not found, fetch once without --locked to create it");
+		}
+		List<Artifact> artifacts = lockFileWriter.read(lockFile);
+		Map<String, Artifact> byName = new HashMap<String, Artifact>();
+		for (Artifact artifact : artifacts) {
+			byName.put(artifact.getName(), artifact);
+		}
+		for (Requirement req : reqs) {
+			Artifact artifact = byName.get(req.getName());
+			if (artifact == null || !req.matches(artifact.getName(), artifact.getVersion())) {
+				throw new SuperNannyError("Lock file " + lockFile + " doesn't satisfy " + req
+						+ ", fetch without --locked to update it");
+			}
+		}
+		return artifacts;
+	}
+
+	private boolean fetchArtifact(Set<String> expectedDirs, Artifact artifact, File staging)
+			throws IOException {
 		Repository repository = artifact.getOrigin();
 		boolean isUpdated = isUpdated(artifact);
 		if (!isUpdated) {
-			File destination = new File(util.getDepsFolder(), artifact.getName());
+			File folder = staging == null ? util.getDepsFolder() : staging;
+			File destination = new File(folder, artifact.getName());
 			repository.fetch(artifact, destination);
 		}
 
@@ -2,10 +2,16 @@ package com.tuenti.supernanny.resolution;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.inject.Inject;
@@ -20,7 +26,7 @@ import com.tuenti.supernanny.util.Versions;
 
 public class EagerResolver implements Resolver {
 	@Inject
-	private RepoProvider repoProvider;
+	protected RepoProvider repoProvider;
 	@Inject
 	private Util util;
 
@@ -42,68 +48,128 @@ public class EagerResolver implements Resolver {
 	 */
 	@Override
 	public Set<Artifact> resolve(List<Requirement> initialRequirements) throws ResolutionException {
+		return resolve(initialRequirements, null);
+	}
+
+	/**
+	 * Eager resolution never changes a choice, so every artifact is notified
+	 * as soon as it's chosen.
+	 */
+	@Override
+	public Set<Artifact> resolve(List<Requirement> initialRequirements,
+			ResolutionListener listener) throws ResolutionException {
 		Set<Artifact> chosenArtifacts = new HashSet<Artifact>();
-		List<Artifact> unresolved = new ArrayList<Artifact>();
+		// chosen artifacts by name, conflicts are checked against it
+		Map<String, List<Artifact>> chosenByName = new HashMap<String, List<Artifact>>();
+		Deque<Artifact> unresolved = new ArrayDeque<Artifact>();
 		// process the initial list of requirements first getting the most
 		// recent artifact for all the requirements
+		prefetch(initialRequirements);
 		for (Requirement req : initialRequirements) {
 			Artifact artifact = getArtifactFor(req);
-			chosenArtifacts.add(artifact);
+			choose(artifact, chosenArtifacts, chosenByName, listener);
 			unresolved.add(artifact);
 		}
 
-		// resolve all dependencies of the the artifacts chosen until now
-		while (unresolved.size() > 0) {
-			Artifact artifact = unresolved.remove(0);
-			// resolve the requirements for each
-			List<Artifact> newArtifacts = resolveReq(artifact, chosenArtifacts);
-			unresolved.addAll(newArtifacts);
-			chosenArtifacts.addAll(newArtifacts);
+		// resolve all dependencies of the the artifacts chosen until now, one
+		// level of the dependency graph at a time
+		while (!unresolved.isEmpty()) {
+			prefetch(getPendingRequirements(unresolved, chosenByName));
+			int levelSize = unresolved.size();
+			for (int i = 0; i < levelSize; i++) {
+				Artifact artifact = unresolved.poll();
+				// resolve the requirements for each
+				List<Artifact> newArtifacts = resolveReq(artifact, chosenByName);
+				unresolved.addAll(newArtifacts);
+				for (Artifact newArtifact : newArtifacts) {
+					choose(newArtifact, chosenArtifacts, chosenByName, listener);
+				}
+			}
 		}
 
 		return chosenArtifacts;
 	}
 
+	private void choose(Artifact artifact, Set<Artifact> chosenArtifacts,
+			Map<String, List<Artifact>> chosenByName, ResolutionListener listener) {
+		if (!chosenArtifacts.add(artifact)) {
+			return;
+		}
+		List<Artifact> sameName = chosenByName.get(artifact.getName());
+		if (sameName == null) {
+			sameName = new ArrayList<Artifact>(1);
+			chosenByName.put(artifact.getName(), sameName);
+		}
+		sameName.add(artifact);
+		if (listener != null) {
+			listener.artifactChosen(artifact);
+		}
+	}
+
 	/**
 	 * Resolve the requirements of an artifact.
 	 * Verify that chosen artifacts are valid and return a list of the new artifacts needed.
 	 * 
 	 * @param artifact Artifact to resolve
-	 * @param chosenArtifacts The list of already chosen artifacts
+	 * @param chosenByName The already chosen artifacts, by name
 	 * @return List of new artifacts needed
 	 * @throws ResolutionException
 	 */
-	private List<Artifact> resolveReq(Artifact artifact, Set<Artifact> chosenArtifacts)
+	private List<Artifact> resolveReq(Artifact artifact, Map<String, List<Artifact>> chosenByName)
 			throws ResolutionException {
 		List<Artifact> newArtifacts = new ArrayList<Artifact>();
 		for (Requirement requirement : artifact.getRequirements()) {
-			boolean matched = false;
-			for (Artifact a : chosenArtifacts) {
-				if (requirement.getName().equals(a.getName())) {
-					if (!requirement.matches(a.getName(), a.getVersion())) {
-						throw new ResolutionException("Requirement conflict: "
-								+ artifact.toShortString() + " depends on " + requirement + " but "
-								+ a.toShortString() + " is already selected.");
-					} else {
-						// check if the major version is different to throw a
-						// warning
-						if (Versions.isDifferentMajor(a.getVersion(), requirement.getVersion())) {
-							System.out.println("WARNING: Differing major versions for " + a.getName() + ": ["									
-									+ artifact.toShortString() + "] requires " + requirement
-									+ " and " + a.getVersion() + " is chosen.");
-						}
-						matched = true;
-					}
-				}
-			}
-			if (!matched) {
+			List<Artifact> chosen = chosenByName.get(requirement.getName());
+			if (chosen == null) {
 				Artifact newArtifact = getArtifactFor(requirement);
 				newArtifacts.add(newArtifact);
+				continue;
+			}
+			for (Artifact a : chosen) {
+				if (!requirement.matches(a.getName(), a.getVersion())) {
+					throw new ResolutionException("Requirement conflict: "
+							+ artifact.toShortString() + " depends on " + requirement + " but "
+							+ a.toShortString() + " is already selected.");
+				}
+				// check if the major version is different to throw a
+				// warning
+				if (Versions.isDifferentMajor(a.getVersion(), requirement.getVersion())) {
+					System.out.println("WARNING: Differing major versions for " + a.getName() + ": ["
+							+ artifact.toShortString() + "] requires " + requirement
+							+ " and " + a.getVersion() + " is chosen.");
+				}
 			}
 		}
 		return newArtifacts;
 	}
 
+	/**
+	 * Called before each level of the graph is resolved with the requirements
+	 * that may need a lookup in it. Subclasses can look them up in advance,
+	 * the eager resolver does nothing.
+	 * 
+	 * @param requirements
+	 * @throws ResolutionException
+	 */
+	protected void prefetch(Collection<Requirement> requirements) throws ResolutionException {
+	}
+
+	/**
+	 * Requirements of the level that don't have an artifact chosen yet.
+	 */
+	private Collection<Requirement> getPendingRequirements(Collection<Artifact> level,
+			Map<String, List<Artifact>> chosenByName) {
+		Set<Requirement> pending = new LinkedHashSet<Requirement>();
+		for (Artifact artifact : level) {
+			for (Requirement requirement : artifact.getRequirements()) {
+				if (!chosenByName.containsKey(requirement.getName())) {
+					pending.add(requirement);
+				}
+			}
+		}
+		return pending;
+	}
+
 	/**
 	 * Get the artifact for the given requirement
 	 * 
@@ -115,19 +181,9 @@ public class EagerResolver implements Resolver {
 	 * @throws ResolutionException
 	 */
 	private Artifact getArtifactFor(Requirement req) throws ResolutionException {
-		// ingore dependencies that are a symlinks in libs folder
-		try {
-			File destination = new File(util.getDepsFolder(), req.getName());
-			if (util.isSymlink(destination)) {
-				req.setRepoType(RepositoryType.SYMLINK);
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		Repository repo = repoProvider.getRepo(req.getRepoType(), req.getRepo());
+		checkSymlink(req);
 
-		List<Artifact> possibleArtifactsFor = repo.getPossibleArtifactsFor(req);
+		List<Artifact> possibleArtifactsFor = getPossibleArtifactsFor(req);
 		if (possibleArtifactsFor != null) {
 			Collections.sort(possibleArtifactsFor,  Artifact.getArtifactComparator(true));
 			for (Artifact a: possibleArtifactsFor) {
@@ -139,4 +195,27 @@ public class EagerResolver implements Resolver {
 		
 		throw new ResolutionException("No artifact found for " + req);
 	}
+
+	/**
+	 * Ignore dependencies that are symlinks in the libs folder, they are
+	 * served by the symlink repo.
+	 */
+	protected void checkSymlink(Requirement req) {
+		try {
+			File destination = new File(util.getDepsFolder(), req.getName());
+			if (util.isSymlink(destination)) {
+				req.setRepoType(RepositoryType.SYMLINK);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Ask the requirement's repo for its candidate artifacts.
+	 */
+	protected List<Artifact> getPossibleArtifactsFor(Requirement req) throws ResolutionException {
+		Repository repo = repoProvider.getRepo(req.getRepoType(), req.getRepo());
+		return repo.getPossibleArtifactsFor(req);
+	}
 }
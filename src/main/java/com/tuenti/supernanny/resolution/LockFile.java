@@ -0,0 +1,162 @@
+package com.tuenti.supernanny.resolution;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.SuperNannyError;
+import com.tuenti.supernanny.dependencies.InvalidFormatException;
+import com.tuenti.supernanny.dependencies.RepositoryType;
+import com.tuenti.supernanny.dependencies.SNDependencyParser;
+import com.tuenti.supernanny.repo.RepoProvider;
+import com.tuenti.supernanny.repo.Repository;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.artifacts.Artifact;
+import com.tuenti.supernanny.repo.artifacts.DVCSArtifact;
+import com.tuenti.supernanny.repo.artifacts.ReqType;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.util.Version;
+
+/**
+ * Lock file with the fully resolved dependency graph (.DEP.lock).
+ *
+ * Written after every successful fetch, it has the same layout as the archive
+ * indexes, one stanza per artifact:
+ *
+ * <pre>
+ * Name: befw
+ * Version: 1.0.0
+ * Type: TARBZ2
+ * Uri: http://www.myartifacts.com/
+ * Ref: 0a8d7c3d585adb93c9f8a646dc4dbcdb
+ * File: befw-1.0.0.tar.bz2
+ * Deps:
+ *   tuenti-common TARBZ2 http://www.myartifacts.com/ &gt;=1.0
+ * </pre>
+ *
+ * Ref is the MD5 for archives and the changeset for DVCS artifacts (which
+ * have no File). With --locked the artifacts are fetched straight from it,
+ * without initializing repos or resolving.
+ */
+public class LockFile {
+	public static final String SUFFIX = ".lock";
+
+	@Inject
+	private RepoProvider repoProvider;
+
+	/**
+	 * Lock file of the given dep file.
+	 */
+	public static File getLockFile(String depFile) {
+		return new File(depFile + SUFFIX);
+	}
+
+	public void write(File lockFile, Collection<Artifact> artifacts) throws IOException {
+		List<Artifact> sorted = new ArrayList<Artifact>(artifacts);
+		Collections.sort(sorted, new Comparator<Artifact>() {
+			@Override
+			public int compare(Artifact a1, Artifact a2) {
+				return a1.getName().compareTo(a2.getName());
+			}
+		});
+
+		File tmpFile = new File(lockFile.getPath() + ".tmp");
+		BufferedWriter out = new BufferedWriter(new FileWriter(tmpFile));
+		try {
+			for (Artifact a : sorted) {
+				String ref = "";
+				String file = "";
+				if (a instanceof ArchiveArtifact) {
+					ref = ((ArchiveArtifact) a).getMd5();
+					file = ((ArchiveArtifact) a).getFilename();
+				} else if (a instanceof DVCSArtifact) {
+					ref = ((DVCSArtifact) a).getChangeset();
+				}
+				out.write("Name: " + a.getName() + "\n");
+				out.write("Version: " + a.getVersion().getVersionString() + "\n");
+				out.write("Type: " + a.getOrigin().getRepoType() + "\n");
+				out.write("Uri: " + a.getOriginUrl() + "\n");
+				out.write("Ref: " + (ref == null ? "" : ref) + "\n");
+				out.write("File: " + file + "\n");
+				out.write("Deps:\n");
+				for (Requirement r : a.getRequirements()) {
+					out.write("  " + r.getName() + " " + r.getRepoType() + " " + r.getRepo() + " "
+							+ r.getType() + r.getVersion().getVersionString() + "\n");
+				}
+				out.write("\n");
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(lockFile)) {
+			tmpFile.delete();
+			throw new IOException("Can't move " + tmpFile + " to " + lockFile);
+		}
+	}
+
+	/**
+	 * Read the artifacts of the lock file. Their repos are not initialized,
+	 * so nothing is downloaded until they are fetched.
+	 */
+	public List<Artifact> read(File lockFile) throws IOException {
+		SNDependencyParser depParser = new SNDependencyParser(ReqType.GE, null);
+		List<Artifact> artifacts = new LinkedList<Artifact>();
+		BufferedReader in = new BufferedReader(new FileReader(lockFile));
+		try {
+			String name;
+			while ((name = readField(in, "Name:", true)) != null) {
+				Version version = new Version(readField(in, "Version:", false));
+				RepositoryType type = RepositoryType.valueOf(readField(in, "Type:", false));
+				String uri = readField(in, "Uri:", false);
+				String ref = readField(in, "Ref:", false);
+				String file = readField(in, "File:", false);
+				readField(in, "Deps:", false);
+				List<String> deps = new LinkedList<String>();
+				String line;
+				while ((line = in.readLine()) != null && !"".equals(line)) {
+					deps.add(line.trim());
+				}
+				List<Requirement> reqs = depParser.parseDeps(deps);
+
+				Repository repo = repoProvider.getUninitializedRepo(type, uri);
+				if (type == RepositoryType.GIT || type == RepositoryType.MERCURIAL) {
+					String subDir = uri.contains("#") ? uri.replaceAll(".*#", "") : null;
+					artifacts.add(new DVCSArtifact(name, version, repo, ref, subDir, reqs));
+				} else if (type == RepositoryType.SYMLINK) {
+					artifacts.add(new Artifact(name, version, repo, reqs));
+				} else {
+					artifacts.add(new ArchiveArtifact(name, version, file, ref, repo, reqs));
+				}
+			}
+		} catch (InvalidFormatException e) {
+			throw new SuperNannyError("Invalid lock file " + lockFile + ": " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			throw new SuperNannyError("Invalid lock file " + lockFile + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+		return artifacts;
+	}
+
+	private String readField(BufferedReader in, String field, boolean optional) throws IOException {
+		String line = in.readLine();
+		if (line == null && optional) {
+			return null;
+		}
+		if (line == null || !line.startsWith(field)) {
+			throw new SuperNannyError("Expected field \"" + field + "\" in lock file but got \""
+					+ line + "\"");
+		}
+		return line.substring(field.length()).trim();
+	}
+}
@@ -0,0 +1,18 @@
+package com.tuenti.supernanny.resolution;
+
+import com.tuenti.supernanny.repo.artifacts.Artifact;
+
+/**
+ * Gets notified of every artifact a resolver settles on, before the whole
+ * resolution is done.
+ */
+public interface ResolutionListener {
+
+	/**
+	 * An artifact has been chosen. Resolution may still fail afterwards,
+	 * listeners must be able to undo whatever they do with it.
+	 * 
+	 * @param artifact
+	 */
+	public abstract void artifactChosen(Artifact artifact);
+}
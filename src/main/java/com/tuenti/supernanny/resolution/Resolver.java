@@ -20,4 +20,16 @@ public interface Resolver {
 	public abstract Set<Artifact> resolve(List<Requirement> initialRequirements)
 			throws ResolutionException;
 
-}
\ No newline at end of file
+	/**
+	 * Resolve the set of artifacts, notifying each artifact as soon as it's
+	 * chosen so it can be used before the resolution ends.
+	 * 
+	 * @param initialRequirements
+	 * @param listener
+	 *            notified from the resolving thread
+	 * @return Set of artifacts that meet all the given requirements
+	 * @throws ResolutionException In case the requirements can't be met
+	 */
+	public abstract Set<Artifact> resolve(List<Requirement> initialRequirements,
+			ResolutionListener listener) throws ResolutionException;
+}
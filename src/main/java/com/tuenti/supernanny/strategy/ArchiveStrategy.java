@@ -8,25 +8,51 @@
  */
 package com.tuenti.supernanny.strategy;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.SequenceInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.MessageFormat;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
 
 import com.google.inject.Inject;
 import com.googlecode.sardine.Sardine;
-import com.googlecode.sardine.SardineFactory;
 import com.googlecode.sardine.impl.SardineException;
+import com.googlecode.sardine.impl.SardineImpl;
 import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+import com.tuenti.supernanny.http.HttpDownloader;
+import com.tuenti.supernanny.http.HttpDownloader.InterruptedDownloadException;
+import com.tuenti.supernanny.http.HttpTransport;
+import com.tuenti.supernanny.repo.cache.ArtifactStore;
+import com.tuenti.supernanny.repo.cache.ExtractedStore;
+import com.tuenti.supernanny.util.CountingOutputStream;
+import com.tuenti.supernanny.util.IncrementalUpdater;
+import com.tuenti.supernanny.util.ReplayableInputStream;
+import com.tuenti.supernanny.util.TeeInputStream;
+import com.tuenti.supernanny.util.VerifyingInputStream;
 
 /**
  * Dependency handler interface for SuperNanny.
@@ -40,19 +66,250 @@ public class ArchiveStrategy {
 	public static final String TAR_XZ_EXT = ".tar.xz";
 	public static final String TAR_BZ2_EXT = ".tar.bz2";
 	public static final String TAR_GZ_EXT = ".tar.gz";
+	private static final String[] EXCLUDES = { ".hg", ".git" };
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long XZ_MEMORY_PER_THREAD = 128L * 1024 * 1024;
+	private static final long MEMORY_PER_THREAD = 32L * 1024 * 1024;
+	private static final int FETCH_ATTEMPTS = 3;
+	private static final int REPLAY_BUFFER_SIZE = 32 * 1024 * 1024;
+	private static final int PIPE_SIZE = 1024 * 1024;
+	private static final Pattern MD5 = Pattern.compile("[0-9a-fA-F]{32}");
 	@Inject
 	protected Logger l;
 	@Inject
 	Util util;
+	@Inject
+	ArtifactStore store;
+	@Inject
+	ExtractedStore extractedStore;
+	@Inject
+	TarArchiver archiver;
+	@Inject
+	IncrementalUpdater incrementalUpdater;
+	@Inject
+	HttpDownloader downloader;
+	@Inject
+	HttpTransport transport;
+	@Inject
+	CliParser p;
+
+	public void fetch(String uri, String fileName, String md5, String sha256, File checkoutFolder)
+			throws IOException {
+		if (isIncremental()) {
+			checkoutFolder.mkdirs();
+		} else {
+			init(checkoutFolder);
+		}
+
+		if (p.linkStore && extractedStore.isStorable(md5)) {
+			File extracted = extractedStore.get(md5);
+			if (extracted == null) {
+				File tmpFolder = extractedStore.newTmpFolder(md5);
+				try {
+					extractTo(uri, fileName, md5, sha256, tmpFolder);
+					extracted = extractedStore.put(md5, tmpFolder);
+				} finally {
+					if (tmpFolder.exists()) {
+						util.deleteDir(tmpFolder);
+					}
+				}
+			}
+			if (extractedStore.link(md5, extracted, checkoutFolder)) {
+				return;
+			}
+			// the store is in another file system, extract a copy
+		}
+		extractTo(uri, fileName, md5, sha256, checkoutFolder);
+	}
+
+	/**
+	 * Extract the archive to the given folder, downloading it again if it
+	 * turns out to be corrupted or truncated.
+	 */
+	private void extractTo(String uri, String fileName, String md5, String sha256,
+			File checkoutFolder) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			String error;
+			try {
+				extractOnce(uri, fileName, md5, sha256, checkoutFolder);
+				return;
+			} catch (IOException e) {
+				error = e.getMessage();
+			} catch (SuperNannyError e) {
+				error = e.getMessage();
+			}
+			if (attempt == FETCH_ATTEMPTS) {
+				throw new SuperNannyError(MessageFormat.format(
+						"Can''t fetch {0}{1} after {2} attempts: {3}", uri, fileName, attempt, error));
+			}
+			l.warning(MessageFormat.format("Fetching {0}{1} failed, retrying: {2}", uri,
+					fileName, error));
+			if (!isIncremental()) {
+				init(checkoutFolder);
+			}
+		}
+	}
+
+	/**
+	 * Extract the archive to the given folder, from the artifact store if it's
+	 * there, checking its digests as it's read.
+	 */
+	private void extractOnce(String uri, String fileName, String md5, String sha256,
+			File checkoutFolder) throws IOException {
+		File f = store.get(md5);
+		if (f != null && !p.externalTar) {
+			// uncompress the stored archive to the proper folder
+			try {
+				extractVerified(f, fileName, md5, sha256, checkoutFolder);
+			} catch (IOException e) {
+				// corrupted, not worth keeping: download it again
+				f.delete();
+				throw e;
+			}
+			return;
+		} else if (f != null) {
+			// the external tar can't check the archive as it reads it
+			try {
+				verify(f, md5, sha256);
+			} catch (IOException e) {
+				f.delete();
+				throw e;
+			}
+			decompress(checkoutFolder, f, fileName);
+			return;
+		}
+
+		// download to a file (in the store if it can be stored), resuming the
+		// interrupted download of a previous run
+		File tmpFile = store.isStorable(md5) ? store.claimPartial(md5) : null;
+		long offset = tmpFile != null ? tmpFile.length() : 0;
+		int segments = Integer.parseInt(p.downloadSegments);
+		if (segments > 1) {
+			File downloaded = tmpFile != null ? tmpFile : util.getTmpFile();
+			try {
+				downloader.download(uri + fileName, downloaded, segments);
+			} catch (IOException e) {
+				if (tmpFile != null) {
+					store.keepPartial(md5, tmpFile);
+				} else {
+					downloaded.delete();
+				}
+				throw e;
+			}
+			// only verified archives go to the store
+			boolean verified = false;
+			try {
+				extractVerified(downloaded, fileName, md5, sha256, checkoutFolder);
+				verified = true;
+			} finally {
+				if (verified && tmpFile != null) {
+					store.put(md5, tmpFile);
+				} else {
+					downloaded.delete();
+				}
+			}
+			return;
+		}
 
-	public void fetch(String uri, String fileName, File checkoutFolder) throws IOException {
-		init(checkoutFolder);
+		// or extract the archive while it's being downloaded, keeping a copy
+		// in the store
+		InputStream in = downloader.open(uri + fileName, offset);
+		if (tmpFile != null) {
+			in = new TeeInputStream(in, new BufferedOutputStream(new FileOutputStream(tmpFile,
+					true)));
+			if (offset > 0) {
+				l.info(MessageFormat.format("Resuming {0}{1} from byte {2}", uri, fileName,
+						offset));
+				in = new SequenceInputStream(new FileInputStream(tmpFile), in);
+			}
+		}
+		VerifyingInputStream verifying = verifying(in, md5, sha256);
+
+		boolean complete = false;
+		boolean interrupted = false;
+		try {
+			extract(checkoutFolder, verifying, fileName);
+			// tar stops reading before the end-of-archive padding, the
+			// stored copy and the digests need it
+			verifying.verify();
+			complete = true;
+		} catch (InterruptedDownloadException e) {
+			interrupted = true;
+			throw e;
+		} finally {
+			verifying.close();
+			if (tmpFile != null) {
+				if (complete) {
+					store.put(md5, tmpFile);
+				} else if (interrupted) {
+					store.keepPartial(md5, tmpFile);
+				} else {
+					tmpFile.delete();
+				}
+			}
+		}
+	}
 
-		// download the dependency to a temp file
-		File f = download(uri, fileName);
+	/**
+	 * Extract a downloaded archive, checking its digests as it's read.
+	 */
+	private void extractVerified(File archive, String fileName, String md5, String sha256,
+			File checkoutFolder) throws IOException {
+		VerifyingInputStream in = verifying(new FileInputStream(archive), md5, sha256);
+		try {
+			extractArchive(in, fileName, checkoutFolder);
+			in.verify();
+		} finally {
+			in.close();
+		}
+	}
 
-		// uncompress the archive to the proper folder
-		decompress(checkoutFolder, f, fileName);
+	/**
+	 * Extract with the built-in tar, over the previous version of the
+	 * dependency with --incremental.
+	 */
+	private void extractArchive(InputStream in, String fileName, File folder) throws IOException {
+		if (isIncremental()) {
+			incrementalUpdater.update(new TarArchiveInputStream(archiver.decompressor(in, fileName)),
+					folder);
+		} else {
+			archiver.extract(in, fileName, folder);
+		}
+	}
+
+	/**
+	 * Archives are extracted over the previous version of the dependency with
+	 * the built-in tar, the external one and the extracted store replace it.
+	 */
+	private boolean isIncremental() {
+		return p.incremental && !p.externalTar && !p.linkStore;
+	}
+
+	/**
+	 * Check the digests of a downloaded archive.
+	 */
+	private void verify(File archive, String md5, String sha256) throws IOException {
+		VerifyingInputStream in = verifying(new FileInputStream(archive), md5, sha256);
+		try {
+			in.verify();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Wrap the archive's stream to check it against the digests in the index.
+	 * Indexes generated without MD5s have "unknown" in that field.
+	 */
+	private VerifyingInputStream verifying(InputStream in, String md5, String sha256) {
+		VerifyingInputStream verifying = new VerifyingInputStream(in);
+		if (md5 != null && MD5.matcher(md5).matches()) {
+			verifying.expect("MD5", md5);
+		}
+		if (sha256 != null) {
+			verifying.expect("SHA-256", sha256);
+		}
+		return verifying;
 	}
 
 	/**
@@ -90,49 +347,64 @@ public class ArchiveStrategy {
 	 */
 	public File download(String uri, String filename) throws IOException {
 		File tmpFile = util.getTmpFile();
+		download(uri, filename, tmpFile);
+		return tmpFile;
+	}
 
-		URL depUrl = null;
-		try {
-			StringBuilder stringBuilder = new StringBuilder();
-			stringBuilder.append(uri);
-			stringBuilder.append(filename);
-			depUrl = new URL(stringBuilder.toString());
-		} catch (MalformedURLException e) {
-			e.printStackTrace();
-		}
-		// fetch the file
-		ReadableByteChannel rbc;
+	/**
+	 * Download the dependency to the given file.
+	 * 
+	 * @param uri
+	 *            URI of the repo.
+	 * @param filename
+	 *            file of the artifact in the repo.
+	 * @param tmpFile
+	 *            where to store it.
+	 * @throws IOException
+	 */
+	public void download(String uri, String filename, File tmpFile) throws IOException {
 		try {
-			rbc = Channels.newChannel(depUrl.openStream());
-			FileOutputStream fos = new FileOutputStream(tmpFile);
-			// if this is not enough, we have bigger problems :)
-			fos.getChannel().transferFrom(rbc, 0, 1 << 27);
-			fos.flush();
-			fos.close();
+			downloader.download(uri + filename, tmpFile, Integer.parseInt(p.downloadSegments));
 			l.fine("File downloaded to " + tmpFile.toString());
 		} catch (IOException e) {
 			throw new SuperNannyError(e);
 		}
+	}
 
-		return tmpFile;
+	/**
+	 * Get the tar options to extract the given archive
+	 * 
+	 * @param filename
+	 *            name of the archive, only the extension is used
+	 * @return tar options
+	 */
+	private String getExtractOpts(String filename) {
+		if (filename.endsWith(TAR_GZ_EXT)) {
+			return " zxpf ";
+		} else if (filename.endsWith(TAR_BZ2_EXT)) {
+			return " jxpf ";
+		} else if (filename.endsWith(TAR_XZ_EXT)) {
+			return " Jxpf ";
+		} else {
+			throw new RuntimeException("Unsupported format " + filename);
+		}
 	}
 
 	public void decompress(File depFolder, File tmpFile, String originalFilename)
 			throws IOException {
-		String extractOpts;
-		if (originalFilename.endsWith(TAR_GZ_EXT)) {
-			extractOpts = " zxpf ";
-		} else if (originalFilename.endsWith(TAR_BZ2_EXT)) {
-			extractOpts = " jxpf ";
-		} else if (originalFilename.endsWith(TAR_XZ_EXT)) {
-			extractOpts = " Jxpf ";
-		} else {
-			throw new RuntimeException("Unsupported format " + originalFilename);
+		if (!p.externalTar) {
+			InputStream in = new FileInputStream(tmpFile);
+			try {
+				extractArchive(in, originalFilename, depFolder);
+			} finally {
+				in.close();
+			}
+			return;
 		}
 
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append("tar ");
-		stringBuilder.append(extractOpts);
+		stringBuilder.append(getExtractOpts(originalFilename));
 		stringBuilder.append(tmpFile.toString());
 		stringBuilder.append(" -C ");
 		stringBuilder.append(depFolder.getAbsolutePath());
@@ -140,27 +412,119 @@ public class ArchiveStrategy {
 		util.readProcess(stringBuilder.toString());
 	}
 
-	public void publish(File depFolder, String uri, String name, String version, String suffix,
-			String extension) throws IOException {
+	/**
+	 * Extract an archive as it's read from the given stream.
+	 * 
+	 * @param depFolder
+	 *            where to extract it.
+	 * @param in
+	 *            archive contents.
+	 * @param originalFilename
+	 *            name of the archive, for the compression format.
+	 * @throws IOException
+	 */
+	public void extract(File depFolder, InputStream in, String originalFilename)
+			throws IOException {
+		if (!p.externalTar) {
+			extractArchive(in, originalFilename, depFolder);
+			return;
+		}
+
+		StringBuilder stringBuilder = new StringBuilder();
+		stringBuilder.append("tar ");
+		stringBuilder.append(getExtractOpts(originalFilename));
+		stringBuilder.append("- -C ");
+		stringBuilder.append(depFolder.getAbsolutePath());
+		// untar from stdin
+		util.pipeProcess(stringBuilder.toString(), in);
+	}
 
+	/**
+	 * Compress the folder and upload it to the repo.
+	 *
+	 * @param compressThreads
+	 *            threads to compress with, 0 for one per core, null for the
+	 *            --compressThreads default
+	 * @return figures of the compression, null if unknown (external tar)
+	 */
+	public CompressionStats publish(File depFolder, String uri, String name, String version,
+			String suffix, String extension, Integer compressThreads) throws IOException {
+
+		String destinationName = getArchiveName(name, version, suffix, extension);
+
+		int threads = getCompressThreads(compressThreads, extension);
+		CompressionStats stats;
+		if (p.streamPublish && !p.externalTar) {
+			// compressed while it's uploaded, nothing staged on disk
+			CompressingBody body = new CompressingBody(depFolder, extension, threads);
+			try {
+				upload(uri, destinationName, body);
+				stats = body.getStats();
+			} finally {
+				body.close();
+			}
+		} else {
+			File tmpFile = util.getTmpFile();
+			stats = compress(depFolder, tmpFile, extension, threads);
+			upload(uri, destinationName, tmpFile);
+		}
+
+		l.info(MessageFormat.format("Package published to {0}{1}", uri, destinationName));
+		return stats;
+	}
+
+	/**
+	 * @return file name of the archive published for the given version
+	 */
+	public static String getArchiveName(String name, String version, String suffix,
+			String extension) {
 		if (suffix.length() > 0) {
 			version = version + Util.ARCHIVE_SUFFIX_DELIMITER + suffix;
 		}
-		String destinationName = MessageFormat.format("{0}{1}{2}{3}", name,
-				Util.ARCHIVE_VERSION_DELIMITER, version, extension);
-
-		File tmpFile = util.getTmpFile();
-		compress(depFolder, tmpFile, extension);
-		upload(uri, destinationName, tmpFile);
+		return MessageFormat.format("{0}{1}{2}{3}", name, Util.ARCHIVE_VERSION_DELIMITER, version,
+				extension);
+	}
 
-		l.info(MessageFormat.format("Package published to {0}{1}{2}{3}{4}", uri, name,
-				Util.ARCHIVE_VERSION_DELIMITER, version, extension));
+	/**
+	 * Number of threads to compress with, bounded by the heap since each one
+	 * holds a couple of blocks and its compressor's dictionary.
+	 */
+	private int getCompressThreads(Integer compressThreads, String extension) {
+		int threads = compressThreads != null ? compressThreads : Integer
+				.parseInt(p.compressThreads);
+		if (threads <= 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		long memoryPerThread = extension.equals(TAR_XZ_EXT) ? XZ_MEMORY_PER_THREAD
+				: MEMORY_PER_THREAD;
+		int maxThreads = (int) Math.max(1, Runtime.getRuntime().maxMemory() / memoryPerThread);
+		if (threads > maxThreads) {
+			l.warning(MessageFormat.format(
+					"Not enough memory to compress with {0} threads, using {1}", threads,
+					maxThreads));
+			threads = maxThreads;
+		}
+		return threads;
 	}
 
-	public void upload(String uri, String destinationName, File tmpFile)
+	public void upload(String uri, String destinationName, final File tmpFile)
 			throws FileNotFoundException, IOException {
-		InputStream fis = new FileInputStream(tmpFile);
+		upload(uri, destinationName, new UploadBody() {
+			@Override
+			public InputStream open() throws IOException {
+				return new FileInputStream(tmpFile);
+			}
+		});
+	}
 
+	/**
+	 * Contents of an upload, which is opened again to retry it.
+	 */
+	interface UploadBody {
+		InputStream open() throws IOException;
+	}
+
+	private void upload(String uri, String destinationName, UploadBody body) throws IOException {
 		boolean wrongPassword;
 		boolean fileAuthentication=false;
 		int tries = 0;
@@ -180,9 +544,18 @@ public class ArchiveStrategy {
 					password = util.readPassword();
 				}
 
-				Sardine sardine = SardineFactory.begin(username, password);
+				// Sardine sets the credentials for any host and its redirect
+				// strategy on the client it gets, keep them off the shared one
+				Sardine sardine = new SardineImpl(transport.createClient(), username, password);
 				tries++;
-				sardine.put(MessageFormat.format("{0}{1}", uri, destinationName), fis);
+				// every attempt sends the whole body, the previous one may
+				// have consumed it
+				InputStream in = body.open();
+				try {
+					sardine.put(MessageFormat.format("{0}{1}", uri, destinationName), in);
+				} finally {
+					in.close();
+				}
 				return;
 			} catch (SardineException e) {
 				if (e.getStatusCode() == 401) {
@@ -197,8 +570,162 @@ public class ArchiveStrategy {
 		throw new SuperNannyError("Error publishing artifact.");
 	}
 
-	private void compress(File depFolder, File tmpFile, String extension) throws IOException,
-			SuperNannyError {
+	/**
+	 * Archive compressed in another thread while it's uploaded.
+	 *
+	 * The first REPLAY_BUFFER_SIZE bytes are kept in memory, so retrying the
+	 * upload (e.g. after a 401 with the wrong password) replays them instead
+	 * of compressing again. If the failed attempt sent more than that, the
+	 * folder is compressed again.
+	 */
+	class CompressingBody implements UploadBody {
+		private final File depFolder;
+		private final String extension;
+		private final int threads;
+		private ExecutorService executor;
+		private Future<CompressionStats> compression;
+		private PipedInputStream pipe;
+		private MessageDigest md5;
+		private ReplayableInputStream in;
+		private CompressionStats stats;
+
+		public CompressingBody(File depFolder, String extension, int threads) {
+			this.depFolder = depFolder;
+			this.extension = extension;
+			this.threads = threads;
+		}
+
+		@Override
+		public InputStream open() throws IOException {
+			if (in == null || !in.replay()) {
+				close();
+				start();
+			}
+			// the upload closes it, the compression must go on
+			return new FilterInputStream(in) {
+				@Override
+				public void close() {
+				}
+			};
+		}
+
+		private void start() throws IOException {
+			pipe = new PipedInputStream(PIPE_SIZE);
+			try {
+				md5 = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			final OutputStream out = new BufferedOutputStream(new DigestOutputStream(
+					new PipedOutputStream(pipe) {
+						@Override
+						public void write(byte[] b, int off, int len) throws IOException {
+							super.write(b, off, len);
+							// wake up the reader, it polls every second
+							// otherwise
+							flush();
+						}
+					}, md5), BUFFER_SIZE);
+			stats = null;
+			executor = Executors.newSingleThreadExecutor();
+			compression = executor.submit(new Callable<CompressionStats>() {
+				@Override
+				public CompressionStats call() throws IOException {
+					try {
+						return compress(depFolder, out, extension, threads);
+					} finally {
+						// the reader only sees the end of the pipe when it's
+						// closed, also when the compression fails halfway
+						try {
+							out.close();
+						} catch (IOException e) {
+							l.fine("Closing the compression pipe failed: " + e.getMessage());
+						}
+					}
+				}
+			});
+
+			in = new ReplayableInputStream(new FilterInputStream(pipe) {
+				@Override
+				public int read() throws IOException {
+					checkCompression();
+					int b = super.read();
+					if (b == -1) {
+						getStats();
+					}
+					return b;
+				}
+
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					checkCompression();
+					int read = super.read(b, off, len);
+					if (read == -1) {
+						// the archive is complete only if the compression
+						// didn't fail
+						getStats();
+					}
+					return read;
+				}
+			}, REPLAY_BUFFER_SIZE);
+		}
+
+		/**
+		 * Fail once the compression failed and everything it wrote was read,
+		 * instead of waiting for more.
+		 */
+		private void checkCompression() throws IOException {
+			if (compression.isDone() && pipe.available() == 0) {
+				getStats();
+			}
+		}
+
+		/**
+		 * Wait for the compression to finish.
+		 *
+		 * @return its figures, with the MD5 of the archive
+		 * @throws IOException
+		 *             if it failed
+		 */
+		public CompressionStats getStats() throws IOException {
+			if (stats != null) {
+				return stats;
+			}
+			try {
+				CompressionStats compressed = compression.get();
+				stats = new CompressionStats(compressed.getBytesIn(), compressed.getBytesOut(),
+						compressed.getMillis(), compressed.getThreads(), new String(
+								Hex.encodeHex(md5.digest())));
+				return stats;
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted compressing " + depFolder);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		/**
+		 * Stop the compression if it's still running.
+		 */
+		public void close() throws IOException {
+			if (pipe != null) {
+				// the compression fails writing to it
+				pipe.close();
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private CompressionStats compress(File depFolder, File tmpFile, String extension, int threads)
+			throws IOException, SuperNannyError {
+		if (!p.externalTar || threads > 1) {
+			return compress(depFolder, new BufferedOutputStream(new FileOutputStream(tmpFile),
+					BUFFER_SIZE), extension, threads);
+		}
+
 		String compressOpts;
 		if (extension.equals(TAR_GZ_EXT)) {
 			compressOpts = " -zcpf ";
@@ -219,5 +746,36 @@ public class ArchiveStrategy {
 		stringBuilder.append(depFolder.getCanonicalPath().toString());
 		stringBuilder.append(" .");
 		util.readProcess(stringBuilder.toString());
+		return null;
+	}
+
+	/**
+	 * Compress the folder with the built-in tar.
+	 *
+	 * @param out
+	 *            where to write the archive, closed when done
+	 */
+	CompressionStats compress(File depFolder, OutputStream out, String extension, int threads)
+			throws IOException {
+		long start = System.currentTimeMillis();
+		if (threads > 1) {
+			// the external tar can't be split in blocks, always use the
+			// built-in one
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				ParallelCompressorOutputStream parallel = new ParallelCompressorOutputStream(out,
+						extension, archiver, executor, threads);
+				archiver.createTar(depFolder, parallel, EXCLUDES);
+				return new CompressionStats(parallel.getBytesIn(), parallel.getBytesOut(),
+						System.currentTimeMillis() - start, threads);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		CountingOutputStream counting = new CountingOutputStream(out);
+		long size = archiver.create(depFolder, counting, extension, EXCLUDES);
+		return new CompressionStats(size, counting.getCount(), System.currentTimeMillis() - start,
+				1);
 	}
 }
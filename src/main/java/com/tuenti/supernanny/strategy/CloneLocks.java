@@ -0,0 +1,34 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.inject.Singleton;
+
+/**
+ * Read/write locks of the local DVCS clones, shared by all the artifacts
+ * fetched from them.
+ *
+ * The write lock is needed to change the clone (fetching refs, checking out),
+ * the read lock to read its object store (archiving a changeset), so exports
+ * from the same clone run in parallel.
+ */
+@Singleton
+public class CloneLocks {
+	private final ConcurrentMap<File, ReadWriteLock> locks = new ConcurrentHashMap<File, ReadWriteLock>();
+
+	public ReadWriteLock get(File clone) {
+		File key = clone.getAbsoluteFile();
+		ReadWriteLock lock = locks.get(key);
+		if (lock == null) {
+			ReadWriteLock previous = locks.putIfAbsent(key, lock = new ReentrantReadWriteLock());
+			if (previous != null) {
+				lock = previous;
+			}
+		}
+		return lock;
+	}
+}
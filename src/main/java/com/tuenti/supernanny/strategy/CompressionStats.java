@@ -0,0 +1,64 @@
+package com.tuenti.supernanny.strategy;
+
+import java.text.MessageFormat;
+
+/**
+ * Figures of an archive compression, reported after publishing.
+ */
+public class CompressionStats {
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long millis;
+	private final int threads;
+	private final String md5;
+
+	public CompressionStats(long bytesIn, long bytesOut, long millis, int threads) {
+		this(bytesIn, bytesOut, millis, threads, null);
+	}
+
+	public CompressionStats(long bytesIn, long bytesOut, long millis, int threads, String md5) {
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.millis = millis;
+		this.threads = threads;
+		this.md5 = md5;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getMillis() {
+		return millis;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @return MD5 of the archive, null if it wasn't computed while compressing
+	 */
+	public String getMd5() {
+		return md5;
+	}
+
+	/**
+	 * @return uncompressed MB per second
+	 */
+	public double getThroughput() {
+		return bytesIn / (1024.0 * 1024.0) / (Math.max(millis, 1) / 1000.0);
+	}
+
+	@Override
+	public String toString() {
+		return MessageFormat.format(
+				"{0,number,0.0} MB compressed to {1,number,0.0} MB in {2,number,0.0}s ({3,number,0.0} MB/s, {4} thread(s))",
+				bytesIn / (1024.0 * 1024.0), bytesOut / (1024.0 * 1024.0), millis / 1000.0,
+				getThroughput(), threads);
+	}
+}
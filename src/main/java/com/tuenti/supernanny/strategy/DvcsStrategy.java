@@ -10,10 +10,14 @@ package com.tuenti.supernanny.strategy;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import com.google.inject.Inject;
 import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
 
 /**
  * Dependency handler interface for SuperNanny.
@@ -25,45 +29,109 @@ import com.tuenti.supernanny.Util;
 public abstract class DvcsStrategy {
 	@Inject
 	private Util util;
+	@Inject
+	protected CliParser p;
+	@Inject
+	private CloneLocks locks;
 
 	protected abstract String getRepoChangeset(File repo) throws SuperNannyError, IOException;
 
+	/**
+	 * Lock of the clone, write locked to change its refs or working tree.
+	 */
+	public ReadWriteLock getLock(File repo) {
+		return locks.get(repo);
+	}
+
+	/**
+	 * Check out the changeset, fetching it if needed. Callers reading the
+	 * working tree afterwards must hold the write lock of the clone around
+	 * the checkout, and may downgrade it to the read lock to read it.
+	 */
 	public String checkoutVersion(String uri, String name, String version, String changeset,
 			File repo) throws IOException {
-		String currentVersion = "";
+		Lock lock = getLock(repo).writeLock();
+		lock.lock();
 		try {
-			currentVersion = getRepoChangeset(repo);
-		} catch (Throwable t) {
-			// just go ahead and checkout
-		}
-		if (!currentVersion.equals(changeset)) {
-			// fetch the dependency
-			pull(repo, uri, name, version, changeset);
+			String currentVersion = "";
+			try {
+				currentVersion = getRepoChangeset(repo);
+			} catch (Throwable t) {
+				// just go ahead and checkout
+			}
+			if (!currentVersion.equals(changeset)) {
+				// fetch the dependency
+				pull(repo, uri, name, version, changeset);
 
-			// check out the required version
-			currentVersion = checkout(repo, uri, version, changeset);
+				// check out the required version
+				currentVersion = checkout(repo, uri, version, changeset);
+			}
+			return currentVersion;
+		} finally {
+			lock.unlock();
 		}
-		return currentVersion;
 	}
 
 	public String fetch(String uri, String name, String version, String changeset, String path,
 			File destination, File repo) throws IOException {
-		if (destination.exists()) {
+		// with --incremental the export or rsync update the previous copy in
+		// place, unless it's a link to somewhere else
+		if (util.isSymlink(destination) || (destination.exists() && !p.incremental)) {
 			util.deleteDir(destination);
 		}
 
-		version = checkoutVersion(uri, name, version, changeset, repo);
-
-		String source = repo.getAbsolutePath();
-		if (path != null && !"".equals(path)) {
-			source += File.separator + path;
-			if (!new File(source).exists()) {
-				throw new SuperNannyError("The specified subpath \"" + path + "\" doesn't exist!");
+		if (p.dvcsArchive && changeset != null && this instanceof ExportableStrategy) {
+			ExportableStrategy exporter = (ExportableStrategy) this;
+			ReadWriteLock lock = getLock(repo);
+			boolean exported;
+			lock.readLock().lock();
+			try {
+				if (!exporter.hasChangeset(repo, changeset)) {
+					// only the fetch is exclusive, then keep reading
+					lock.readLock().unlock();
+					lock.writeLock().lock();
+					try {
+						if (!exporter.hasChangeset(repo, changeset)) {
+							pull(repo, uri, name, version, changeset);
+						}
+					} finally {
+						lock.readLock().lock();
+						lock.writeLock().unlock();
+					}
+				}
+				exported = exporter.export(repo, changeset, path, destination);
+			} finally {
+				lock.readLock().unlock();
+			}
+			if (exported) {
+				return changeset;
 			}
 		}
 
-		// resolve symlinks pointing outside of the copied directory
-		util.readProcess("rsync --archive --delete --copy-unsafe-links " + source +"/ " + destination);
+		ReadWriteLock lock = getLock(repo);
+		lock.writeLock().lock();
+		try {
+			version = checkoutVersion(uri, name, version, changeset, repo);
+		} finally {
+			// other copies of the same checkout, or exports, can go on
+			lock.readLock().lock();
+			lock.writeLock().unlock();
+		}
+		try {
+			String source = repo.getAbsolutePath();
+			if (path != null && !"".equals(path)) {
+				source += File.separator + path;
+				if (!new File(source).exists()) {
+					throw new SuperNannyError("The specified subpath \"" + path + "\" doesn't exist!");
+				}
+			}
+
+			// resolve symlinks pointing outside of the copied directory
+			util.readProcess("rsync --archive --delete --copy-unsafe-links " + source + "/ "
+					+ destination);
+		} finally {
+			lock.readLock().unlock();
+		}
 
 		cleanup(destination);
 		return version;
@@ -128,6 +196,19 @@ public abstract class DvcsStrategy {
 
 	public abstract String resolveReference(String uri, String version) throws IOException;
 
+	/**
+	 * List all the refs of the remote at once.
+	 * 
+	 * @param uri
+	 *            URI of the remote.
+	 * @return changesets by full ref name (refs/tags/name-1.0), or null if
+	 *         the refs have to be looked up one by one.
+	 * @throws IOException
+	 */
+	public Map<String, String> listRefs(String uri) throws IOException {
+		return null;
+	}
+
 	public String fetch(String uri, String name, String version, String path, File checkoutFolder)
 			throws IOException {
 		throw new RuntimeException("Should not be called");
@@ -0,0 +1,28 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * DVCS strategy able to write the files of a changeset straight from the
+ * clone, without checking it out (--dvcsArchive).
+ */
+public interface ExportableStrategy {
+	/**
+	 * Check if the changeset is already in the clone, called with the read
+	 * lock held.
+	 */
+	boolean hasChangeset(File repo, String changeset) throws IOException;
+
+	/**
+	 * Write the files of the changeset to the destination. Called with the
+	 * read lock held, so exports of the same clone can run at the same time.
+	 *
+	 * @param path
+	 *            subpath of the repo to export, or null for all of it
+	 * @return false, without writing anything, if the export wouldn't match a
+	 *         checkout copied with rsync and the changeset must be checked out
+	 */
+	boolean export(File repo, String changeset, String path, File destination)
+			throws IOException;
+}
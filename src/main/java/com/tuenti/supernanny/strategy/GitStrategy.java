@@ -11,21 +11,35 @@ package com.tuenti.supernanny.strategy;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 
 import com.google.inject.Inject;
 import com.tuenti.supernanny.SuperNannyError;
 import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.util.IncrementalUpdater;
 
 /**
  * Dependency handler git for SuperNanny.
  * 
  * @author Goran Petrovic <gpetrovic@tuenti.com>
  */
-public class GitStrategy extends DvcsStrategy {
+public class GitStrategy extends DvcsStrategy implements ExportableStrategy {
 	private static final String GIT = "git";
+	/** History fetched the first time a shallow clone is deepened. */
+	private static final int DEEPEN_DEPTH = 10;
+	/** Depth after which the whole history is fetched instead. */
+	private static final int MAX_DEPTH = 10000;
 	@Inject
 	Util util;
+	@Inject
+	TarArchiver tarArchiver;
+	@Inject
+	IncrementalUpdater incrementalUpdater;
 
 	@Override
 	public void init(File depFolder, String uri) throws SuperNannyError, IOException {
@@ -49,22 +63,186 @@ public class GitStrategy extends DvcsStrategy {
 		stringBuilder.append("--work-tree ");
 		stringBuilder.append(depFolder.toString());
 		stringBuilder.append(" checkout " + changeset);
-		util.readProcess(stringBuilder.toString());
+		try {
+			util.readProcess(stringBuilder.toString());
+		} catch (SuperNannyError e) {
+			if (!isShallow(depFolder)) {
+				throw e;
+			}
+			// the commit is behind the shallow history, get more and retry
+			deepen(depFolder, version, changeset);
+			util.readProcess(stringBuilder.toString());
+		}
 
 		return changeset;
 	}
 
+	private boolean isShallow(File depFolder) {
+		return new File(depFolder, ".git/shallow").exists();
+	}
+
+	/**
+	 * Fetch more history of the version until the changeset is in it, ten
+	 * times deeper each time: versions are usually a few commits behind the
+	 * ref, and the whole history of a big repository is what --shallow is
+	 * meant to avoid. Only past MAX_DEPTH, or if the changeset isn't in the
+	 * history of the ref, is the clone unshallowed.
+	 */
+	private void deepen(File depFolder, String version, String changeset) throws IOException {
+		for (int depth = DEEPEN_DEPTH; depth <= MAX_DEPTH; depth *= 10) {
+			util.readProcess(getGitInitCommandStringFor(depFolder).append("fetch --depth ")
+					.append(depth).append(" origin ").append(version).toString());
+			if (hasCommit(depFolder, changeset) || !isShallow(depFolder)) {
+				return;
+			}
+		}
+		util.readProcess(getGitInitCommandStringFor(depFolder).append("fetch --unshallow origin")
+				.toString());
+	}
+
 	@Override
 	public String pull(File depFolder, String uri, String name, String version, String changeset)
 			throws IOException {
+		if (changeset != null && hasCommit(depFolder, changeset)) {
+			// already fetched for another version
+			return version;
+		}
+
 		StringBuilder stringBuilder = getGitInitCommandStringFor(depFolder);
-		stringBuilder.append("fetch origin ");
+		stringBuilder.append("fetch ");
+		if (p.shallow) {
+			stringBuilder.append("--depth 1 ");
+		}
+		if (p.blobless) {
+			stringBuilder.append("--filter=blob:none ");
+		}
+		stringBuilder.append("origin ");
+		if (p.shallow && changeset != null) {
+			// just the commit, so any version can be fetched without deepening
+			try {
+				util.readProcess(stringBuilder.toString() + changeset);
+				return version;
+			} catch (SuperNannyError e) {
+				// the server doesn't allow fetching commits, fetch the ref
+			}
+		}
 		stringBuilder.append(version);
 		util.readProcess(stringBuilder.toString());
 
 		return version;
 	}
 
+	@Override
+	public boolean hasChangeset(File repo, String changeset) throws IOException {
+		return hasCommit(repo, changeset);
+	}
+
+	/**
+	 * Extract "git archive" of the changeset (and path) into the destination,
+	 * so artifacts of the same clone don't take turns checking it out.
+	 * 
+	 * Unlike a checkout, git archive leaves out the files with the
+	 * export-ignore attribute and expands the placeholders of the ones with
+	 * export-subst. It also writes symlinks as they are, so trees with links
+	 * pointing out of them are checked out instead, for rsync to copy the
+	 * files they point to.
+	 */
+	@Override
+	public boolean export(File repo, String changeset, String path, File destination)
+			throws IOException {
+		// archives of trees, unlike commits, have no global header with the
+		// commit id
+		String tree;
+		if (path != null && !"".equals(path)) {
+			tree = changeset + ":" + path;
+		} else {
+			tree = changeset + "^{tree}";
+		}
+		if (hasUnsafeLinks(repo, tree)) {
+			return false;
+		}
+		StringBuilder stringBuilder = getGitInitCommandStringFor(repo);
+		stringBuilder.append("archive --format=tar ");
+		stringBuilder.append(tree);
+		destination.mkdirs();
+		InputStream in = util.openProcess(stringBuilder.toString());
+		try {
+			if (p.incremental) {
+				incrementalUpdater.update(new TarArchiveInputStream(in), destination);
+			} else {
+				tarArchiver.extract(new TarArchiveInputStream(in), destination);
+			}
+		} finally {
+			in.close();
+		}
+		new File(destination, ".gitignore").delete();
+		return true;
+	}
+
+	/**
+	 * Check if the tree has symlinks pointing out of it, like rsync
+	 * --copy-unsafe-links does.
+	 */
+	private boolean hasUnsafeLinks(File repo, String tree) throws IOException {
+		StringBuilder stringBuilder = getGitInitCommandStringFor(repo);
+		stringBuilder.append("ls-tree -r -z ");
+		stringBuilder.append(tree);
+		for (String entry : util.readProcess(stringBuilder.toString()).split("\0")) {
+			// <mode> <type> <object>\t<file>
+			int tab = entry.indexOf('\t');
+			if (!entry.startsWith("120000 ") || tab < 0) {
+				continue;
+			}
+			String object = entry.substring(0, tab).split(" ")[2];
+			String target = util.readProcess(
+					getGitInitCommandStringFor(repo).append("cat-file blob ").append(object)
+							.toString()).trim();
+			if (isUnsafeLink(entry.substring(tab + 1), target)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param file
+	 *            path of the link in the tree
+	 * @return if the target of the link is absolute or goes above the root of
+	 *         the tree
+	 */
+	static boolean isUnsafeLink(String file, String target) {
+		if (target.startsWith("/")) {
+			return true;
+		}
+		int depth = file.split("/").length - 1;
+		for (String part : target.split("/")) {
+			if (part.equals("..")) {
+				if (--depth < 0) {
+					return true;
+				}
+			} else if (!part.equals("") && !part.equals(".")) {
+				depth++;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check if the clone already has the commit.
+	 */
+	private boolean hasCommit(File depFolder, String changeset) throws IOException {
+		StringBuilder stringBuilder = getGitInitCommandStringFor(depFolder);
+		stringBuilder.append("cat-file -e ");
+		stringBuilder.append(changeset);
+		stringBuilder.append("^{commit}");
+		try {
+			util.readProcess(stringBuilder.toString());
+			return true;
+		} catch (SuperNannyError e) {
+			return false;
+		}
+	}
+
 	@Override
 	public void makeTag(File depFolder, String uri, String tagName) throws IOException {
 		StringBuilder stringBuilder = new StringBuilder();
@@ -92,6 +270,19 @@ public class GitStrategy extends DvcsStrategy {
 		return null;
 	}
 
+	@Override
+	public Map<String, String> listRefs(String uri) throws IOException {
+		Map<String, String> refs = new HashMap<String, String>();
+		for (String line : util.readProcess("git ls-remote " + uri).split("\\n")) {
+			String[] split = line.trim().split("\\s+");
+			// peeled tags are listed twice, keep the tag itself like ls-remote <ref>
+			if (split.length == 2 && !split[1].endsWith("^{}")) {
+				refs.put(split[1], split[0]);
+			}
+		}
+		return refs;
+	}
+
 	@Override
 	public String[] getTags(String uri, String name) throws SuperNannyError, IOException {
 		String tagPrefix = name + Util.ARCHIVE_VERSION_DELIMITER;
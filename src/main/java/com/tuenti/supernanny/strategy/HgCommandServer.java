@@ -0,0 +1,183 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+
+import com.tuenti.supernanny.SuperNannyError;
+
+/**
+ * Session with a Mercurial command server on a clone ("hg serve --cmdserver
+ * pipe"), so commands don't pay for starting hg every time.
+ *
+ * Messages from the server are a channel byte, a big endian length and the
+ * data: o (output), e (errors), r (result code of the command), I and L
+ * (input requests, the length being the requested size, without data).
+ */
+public class HgCommandServer {
+	private static final String ENCODING = "UTF-8";
+
+	private final File repo;
+	private final Process process;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	public HgCommandServer(String hg, File repo) throws IOException {
+		this(repo, start(hg, repo));
+	}
+
+	private HgCommandServer(File repo, Process process) throws IOException {
+		this(repo, process, process.getInputStream(), process.getOutputStream());
+	}
+
+	/**
+	 * Session over the pipes of a server.
+	 *
+	 * @param process
+	 *            the server process, waited for on close, or null
+	 */
+	HgCommandServer(File repo, Process process, InputStream serverOutput,
+			OutputStream serverInput) throws IOException {
+		this.repo = repo;
+		this.process = process;
+		in = new DataInputStream(new BufferedInputStream(serverOutput));
+		out = new DataOutputStream(new BufferedOutputStream(serverInput));
+
+		// the server says hello with its capabilities
+		int channel = in.read();
+		String hello = channel == 'o' ? new String(read(in.readInt()), ENCODING) : "";
+		if (!hello.contains("runcommand")) {
+			close();
+			throw new SuperNannyError("Unexpected hello from the Mercurial command server of "
+					+ repo + ": " + hello);
+		}
+	}
+
+	private static Process start(String hg, File repo) {
+		ProcessBuilder builder = new ProcessBuilder(hg, "--repository", repo.getAbsolutePath(),
+				"serve", "--cmdserver", "pipe", "--config", "ui.interactive=False");
+		builder.environment().put("HGPLAIN", "1");
+		builder.environment().put("HGENCODING", ENCODING);
+		Process process;
+		try {
+			process = builder.start();
+		} catch (IOException e) {
+			throw new SuperNannyError(e);
+		}
+		drain(process.getErrorStream());
+		return process;
+	}
+
+	/**
+	 * Run a command, as if it were "hg --repository repo args".
+	 *
+	 * @return output of the command
+	 * @throws SuperNannyError
+	 *             if the command fails
+	 */
+	public synchronized String runCommand(String... args) throws IOException {
+		StringBuilder joined = new StringBuilder();
+		for (String arg : args) {
+			if (joined.length() > 0) {
+				joined.append('\0');
+			}
+			joined.append(arg);
+		}
+		byte[] data = joined.toString().getBytes(ENCODING);
+		out.write("runcommand\n".getBytes(ENCODING));
+		out.writeInt(data.length);
+		out.write(data);
+		out.flush();
+
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ByteArrayOutputStream error = new ByteArrayOutputStream();
+		while (true) {
+			int channel = in.read();
+			if (channel == -1) {
+				throw new SuperNannyError("The Mercurial command server of " + repo + " exited");
+			}
+			int length = in.readInt();
+			switch (channel) {
+			case 'o':
+				output.write(read(length));
+				break;
+			case 'e':
+				error.write(read(length));
+				break;
+			case 'r':
+				int code = in.readInt();
+				if (code != 0) {
+					throw new SuperNannyError(MessageFormat.format(
+							"Error executing: hg {0}; output: \n{1}{2}; exit code {3}",
+							joined.toString().replace('\0', ' '), error.toString(ENCODING),
+							output.toString(ENCODING), code));
+				}
+				return output.toString(ENCODING);
+			case 'I':
+			case 'L':
+				// there is no input, an empty block means EOF
+				out.writeInt(0);
+				out.flush();
+				break;
+			default:
+				// unknown channels must be ignored unless they are required
+				if (Character.isUpperCase(channel)) {
+					throw new SuperNannyError("Unsupported Mercurial command server channel "
+							+ (char) channel);
+				}
+				read(length);
+			}
+		}
+	}
+
+	/**
+	 * Stop the server, it exits when its input is closed.
+	 */
+	public void close() {
+		try {
+			out.close();
+			if (process != null) {
+				process.waitFor();
+			}
+		} catch (Exception e) {
+			if (process != null) {
+				process.destroy();
+			}
+		}
+	}
+
+	private byte[] read(int length) throws IOException {
+		byte[] data = new byte[length];
+		in.readFully(data);
+		return data;
+	}
+
+	/**
+	 * Discard the messages of the server process itself, a full pipe would
+	 * block it.
+	 */
+	private static void drain(final InputStream stream) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[1024];
+				try {
+					while (stream.read(buffer) != -1) {
+						// discard
+					}
+				} catch (IOException e) {
+					// the server is gone
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+	}
+}
@@ -0,0 +1,54 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.inject.Singleton;
+
+/**
+ * Mercurial command servers of the clones, started on first use and stopped
+ * when the JVM exits.
+ */
+@Singleton
+public class HgCommandServers {
+	private final Map<File, HgCommandServer> servers = new HashMap<File, HgCommandServer>();
+	private boolean hooked = false;
+
+	public synchronized HgCommandServer get(String hg, File repo) throws IOException {
+		File key = repo.getAbsoluteFile();
+		HgCommandServer server = servers.get(key);
+		if (server == null) {
+			if (!hooked) {
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						closeAll();
+					}
+				});
+				hooked = true;
+			}
+			server = new HgCommandServer(hg, key);
+			servers.put(key, server);
+		}
+		return server;
+	}
+
+	/**
+	 * Stop the server of a clone, a new one is started if it is used again.
+	 */
+	public synchronized void close(File repo) {
+		HgCommandServer server = servers.remove(repo.getAbsoluteFile());
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	public synchronized void closeAll() {
+		for (HgCommandServer server : servers.values()) {
+			server.close();
+		}
+		servers.clear();
+	}
+}
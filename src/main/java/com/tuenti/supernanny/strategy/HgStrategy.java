@@ -33,9 +33,13 @@ public class HgStrategy extends DvcsStrategy {
 	private static final String HG = "hg";
 	@Inject
 	private Util util;
+	@Inject
+	private HgCommandServers servers;
 
 	@Override
 	public void init(File depFolder, String url) throws IOException {
+		// a server started before the clone was deleted has the old one open
+		servers.close(depFolder);
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append(HG);
 		stringBuilder.append(" init ");
@@ -48,13 +52,7 @@ public class HgStrategy extends DvcsStrategy {
 	public String checkout(File depFolder, String uri, String version, String changeset)
 			throws IOException {
 
-		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append(HG);
-		stringBuilder.append(" --repository ");
-		stringBuilder.append(depFolder.toString());
-		stringBuilder.append(" update ");
-		stringBuilder.append(changeset);
-		util.readProcess(stringBuilder.toString());
+		runHg(depFolder, "update", changeset);
 
 		return changeset;
 	}
@@ -63,15 +61,7 @@ public class HgStrategy extends DvcsStrategy {
 	public String pull(File depFolder, String uri, String name, String version, String changeset)
 			throws IOException {
 		// pull
-		StringBuilder stringBuilder = new StringBuilder();
-		stringBuilder.append(HG);
-		stringBuilder.append(" --repository ");
-		stringBuilder.append(depFolder.toString());
-		stringBuilder.append(" pull ");
-		stringBuilder.append(uri);
-		stringBuilder.append(" -r ");
-		stringBuilder.append(changeset);
-		util.readProcess(stringBuilder.toString());
+		runHg(depFolder, "pull", uri, "-r", changeset);
 
 		// add path
 		try {
@@ -154,11 +144,28 @@ public class HgStrategy extends DvcsStrategy {
 
 	@Override
 	protected String getRepoChangeset(File repo) throws SuperNannyError, IOException {
+		return runHg(repo, "id").split("\\s")[0];
+	}
+
+	/**
+	 * Run a hg command on the clone, through its command server with
+	 * --hgBackend cmdserver, or in a new process.
+	 */
+	private String runHg(File repo, String... args) throws IOException {
+		if ("cmdserver".equals(p.hgBackend)) {
+			return servers.get(HG, repo).runCommand(args);
+		} else if (p.hgBackend != null && !"cli".equals(p.hgBackend)) {
+			throw new SuperNannyError("Unknown hg backend " + p.hgBackend);
+		}
+
 		StringBuilder stringBuilder = new StringBuilder();
 		stringBuilder.append(HG);
 		stringBuilder.append(" --repository ");
 		stringBuilder.append(repo.toString());
-		stringBuilder.append(" id");
-		return util.readProcess(stringBuilder.toString()).split("\\s")[0];
+		for (String arg : args) {
+			stringBuilder.append(" ");
+			stringBuilder.append(arg);
+		}
+		return util.readProcess(stringBuilder.toString());
 	}
 }
@@ -0,0 +1,250 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.eclipse.jgit.transport.RefSpec;
+
+import com.google.inject.Singleton;
+import com.tuenti.supernanny.SuperNannyError;
+import com.tuenti.supernanny.Util;
+
+/**
+ * Git handler running in the JVM instead of forking git for every command.
+ *
+ * The local clones stay open for the whole run (closed when a clone is
+ * re-created and on exit), and the refs of each remote are listed once and
+ * then used to resolve every reference and tag, instead of running ls-remote
+ * for each of them. The listing is dropped after pushing a tag, and listed
+ * again when a ref isn't found in one older than a minute.
+ *
+ * Tags and --dvcsArchive exports are still made with the git command: JGit
+ * doesn't apply the export-ignore and export-subst attributes that git
+ * archive does, and its archive formats come in a separate artifact.
+ */
+@Singleton
+public class JGitStrategy extends GitStrategy {
+	private static final String ORIGIN = "origin";
+	private static final long REFS_MAX_AGE = 60 * 1000L;
+
+	/**
+	 * Refs of a remote sorted by name, and when they were listed.
+	 */
+	private static class RemoteRefs {
+		private final Map<String, Ref> refs = new TreeMap<String, Ref>();
+		private final long listed = System.currentTimeMillis();
+	}
+
+	private final Map<File, Repository> repositories = new ConcurrentHashMap<File, Repository>();
+	private final Map<String, RemoteRefs> remoteRefs = new ConcurrentHashMap<String, RemoteRefs>();
+	private boolean hooked = false;
+
+	@Override
+	public void init(File depFolder, String uri) throws SuperNannyError, IOException {
+		// the clone is being re-created
+		Repository previous = repositories.remove(depFolder.getAbsoluteFile());
+		if (previous != null) {
+			previous.close();
+		}
+		try {
+			Repository repo = Git.init().setDirectory(depFolder).call().getRepository();
+			StoredConfig config = repo.getConfig();
+			config.setString("remote", ORIGIN, "url", uri);
+			config.setString("remote", ORIGIN, "fetch", "+refs/heads/*:refs/remotes/origin/*");
+			config.save();
+			opened(depFolder.getAbsoluteFile(), repo);
+		} catch (GitAPIException e) {
+			throw new SuperNannyError(e);
+		}
+	}
+
+	@Override
+	public String checkout(File depFolder, String uri, String version, String changeset)
+			throws SuperNannyError, IOException {
+		try {
+			Git.wrap(open(depFolder)).checkout().setName(changeset != null ? changeset : version)
+					.call();
+		} catch (GitAPIException e) {
+			throw new SuperNannyError(e);
+		}
+		return changeset;
+	}
+
+	@Override
+	public String pull(File depFolder, String uri, String name, String version, String changeset)
+			throws IOException {
+		Repository repo = open(depFolder);
+		if (changeset != null && ObjectId.isId(changeset)
+				&& repo.hasObject(ObjectId.fromString(changeset))) {
+			// already fetched for another version
+			return version;
+		}
+
+		// fetch just the ref, like "git fetch origin <version>" does
+		List<RefSpec> specs = new ArrayList<RefSpec>();
+		Ref ref = findRef(uri, version);
+		if (ref == null) {
+			specs.add(new RefSpec("+refs/heads/*:refs/remotes/origin/*"));
+			specs.add(new RefSpec("+refs/tags/*:refs/tags/*"));
+		} else if (ref.getName().startsWith(Constants.R_HEADS)) {
+			specs.add(new RefSpec("+" + ref.getName() + ":" + Constants.R_REMOTES + ORIGIN + "/"
+					+ ref.getName().substring(Constants.R_HEADS.length())));
+		} else {
+			specs.add(new RefSpec("+" + ref.getName() + ":" + ref.getName()));
+		}
+		try {
+			Git.wrap(repo).fetch().setRemote(ORIGIN).setRefSpecs(specs).call();
+		} catch (GitAPIException e) {
+			throw new SuperNannyError(e);
+		}
+		return version;
+	}
+
+	@Override
+	public boolean hasChangeset(File repo, String changeset) throws IOException {
+		return ObjectId.isId(changeset) && open(repo).hasObject(ObjectId.fromString(changeset));
+	}
+
+	@Override
+	public void makeTag(File depFolder, String uri, String tagName) throws IOException {
+		super.makeTag(depFolder, uri, tagName);
+		remoteRefs.remove(uri);
+	}
+
+	@Override
+	public String resolveReference(String uri, String ref) throws IOException {
+		Ref found = findRef(uri, ref);
+		return found == null ? null : found.getObjectId().name();
+	}
+
+	@Override
+	public Map<String, String> listRefs(String uri) throws IOException {
+		Map<String, String> refs = new HashMap<String, String>();
+		for (Ref ref : getRemoteRefs(uri).refs.values()) {
+			refs.put(ref.getName(), ref.getObjectId().name());
+		}
+		return refs;
+	}
+
+	@Override
+	public String[] getTags(String uri, String name) throws SuperNannyError, IOException {
+		String tagPrefix = Constants.R_TAGS + name + Util.ARCHIVE_VERSION_DELIMITER;
+		List<String> tags = new ArrayList<String>();
+		for (String refName : getRemoteRefs(uri).refs.keySet()) {
+			if (refName.startsWith(tagPrefix)) {
+				tags.add(refName.substring(Constants.R_TAGS.length()));
+			}
+		}
+		if (tags.isEmpty()) {
+			throw new SuperNannyError(MessageFormat.format(
+					"Tags not found in {0}. Make sure the correct tag exists.", uri));
+		}
+		return tags.toArray(new String[tags.size()]);
+	}
+
+	@Override
+	protected String getRepoChangeset(File repo) throws SuperNannyError, IOException {
+		ObjectId head = open(repo).resolve(Constants.HEAD);
+		if (head == null) {
+			throw new SuperNannyError("Nothing checked out in " + repo);
+		}
+		return head.name();
+	}
+
+	/**
+	 * First ref of the remote matching the name like ls-remote does: the whole
+	 * name or its last path components.
+	 */
+	private Ref findRef(String uri, String name) throws IOException {
+		RemoteRefs refs = getRemoteRefs(uri);
+		Ref ref = findRef(refs, name);
+		if (ref == null && System.currentTimeMillis() - refs.listed > REFS_MAX_AGE) {
+			// it may have been pushed after the listing
+			remoteRefs.remove(uri);
+			ref = findRef(getRemoteRefs(uri), name);
+		}
+		return ref;
+	}
+
+	private Ref findRef(RemoteRefs refs, String name) {
+		for (Map.Entry<String, Ref> entry : refs.refs.entrySet()) {
+			if (entry.getKey().equals(name) || entry.getKey().endsWith("/" + name)) {
+				return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Refs of the remote, listed on first use.
+	 */
+	private RemoteRefs getRemoteRefs(String uri) throws IOException {
+		RemoteRefs refs = remoteRefs.get(uri);
+		if (refs == null) {
+			refs = new RemoteRefs();
+			try {
+				Collection<Ref> listed = Git.lsRemoteRepository().setRemote(uri).call();
+				for (Ref ref : listed) {
+					refs.refs.put(ref.getName(), ref);
+				}
+			} catch (GitAPIException e) {
+				throw new SuperNannyError(e);
+			}
+			remoteRefs.put(uri, refs);
+		}
+		return refs;
+	}
+
+	/**
+	 * The open repository of a local clone.
+	 */
+	private Repository open(File depFolder) throws IOException {
+		File folder = depFolder.getAbsoluteFile();
+		Repository repo = repositories.get(folder);
+		if (repo == null) {
+			repo = new FileRepositoryBuilder().setWorkTree(folder)
+					.setGitDir(new File(folder, Constants.DOT_GIT)).setMustExist(true).build();
+			opened(folder, repo);
+		}
+		return repo;
+	}
+
+	/**
+	 * Keep an opened repository, to be closed on exit.
+	 */
+	private synchronized void opened(File folder, Repository repo) {
+		if (!hooked) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					closeAll();
+				}
+			});
+			hooked = true;
+		}
+		repositories.put(folder, repo);
+	}
+
+	public void closeAll() {
+		for (Repository repo : repositories.values()) {
+			repo.close();
+		}
+		repositories.clear();
+	}
+}
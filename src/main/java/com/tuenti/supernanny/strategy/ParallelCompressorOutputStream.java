@@ -0,0 +1,153 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Compressor that splits the data in fixed size blocks and compresses each one
+ * as an independent gzip member / xz stream / bzip2 stream on a thread pool.
+ *
+ * The compressed blocks are written in order, one after the other. A
+ * concatenation of streams is a valid stream for gzip, xz and bzip2 (it's what
+ * pigz and pxz do), so the result can be read by tar and by TarArchiver. The
+ * price is a slightly worse ratio, since blocks don't share dictionaries.
+ */
+public class ParallelCompressorOutputStream extends OutputStream {
+	/** Big enough for xz's default dictionary, so the ratio barely changes. */
+	public static final int BLOCK_SIZE = 8 * 1024 * 1024;
+
+	private final OutputStream out;
+	private final String extension;
+	private final TarArchiver archiver;
+	private final ExecutorService executor;
+	private final int maxPending;
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int blockLength = 0;
+	private long bytesIn = 0;
+	private long bytesOut = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param out
+	 *            stream for the compressed data
+	 * @param extension
+	 *            one of the ArchiveStrategy extensions
+	 * @param archiver
+	 *            provides the compressor of each block
+	 * @param executor
+	 *            pool the blocks are compressed in
+	 * @param threads
+	 *            size of the pool, bounds the blocks kept in memory
+	 */
+	public ParallelCompressorOutputStream(OutputStream out, String extension,
+			TarArchiver archiver, ExecutorService executor, int threads) {
+		this.out = out;
+		this.extension = extension;
+		this.archiver = archiver;
+		this.executor = executor;
+		this.maxPending = threads * 2;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			bytesIn += n;
+			off += n;
+			len -= n;
+			if (blockLength == block.length) {
+				submitBlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			// an empty input still needs one (empty) stream to be valid
+			if (blockLength > 0 || bytesIn == 0) {
+				submitBlock();
+			}
+			while (!pending.isEmpty()) {
+				writeNextBlock();
+			}
+		} finally {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			out.close();
+		}
+	}
+
+	/**
+	 * @return uncompressed bytes written so far
+	 */
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	/**
+	 * @return compressed bytes written to the underlying stream so far
+	 */
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	private void submitBlock() throws IOException {
+		final byte[] data = block;
+		final int length = blockLength;
+		pending.add(executor.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2 + 1024);
+				OutputStream c = archiver.compressor(compressed, extension);
+				c.write(data, 0, length);
+				c.close();
+				return compressed.toByteArray();
+			}
+		}));
+		block = new byte[BLOCK_SIZE];
+		blockLength = 0;
+
+		while (pending.size() > maxPending) {
+			writeNextBlock();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		byte[] compressed;
+		try {
+			compressed = pending.getFirst().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+		pending.removeFirst();
+		out.write(compressed);
+		bytesOut += compressed.length;
+	}
+}
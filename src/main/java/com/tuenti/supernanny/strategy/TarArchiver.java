@@ -0,0 +1,579 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.SuperNannyError;
+
+/**
+ * In process tar reader/writer for tar.gz, tar.bz2 and tar.xz archives.
+ *
+ * Keeps permissions and symlinks like tar -p does. It has no state, so
+ * several archives can be extracted in parallel from different threads.
+ */
+public class TarArchiver {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String ENTRY_PREFIX = "./";
+	private static final String TMP_SUFFIX = ".supernanny-tmp";
+	/** Manifest values of the entries that aren't files. */
+	public static final String DIR = "dir";
+	public static final String LINK = "link";
+
+	@Inject
+	private Logger l;
+
+	/**
+	 * Wrap the stream with the decompressor for the given archive.
+	 *
+	 * @param in
+	 *            compressed stream
+	 * @param filename
+	 *            name of the archive, only the extension is used
+	 * @return decompressed stream
+	 * @throws IOException
+	 */
+	public InputStream decompressor(InputStream in, String filename) throws IOException {
+		in = new BufferedInputStream(in, BUFFER_SIZE);
+		// concatenated streams are valid archives too (e.g. pigz, pxz)
+		if (filename.endsWith(ArchiveStrategy.TAR_GZ_EXT)) {
+			return new GzipCompressorInputStream(in, true);
+		} else if (filename.endsWith(ArchiveStrategy.TAR_BZ2_EXT)) {
+			return new BZip2CompressorInputStream(in, true);
+		} else if (filename.endsWith(ArchiveStrategy.TAR_XZ_EXT)) {
+			return new XZCompressorInputStream(in, true);
+		} else {
+			throw new RuntimeException("Unsupported format " + filename);
+		}
+	}
+
+	/**
+	 * Wrap the stream with the compressor for the given extension.
+	 *
+	 * @param out
+	 *            stream for the compressed data
+	 * @param extension
+	 *            one of the ArchiveStrategy extensions
+	 * @return stream to write the uncompressed data to
+	 * @throws IOException
+	 */
+	public OutputStream compressor(OutputStream out, String extension) throws IOException {
+		out = new BufferedOutputStream(out, BUFFER_SIZE);
+		if (extension.equals(ArchiveStrategy.TAR_GZ_EXT)) {
+			return new GzipCompressorOutputStream(out);
+		} else if (extension.equals(ArchiveStrategy.TAR_BZ2_EXT)) {
+			return new BZip2CompressorOutputStream(out);
+		} else if (extension.equals(ArchiveStrategy.TAR_XZ_EXT)) {
+			return new XZCompressorOutputStream(out);
+		} else {
+			throw new RuntimeException("Unsupported format " + extension);
+		}
+	}
+
+	/**
+	 * Extract a compressed archive.
+	 *
+	 * @param in
+	 *            compressed archive, read as it's extracted
+	 * @param filename
+	 *            name of the archive, for the compression format
+	 * @param destination
+	 *            folder to extract to
+	 * @throws IOException
+	 */
+	public void extract(InputStream in, String filename, File destination) throws IOException {
+		extract(new TarArchiveInputStream(decompressor(in, filename)), destination);
+	}
+
+	/**
+	 * Extract all entries of the tar stream into the destination.
+	 *
+	 * @param tar
+	 *            uncompressed tar stream
+	 * @param destination
+	 *            folder to extract to
+	 * @throws IOException
+	 */
+	public void extract(TarArchiveInputStream tar, File destination) throws IOException {
+		String root = destination.getCanonicalPath() + File.separator;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		TarArchiveEntry entry;
+		while ((entry = tar.getNextTarEntry()) != null) {
+			File f = new File(destination, entry.getName());
+			// don't let entries escape the destination folder
+			checkInside(f, root, entry.getName());
+
+			if (entry.isDirectory()) {
+				f.mkdirs();
+				setMode(f, entry.getMode());
+				continue;
+			}
+
+			f.getParentFile().mkdirs();
+			if (f.exists()) {
+				f.delete();
+			}
+			if (entry.isSymbolicLink()) {
+				symlink(entry.getLinkName(), f);
+			} else if (entry.isLink()) {
+				// hard links point to an entry that was already extracted,
+				// never to a file outside of the destination
+				File linked = new File(destination, entry.getLinkName());
+				checkInside(linked, root, entry.getLinkName());
+				InputStream target = new FileInputStream(linked);
+				try {
+					write(target, f, buffer);
+				} finally {
+					target.close();
+				}
+				setMode(f, entry.getMode());
+			} else if (entry.isFile()) {
+				write(tar, f, buffer);
+				setMode(f, entry.getMode());
+				f.setLastModified(entry.getModTime().getTime());
+			} else {
+				l.warning("Skipping special file " + entry.getName());
+			}
+		}
+	}
+
+	/**
+	 * Extract the tar stream over a previous extraction in the destination,
+	 * only writing the files whose contents differ from the ones on disk.
+	 * 
+	 * Each file is compared with the one on disk as it's read from the
+	 * stream, so unchanged files are read but not written, and files changed
+	 * or deleted locally are restored. Changed files are written to a
+	 * temporary file and renamed, so hard links to them (e.g. from the
+	 * extracted store) are left alone. Nothing is deleted but what entries of
+	 * another type are in the way of.
+	 * 
+	 * @param entries
+	 *            filled with the entries extracted so far, by relative path:
+	 *            DIR, LINK or the MD5 and mode of the file ("&lt;md5&gt; 644")
+	 * @throws IOException
+	 */
+	public void update(TarArchiveInputStream tar, File destination, Map<String, String> entries)
+			throws IOException {
+		String root = destination.getCanonicalPath() + File.separator;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		byte[] current = new byte[BUFFER_SIZE];
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		TarArchiveEntry entry;
+		while ((entry = tar.getNextTarEntry()) != null) {
+			String path = getPath(entry.getName());
+			if (path.length() == 0) {
+				// the destination itself
+				continue;
+			}
+			File f = new File(destination, path);
+			// the file itself may be a link from the previous version, only
+			// its folder must be inside
+			if (f.getName().equals("..")
+					|| !(f.getParentFile().getCanonicalPath() + File.separator).startsWith(root)) {
+				throw new SuperNannyError("Archive entry outside of destination: "
+						+ entry.getName());
+			}
+
+			if (entry.isDirectory()) {
+				if (isSymlink(f) || f.isFile()) {
+					f.delete();
+				}
+				f.mkdirs();
+				setMode(f, entry.getMode());
+				entries.put(path, DIR);
+				continue;
+			}
+
+			if (isSymlink(f)) {
+				if (entry.isSymbolicLink() && readSymlink(f).equals(entry.getLinkName())) {
+					entries.put(path, LINK);
+					continue;
+				}
+				f.delete();
+			} else if (f.isDirectory()) {
+				deleteTree(f);
+			}
+			f.getParentFile().mkdirs();
+			if (entry.isSymbolicLink()) {
+				f.delete();
+				symlink(entry.getLinkName(), f);
+				entries.put(path, LINK);
+			} else if (entry.isLink() || entry.isFile()) {
+				InputStream in = tar;
+				long size = entry.getSize();
+				if (entry.isLink()) {
+					File linked = new File(destination, entry.getLinkName());
+					checkInside(linked, root, entry.getLinkName());
+					in = new FileInputStream(linked);
+					size = linked.length();
+				}
+				boolean written;
+				try {
+					written = writeChanges(in, f, size, md5, buffer, current);
+				} finally {
+					if (in != tar) {
+						in.close();
+					}
+				}
+				// unchanged files may share their inode with the extracted store,
+				// they are left alone unless the mode is wrong
+				if (written || f.canExecute() != ((entry.getMode() & 0111) != 0)) {
+					setMode(f, entry.getMode());
+				}
+				if (written && entry.isFile()) {
+					f.setLastModified(entry.getModTime().getTime());
+				}
+				entries.put(path, new String(Hex.encodeHex(md5.digest())) + " "
+						+ ((entry.getMode() & 0111) != 0 ? "755" : "644"));
+			} else {
+				l.warning("Skipping special file " + entry.getName());
+			}
+		}
+	}
+
+	/**
+	 * @return path of the entry relative to the root of the archive, without
+	 *         leading "./" or trailing "/"
+	 */
+	private String getPath(String name) {
+		while (name.startsWith(ENTRY_PREFIX)) {
+			name = name.substring(ENTRY_PREFIX.length());
+		}
+		while (name.endsWith("/")) {
+			name = name.substring(0, name.length() - 1);
+		}
+		return name.equals(".") ? "" : name;
+	}
+
+	/**
+	 * Write the contents to the file unless it already has them, comparing
+	 * them as they are read. The digest ends up with the MD5 of the contents.
+	 * 
+	 * @return if the file was written
+	 */
+	private boolean writeChanges(InputStream in, File f, long size, MessageDigest md5,
+			byte[] buffer, byte[] current) throws IOException {
+		md5.reset();
+		long same = 0;
+		int read = 0;
+		if (f.isFile() && f.length() == size) {
+			InputStream old = new FileInputStream(f);
+			try {
+				while (true) {
+					read = readFully(in, buffer, buffer.length);
+					if (read == 0) {
+						// all of it is the same
+						return false;
+					}
+					md5.update(buffer, 0, read);
+					if (readFully(old, current, read) != read || !equal(buffer, current, read)) {
+						break;
+					}
+					same += read;
+				}
+			} finally {
+				old.close();
+			}
+		}
+
+		// the part that is the same is copied from the old file, the rest
+		// comes from the stream
+		File tmp = new File(f.getParentFile(), "." + f.getName() + TMP_SUFFIX);
+		OutputStream out = new FileOutputStream(tmp);
+		try {
+			if (same > 0) {
+				InputStream old = new FileInputStream(f);
+				try {
+					while (same > 0) {
+						int r = readFully(old, current, (int) Math.min(current.length, same));
+						if (r == 0) {
+							throw new IOException(f + " changed while it was updated");
+						}
+						out.write(current, 0, r);
+						same -= r;
+					}
+				} finally {
+					old.close();
+				}
+			}
+			out.write(buffer, 0, read);
+			int r;
+			while ((r = in.read(buffer)) != -1) {
+				md5.update(buffer, 0, r);
+				out.write(buffer, 0, r);
+			}
+		} catch (IOException e) {
+			out.close();
+			tmp.delete();
+			throw e;
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("Can't move " + tmp + " to " + f);
+		}
+		return true;
+	}
+
+	/**
+	 * Read until the length is filled or the stream ends.
+	 * 
+	 * @return bytes read, 0 at the end of the stream
+	 */
+	private int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+		int total = 0;
+		while (total < length) {
+			int r = in.read(buffer, total, length - total);
+			if (r == -1) {
+				break;
+			}
+			total += r;
+		}
+		return total;
+	}
+
+	private boolean equal(byte[] a, byte[] b, int length) {
+		for (int i = 0; i < length; i++) {
+			if (a[i] != b[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Delete the folder and everything in it, without following links.
+	 */
+	private void deleteTree(File f) throws IOException {
+		if (!isSymlink(f)) {
+			File[] children = f.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					deleteTree(child);
+				}
+			}
+		}
+		if (!f.delete() && f.exists()) {
+			throw new IOException("Can't delete " + f);
+		}
+	}
+
+	/**
+	 * Fail unless the file is under the root folder once links are resolved.
+	 */
+	private void checkInside(File f, String root, String name) throws IOException {
+		if (!(f.getCanonicalPath() + File.separator).startsWith(root)) {
+			throw new SuperNannyError("Archive entry outside of destination: " + name);
+		}
+	}
+
+	/**
+	 * Create a compressed archive of the folder, with the same layout as
+	 * "tar -C folder ."
+	 *
+	 * @param folder
+	 *            folder to archive
+	 * @param out
+	 *            stream for the compressed archive
+	 * @param extension
+	 *            archive extension, for the compression format
+	 * @param excludes
+	 *            prefixes of file names to skip (e.g. ".git")
+	 * @return uncompressed size of the archived files
+	 * @throws IOException
+	 */
+	public long create(File folder, OutputStream out, String extension, String[] excludes)
+			throws IOException {
+		return createTar(folder, compressor(out, extension), excludes);
+	}
+
+	/**
+	 * Write an uncompressed tar of the folder, with the same layout as
+	 * "tar -C folder ." The stream is closed when done.
+	 *
+	 * @param folder
+	 *            folder to archive
+	 * @param out
+	 *            stream for the tar, usually a compressor
+	 * @param excludes
+	 *            prefixes of file names to skip (e.g. ".git")
+	 * @return uncompressed size of the archived files
+	 * @throws IOException
+	 */
+	public long createTar(File folder, OutputStream out, String[] excludes) throws IOException {
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+		tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+		tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_STAR);
+		long size = 0;
+		try {
+			TarArchiveEntry rootEntry = new TarArchiveEntry(ENTRY_PREFIX);
+			rootEntry.setMode(0755 | 040000);
+			rootEntry.setModTime(folder.lastModified());
+			tar.putArchiveEntry(rootEntry);
+			tar.closeArchiveEntry();
+			size = addChildren(tar, folder.getCanonicalFile(), ENTRY_PREFIX, excludes);
+			tar.finish();
+		} finally {
+			tar.close();
+		}
+		return size;
+	}
+
+	private long addChildren(TarArchiveOutputStream tar, File folder, String prefix,
+			String[] excludes) throws IOException {
+		long size = 0;
+		byte[] buffer = new byte[BUFFER_SIZE];
+		String[] names = folder.list();
+		if (names == null) {
+			throw new IOException("Can't list " + folder);
+		}
+		Arrays.sort(names);
+		for (String name : names) {
+			if (isExcluded(name, excludes)) {
+				continue;
+			}
+			File f = new File(folder, name);
+			String entryName = prefix + name;
+			if (isSymlink(f)) {
+				TarArchiveEntry entry = new TarArchiveEntry(entryName, TarArchiveEntry.LF_SYMLINK);
+				entry.setLinkName(readSymlink(f));
+				entry.setModTime(f.lastModified());
+				tar.putArchiveEntry(entry);
+				tar.closeArchiveEntry();
+			} else if (f.isDirectory()) {
+				TarArchiveEntry entry = new TarArchiveEntry(f, entryName);
+				entry.setMode(040000 | getMode(f));
+				tar.putArchiveEntry(entry);
+				tar.closeArchiveEntry();
+				size += addChildren(tar, f, entryName + "/", excludes);
+			} else if (f.isFile()) {
+				TarArchiveEntry entry = new TarArchiveEntry(f, entryName);
+				entry.setMode(0100000 | getMode(f));
+				tar.putArchiveEntry(entry);
+				InputStream in = new FileInputStream(f);
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1) {
+						tar.write(buffer, 0, read);
+					}
+				} finally {
+					in.close();
+				}
+				tar.closeArchiveEntry();
+				size += f.length();
+			}
+		}
+		return size;
+	}
+
+	private boolean isExcluded(String name, String[] excludes) {
+		for (String exclude : excludes) {
+			if (name.startsWith(exclude)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void write(InputStream in, File f, byte[] buffer) throws IOException {
+		OutputStream out = new FileOutputStream(f);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Apply the permissions of a tar entry. The owner always keeps write
+	 * permission so the dependency can be deleted or updated later.
+	 */
+	private void setMode(File f, int mode) {
+		f.setReadable((mode & 0444) != 0, (mode & 0044) == 0);
+		f.setWritable(true, true);
+		f.setExecutable((mode & 0111) != 0, (mode & 0011) == 0);
+	}
+
+	private int getMode(File f) {
+		return f.canExecute() ? 0755 : 0644;
+	}
+
+	/**
+	 * Checking for symlinks in java 6 is practically impossible, a file is a
+	 * link when its canonical path differs from the one of its folder plus
+	 * its name.
+	 */
+	public boolean isSymlink(File f) throws IOException {
+		File canonical = new File(f.getParentFile().getCanonicalFile(), f.getName());
+		return !canonical.getCanonicalFile().equals(canonical.getAbsoluteFile());
+	}
+
+	private String readSymlink(File f) throws IOException {
+		return runCommand("readlink", f.getAbsolutePath()).trim();
+	}
+
+	private void symlink(String target, File f) throws IOException {
+		runCommand("ln", "-s", target, f.getAbsolutePath());
+	}
+
+	/**
+	 * Symlinks can't be handled from java 6, so they are delegated to a
+	 * process. They are rare enough not to matter for performance.
+	 */
+	private String runCommand(String... command) throws IOException {
+		Process p = new ProcessBuilder(command).redirectErrorStream(true).start();
+		InputStream in = p.getInputStream();
+		StringBuilder output = new StringBuilder();
+		try {
+			byte[] buffer = new byte[1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				output.append(new String(buffer, 0, read));
+			}
+		} finally {
+			in.close();
+		}
+		try {
+			if (p.waitFor() != 0) {
+				throw new SuperNannyError("Error executing: " + Arrays.toString(command)
+						+ "; output: " + output);
+			}
+		} catch (InterruptedException e) {
+			throw new SuperNannyError(e);
+		}
+		return output.toString();
+	}
+}
@@ -0,0 +1,35 @@
+package com.tuenti.supernanny.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that counts the bytes written through it.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+	private long count = 0;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	/**
+	 * @return bytes written so far
+	 */
+	public long getCount() {
+		return count;
+	}
+}
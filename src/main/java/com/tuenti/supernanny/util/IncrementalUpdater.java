@@ -0,0 +1,140 @@
+package com.tuenti.supernanny.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+
+import com.google.inject.Inject;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.strategy.TarArchiver;
+
+/**
+ * Updates a fetched dependency in place from the archive of its new version,
+ * writing only the files that changed.
+ *
+ * Every dependency updated this way keeps a manifest of its files, folders and
+ * links, with the hash and mode of the files (.supernanny.manifest, next to
+ * the .supernanny stamp). The archive is extracted over the dependency
+ * comparing every file with the one on disk as it streams, so unchanged files
+ * are only read and files changed or deleted locally are restored. Then the
+ * entries of the previous manifest missing from the archive are deleted;
+ * anything else not in the manifest, e.g. build outputs, is left alone. A
+ * dependency without manifest is replaced as a whole.
+ */
+public class IncrementalUpdater {
+	public static final String MANIFEST_FILE = ".supernanny.manifest";
+
+	@Inject
+	private Util util;
+	@Inject
+	private TarArchiver archiver;
+	@Inject
+	private Logger l;
+
+	/**
+	 * Update the destination with the contents of the tar stream.
+	 */
+	public void update(TarArchiveInputStream tar, File destination) throws IOException {
+		Map<String, String> previous = readManifest(destination);
+		if (previous == null) {
+			// nothing to compare with, replace it all
+			if (destination.exists() || util.isSymlink(destination)) {
+				util.deleteDir(destination);
+			}
+			previous = new TreeMap<String, String>();
+		}
+		destination.mkdirs();
+
+		Map<String, String> entries = new TreeMap<String, String>();
+		boolean updated = false;
+		try {
+			archiver.update(tar, destination, entries);
+			updated = true;
+		} finally {
+			if (!updated) {
+				// keep what was written so far, the next update deletes what
+				// isn't in its version
+				Map<String, String> written = new TreeMap<String, String>(previous);
+				written.putAll(entries);
+				writeManifest(destination, written);
+			}
+		}
+
+		// deepest first, so folders are empty by the time they are deleted
+		List<String> removed = new ArrayList<String>();
+		for (String path : previous.keySet()) {
+			if (!entries.containsKey(path)) {
+				removed.add(path);
+			}
+		}
+		Collections.sort(removed, Collections.reverseOrder());
+		String root = destination.getCanonicalPath() + File.separator;
+		for (String path : removed) {
+			File target = new File(destination, path);
+			// a folder of the previous version may be a link now
+			if (!(target.getParentFile().getCanonicalPath() + File.separator).startsWith(root)) {
+				continue;
+			}
+			if (TarArchiver.DIR.equals(previous.get(path)) && !archiver.isSymlink(target)) {
+				// only if empty, other files may have been added to it
+				if (!target.delete() && target.exists()) {
+					// kept in the manifest, to delete it once it's empty
+					entries.put(path, previous.get(path));
+				}
+			} else if (target.isFile() || archiver.isSymlink(target)) {
+				target.delete();
+			}
+		}
+
+		writeManifest(destination, entries);
+		l.fine("Updated " + destination + ": " + entries.size() + " entries, " + removed.size()
+				+ " removed");
+	}
+
+	/**
+	 * @return entries by path, or null if there is no manifest
+	 */
+	private Map<String, String> readManifest(File folder) throws IOException {
+		File manifest = new File(folder, MANIFEST_FILE);
+		if (!manifest.isFile()) {
+			return null;
+		}
+		Map<String, String> entries = new TreeMap<String, String>();
+		BufferedReader in = new BufferedReader(new FileReader(manifest));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				// <path>\t<hash> <mode>, <path>\tdir or <path>\tlink
+				int tab = line.lastIndexOf('\t');
+				if (tab > 0) {
+					entries.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	private void writeManifest(File folder, Map<String, String> entries) throws IOException {
+		BufferedWriter out = new BufferedWriter(new FileWriter(new File(folder, MANIFEST_FILE)));
+		try {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.tuenti.supernanny.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that keeps the first bytes read from it, so it can be read
+ * again from the beginning as long as no more than that were read.
+ */
+public class ReplayableInputStream extends FilterInputStream {
+	private final int capacity;
+	private ByteArrayOutputStream recorded;
+	/** Recorded bytes being read again, -1 when reading from the stream. */
+	private int replayPosition = -1;
+	private byte[] replayed;
+
+	/**
+	 * @param capacity
+	 *            maximum number of bytes kept
+	 */
+	public ReplayableInputStream(InputStream in, int capacity) {
+		super(in);
+		this.capacity = capacity;
+		this.recorded = new ByteArrayOutputStream(Math.min(capacity, 64 * 1024));
+	}
+
+	/**
+	 * Read again from the beginning.
+	 *
+	 * @return false if more bytes than the capacity were read, the stream
+	 *         can't be replayed
+	 */
+	public boolean replay() {
+		if (recorded == null) {
+			return false;
+		}
+		replayed = recorded.toByteArray();
+		replayPosition = 0;
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int read = read(b, 0, 1);
+		return read == -1 ? -1 : b[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (replayPosition >= 0) {
+			if (replayPosition < replayed.length) {
+				int read = Math.min(len, replayed.length - replayPosition);
+				System.arraycopy(replayed, replayPosition, b, off, read);
+				replayPosition += read;
+				return read;
+			}
+			// replayed everything, continue with the stream
+			replayPosition = -1;
+			replayed = null;
+		}
+
+		int read = super.read(b, off, len);
+		if (read > 0 && recorded != null) {
+			if (recorded.size() + read > capacity) {
+				// too much to keep
+				recorded = null;
+			} else {
+				recorded.write(b, off, read);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes must be recorded too
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (replayPosition >= 0) {
+			return replayed.length - replayPosition;
+		}
+		return super.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
@@ -0,0 +1,74 @@
+package com.tuenti.supernanny.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Input stream that copies everything read from it to an output stream.
+ */
+public class TeeInputStream extends FilterInputStream {
+	private OutputStream copy;
+
+	public TeeInputStream(InputStream in, OutputStream copy) {
+		super(in);
+		this.copy = copy;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			copy.write(b);
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) {
+			copy.write(b, off, read);
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes must be copied too
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read the rest of the stream so the copy is complete.
+	 */
+	public void drain() throws IOException {
+		byte[] buffer = new byte[8192];
+		while (read(buffer, 0, buffer.length) != -1) {
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			copy.close();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package com.tuenti.supernanny.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Input stream that computes digests of everything read from it, to check
+ * them against the expected ones once the stream has been consumed.
+ */
+public class VerifyingInputStream extends FilterInputStream {
+	/**
+	 * The contents don't match the expected digest, the stream was corrupted or
+	 * truncated.
+	 */
+	public static class DigestMismatchException extends IOException {
+		private static final long serialVersionUID = -1733528710235124707L;
+
+		public DigestMismatchException(String message) {
+			super(message);
+		}
+	}
+
+	private final Map<MessageDigest, String> expected = new LinkedHashMap<MessageDigest, String>();
+
+	public VerifyingInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Check the contents against the given digest.
+	 *
+	 * @param algorithm
+	 *            digest algorithm, e.g. MD5 or SHA-256
+	 * @param hex
+	 *            expected digest in hexadecimal
+	 */
+	public VerifyingInputStream expect(String algorithm, String hex) {
+		try {
+			expected.put(MessageDigest.getInstance(algorithm), hex.toLowerCase());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		return this;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			for (MessageDigest digest : expected.keySet()) {
+				digest.update((byte) b);
+			}
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int read = super.read(b, off, len);
+		if (read > 0) {
+			for (MessageDigest digest : expected.keySet()) {
+				digest.update(b, off, read);
+			}
+		}
+		return read;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		// skipped bytes must be digested too
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while (skipped < n) {
+			int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+			if (read == -1) {
+				break;
+			}
+			skipped += read;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Read the rest of the stream and check the digests.
+	 *
+	 * @throws DigestMismatchException
+	 *             if any of them doesn't match
+	 */
+	public void verify() throws IOException {
+		byte[] buffer = new byte[8192];
+		while (read(buffer, 0, buffer.length) != -1) {
+		}
+		for (Map.Entry<MessageDigest, String> e : expected.entrySet()) {
+			String actual = new String(Hex.encodeHex(e.getKey().digest()));
+			if (!actual.equals(e.getValue())) {
+				throw new DigestMismatchException(e.getKey().getAlgorithm() + " mismatch: expected "
+						+ e.getValue() + " but got " + actual);
+			}
+		}
+	}
+}
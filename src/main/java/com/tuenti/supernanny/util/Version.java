@@ -12,6 +12,15 @@ public class Version {
 		this.parsedVersion = Versions.parse(versionString);
 	}
 
+	/**
+	 * Version parsed beforehand, as Versions.parse would.
+	 */
+	@SuppressWarnings("rawtypes")
+	public Version(String versionString, Comparable[] parsedVersion) {
+		this.versionString = versionString;
+		this.parsedVersion = parsedVersion;
+	}
+
 	public String getVersionString() {
 		return versionString;
 	}
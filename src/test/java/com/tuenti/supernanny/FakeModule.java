@@ -14,7 +14,9 @@ import org.mockito.Mockito;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 import com.tuenti.supernanny.repo.RepoProvider;
+import com.tuenti.supernanny.strategy.DvcsStrategy;
 import com.tuenti.supernanny.strategy.GitStrategy;
 
 /**
@@ -33,6 +35,7 @@ public class FakeModule extends AbstractModule {
 	protected void configure() {
 		bind(Util.class).toInstance(util);
 		bind(GitStrategy.class).toInstance(strategy);
+		bind(DvcsStrategy.class).annotatedWith(Names.named("git")).toInstance(strategy);
 		bind(RepoProvider.class).in(Scopes.SINGLETON);
 	}
 	
@@ -0,0 +1,38 @@
+package com.tuenti.supernanny;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Small text files for the tests, which get their folders from a
+ * TemporaryFolder rule so nothing is left behind.
+ */
+public class TestFiles {
+	/**
+	 * Write the file, creating its folders.
+	 */
+	public static void write(File f, String content) throws IOException {
+		f.getParentFile().mkdirs();
+		FileWriter w = new FileWriter(f);
+		try {
+			w.write(content);
+		} finally {
+			w.close();
+		}
+	}
+
+	/**
+	 * @return the first line of the file
+	 */
+	public static String read(File f) throws IOException {
+		BufferedReader r = new BufferedReader(new FileReader(f));
+		try {
+			return r.readLine();
+		} finally {
+			r.close();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.tuenti.supernanny.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpDownloaderTest {
+	private HttpServer server;
+	private String url;
+	private byte[] content = new byte[20 * 1024 * 1024];
+	/** Requests that get their connection dropped halfway. */
+	private AtomicInteger drops = new AtomicInteger();
+	private AtomicInteger rangeRequests = new AtomicInteger();
+	private HttpDownloader downloader = Guice.createInjector().getInstance(HttpDownloader.class);
+
+	@Before
+	public void setUp() throws IOException {
+		new Random(42).nextBytes(content);
+		downloader.setBackoff(10);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				if (!exchange.getRequestURI().getPath().equals("/artifact")) {
+					exchange.sendResponseHeaders(404, -1);
+					exchange.close();
+					return;
+				}
+				int first = 0;
+				int last = content.length - 1;
+				String range = exchange.getRequestHeaders().getFirst("Range");
+				exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+				exchange.getResponseHeaders().add("ETag", "\"v1\"");
+				if (range != null) {
+					rangeRequests.incrementAndGet();
+					String[] bounds = range.substring("bytes=".length()).split("-", -1);
+					first = Integer.parseInt(bounds[0]);
+					if (bounds[1].length() > 0) {
+						last = Integer.parseInt(bounds[1]);
+					}
+					exchange.getResponseHeaders().add("Content-Range",
+							"bytes " + first + "-" + last + "/" + content.length);
+				}
+				int length = last - first + 1;
+				if (exchange.getRequestMethod().equals("HEAD")) {
+					exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+					exchange.sendResponseHeaders(200, -1);
+					exchange.close();
+					return;
+				}
+				exchange.sendResponseHeaders(range != null ? 206 : 200, length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					if (drops.getAndDecrement() > 0) {
+						out.write(content, first, length / 2);
+						out.flush();
+						// drop the connection
+						throw new IOException("dropped");
+					}
+					out.write(content, first, length);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		drops.set(2);
+		byte[] read = read(downloader.open(url + "artifact", 0));
+		Assert.assertTrue(Arrays.equals(content, read));
+		Assert.assertEquals(2, rangeRequests.get());
+
+		// a partial download is resumed from its length
+		byte[] tail = read(downloader.open(url + "artifact", 1000));
+		Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, content.length), tail));
+	}
+
+	@Test
+	public void testSegments() throws IOException {
+		File file = File.createTempFile("SN_download", "");
+		file.deleteOnExit();
+		file.delete();
+		drops.set(1);
+		downloader.download(url + "artifact", file, 4);
+		Assert.assertTrue(Arrays.equals(content, read(new FileInputStream(file))));
+		// two segments of 8MB at least, plus the resumed one
+		Assert.assertEquals(3, rangeRequests.get());
+	}
+
+	@Test(expected = FileNotFoundException.class)
+	public void testNotFound() throws IOException {
+		downloader.open(url + "missing", 0);
+	}
+}
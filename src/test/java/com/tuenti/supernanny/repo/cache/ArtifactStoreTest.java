@@ -0,0 +1,69 @@
+package com.tuenti.supernanny.repo.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Modules;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+
+public class ArtifactStoreTest {
+	private static final String MD5_A = "0123456789abcdef0123456789abcdef";
+	private static final String MD5_B = "fedcba9876543210fedcba9876543210";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File stored(File folder, String name, long length, long lastModified)
+			throws IOException {
+		File f = new File(folder, name);
+		RandomAccessFile file = new RandomAccessFile(f, "rw");
+		file.setLength(length);
+		file.close();
+		f.setLastModified(lastModified);
+		return f;
+	}
+
+	/**
+	 * Downloads kept to be resumed aren't archives of the store, they are
+	 * neither counted nor evicted.
+	 */
+	@Test
+	public void testEvictSkipsPartial() throws IOException {
+		final Util util = Mockito.mock(Util.class);
+		Mockito.when(util.getCacheFolder()).thenReturn(tmp.getRoot());
+		final CliParser p = new CliParser();
+		p.cacheSize = "1";
+		ArtifactStore store = Guice.createInjector(
+				Modules.override(new FakeModule()).with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(Util.class).toInstance(util);
+						bind(CliParser.class).toInstance(p);
+					}
+				})).getInstance(ArtifactStore.class);
+
+		File folder = new File(tmp.getRoot(), "artifacts");
+		folder.mkdirs();
+		long now = System.currentTimeMillis();
+		File partial = stored(folder, MD5_A + ".partial", 2 * 1024 * 1024, now - 60000);
+		File old = stored(folder, MD5_A, 600 * 1024, now - 30000);
+		File recent = stored(folder, MD5_B, 600 * 1024, now);
+
+		store.evict(recent);
+		Assert.assertTrue(partial.exists());
+		Assert.assertFalse(old.exists());
+		Assert.assertTrue(recent.exists());
+	}
+}
@@ -0,0 +1,89 @@
+package com.tuenti.supernanny.repo.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.Assert;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Modules;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.SuperNannyUtil;
+import com.tuenti.supernanny.TestFiles;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+
+public class ExtractedStoreTest {
+	private static final String MD5_A = "0123456789abcdef0123456789abcdef";
+	private static final String MD5_B = "fedcba9876543210fedcba9876543210";
+
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private ExtractedStore store;
+	private File cache;
+
+	@Before
+	public void setUp() throws IOException {
+		// spaces in the path must survive the cp command
+		cache = tmp.newFolder("the cache");
+		final CliParser p = new CliParser();
+		p.linkStoreSize = "1";
+		final Util util = Mockito.spy(Guice.createInjector(
+				Modules.override(new FakeModule()).with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(CliParser.class).toInstance(p);
+					}
+				})).getInstance(SuperNannyUtil.class));
+		Mockito.doReturn(cache).when(util).getCacheFolder();
+		store = Guice.createInjector(Modules.override(new FakeModule()).with(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(CliParser.class).toInstance(p);
+				bind(Util.class).toInstance(util);
+			}
+		})).getInstance(ExtractedStore.class);
+	}
+
+	private File put(String md5, long length) throws IOException {
+		File folder = store.newTmpFolder(md5);
+		RandomAccessFile file = new RandomAccessFile(new File(folder, "data"), "rw");
+		file.setLength(length);
+		file.close();
+		return store.put(md5, folder);
+	}
+
+	@Test
+	public void testLink() throws IOException {
+		File extracted = store.newTmpFolder(MD5_A);
+		TestFiles.write(new File(extracted, "dir/a.txt"), "a");
+		extracted = store.put(MD5_A, extracted);
+
+		File destination = new File(tmp.getRoot(), "deps dir/lib");
+		Assert.assertTrue(store.link(MD5_A, extracted, destination));
+		Assert.assertEquals("a", TestFiles.read(new File(destination, "dir/a.txt")));
+		Assert.assertEquals(MD5_A, store.getLinkedMd5(destination));
+	}
+
+	/**
+	 * The least recently linked entries are evicted beyond the maximum size.
+	 */
+	@Test
+	public void testEvict() throws IOException {
+		File old = put(MD5_A, 600 * 1024);
+		old.setLastModified(System.currentTimeMillis() - 60000);
+		File recent = put(MD5_B, 600 * 1024);
+
+		Assert.assertFalse(old.exists());
+		Assert.assertTrue(recent.isDirectory());
+	}
+}
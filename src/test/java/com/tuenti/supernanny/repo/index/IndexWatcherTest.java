@@ -0,0 +1,151 @@
+package com.tuenti.supernanny.repo.index;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.repo.index.IndexCache.CachedIndex;
+
+/**
+ * Against a stand-in repo server holding index revalidations until the index
+ * changes, like indexGenerator/index_server.py.
+ */
+public class IndexWatcherTest {
+	private static final String OLD_INDEX = "Name: foo\nVersion: 0.9\nFile: foo-0.9.tar.xz\nMD5: aaa\nDeps:\n\n";
+	private static final String NEW_INDEX = OLD_INDEX
+			+ "Name: foo\nVersion: 1.0\nFile: foo-1.0.tar.xz\nMD5: bbb\nDeps:\n\n";
+
+	private HttpServer server;
+	private String url;
+	private final Object lock = new Object();
+	private String index = OLD_INDEX;
+	private int indexVersion = 1;
+	private boolean archivePublished;
+	private AtomicInteger indexRequests = new AtomicInteger();
+	private Timer timer = new Timer(true);
+	private IndexWatcher watcher = Guice.createInjector(new FakeModule()).getInstance(
+			IndexWatcher.class);
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				try {
+					if (path.equals("/foo-1.0.tar.xz")) {
+						synchronized (lock) {
+							exchange.sendResponseHeaders(archivePublished ? 200 : 404, -1);
+						}
+					} else if (path.equals("/index")) {
+						indexRequests.incrementAndGet();
+						sendIndex(exchange);
+					} else {
+						exchange.sendResponseHeaders(404, -1);
+					}
+				} catch (InterruptedException e) {
+					exchange.sendResponseHeaders(500, -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	private void sendIndex(HttpExchange exchange) throws IOException, InterruptedException {
+		String body;
+		String etag;
+		synchronized (lock) {
+			String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+			String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+			if (prefer != null && ("\"" + indexVersion + "\"").equals(ifNoneMatch)) {
+				lock.wait(Integer.parseInt(prefer.substring("wait=".length())) * 1000L);
+			}
+			etag = "\"" + indexVersion + "\"";
+			if (etag.equals(ifNoneMatch)) {
+				exchange.getResponseHeaders().add("ETag", etag);
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			body = index;
+		}
+		byte[] bytes = body.getBytes("UTF-8");
+		exchange.getResponseHeaders().add("ETag", etag);
+		exchange.sendResponseHeaders(200, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+	}
+
+	private void later(long millis, final Runnable r) {
+		timer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					r.run();
+					lock.notifyAll();
+				}
+			}
+		}, millis);
+	}
+
+	@After
+	public void tearDown() {
+		timer.cancel();
+		server.stop(0);
+	}
+
+	@Test
+	public void testWaitForIndexUpdate() {
+		later(300, new Runnable() {
+			@Override
+			public void run() {
+				archivePublished = true;
+			}
+		});
+		later(1500, new Runnable() {
+			@Override
+			public void run() {
+				index = NEW_INDEX;
+				indexVersion++;
+			}
+		});
+		long start = System.currentTimeMillis();
+		CachedIndex found = watcher.waitFor(url, null, "foo-1.0.tar.xz", "foo", "1.0", "BBB",
+				10000);
+		Assert.assertNotNull(found);
+		Assert.assertEquals(2, found.artifacts.size());
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+		// the first load plus the revalidation held until the update
+		Assert.assertEquals(2, indexRequests.get());
+	}
+
+	@Test
+	public void testOlderPublication() {
+		synchronized (lock) {
+			archivePublished = true;
+			index = NEW_INDEX;
+		}
+		// the index lists the version with another archive
+		Assert.assertNull(watcher.waitFor(url, null, "foo-1.0.tar.xz", "foo", "1.0", "ccc", 1500));
+		Assert.assertNotNull(watcher.waitFor(url, null, "foo-1.0.tar.xz", "foo", "1.0", null, 1500));
+	}
+}
@@ -0,0 +1,93 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.Guice;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.strategy.ArchiveStrategy.CompressingBody;
+
+public class CompressingBodyTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * Compression failing halfway through the archive, like an unreadable
+	 * file would.
+	 */
+	static class FailingStrategy extends ArchiveStrategy {
+		@Override
+		CompressionStats compress(File depFolder, OutputStream out, String extension, int threads)
+				throws IOException {
+			out.write(new byte[100000]);
+			throw new IOException("Can't read " + depFolder);
+		}
+	}
+
+	private File makeFolder() throws IOException {
+		File dir = tmp.newFolder("publish");
+		FileWriter w = new FileWriter(new File(dir, "data"));
+		for (int i = 0; i < 10000; i++) {
+			w.write("line " + i + "\n");
+		}
+		w.close();
+		return dir;
+	}
+
+	private byte[] read(InputStream in, int max) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while (out.size() < max
+				&& (read = in.read(buffer, 0, Math.min(buffer.length, max - out.size()))) != -1) {
+			out.write(buffer, 0, read);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	@Test(timeout = 30000)
+	public void testReplay() throws IOException {
+		ArchiveStrategy strategy = Guice.createInjector(new FakeModule()).getInstance(
+				ArchiveStrategy.class);
+		CompressingBody body = strategy.new CompressingBody(makeFolder(),
+				ArchiveStrategy.TAR_GZ_EXT, 1);
+		try {
+			// an upload rejected with a 401 after sending part of the body
+			byte[] partial = read(body.open(), 1000);
+			byte[] archive = read(body.open(), Integer.MAX_VALUE);
+			Assert.assertTrue(Arrays.equals(partial, Arrays.copyOf(archive, partial.length)));
+			Assert.assertEquals(archive.length, body.getStats().getBytesOut());
+			Assert.assertNotNull(body.getStats().getMd5());
+		} finally {
+			body.close();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void testCompressionFails() throws IOException {
+		ArchiveStrategy strategy = Guice.createInjector(new FakeModule()).getInstance(
+				FailingStrategy.class);
+		CompressingBody body = strategy.new CompressingBody(makeFolder(),
+				ArchiveStrategy.TAR_GZ_EXT, 1);
+		try {
+			read(body.open(), Integer.MAX_VALUE);
+			Assert.fail("Read the whole body of a failed compression");
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage().startsWith("Can't read"));
+		} finally {
+			body.close();
+		}
+	}
+}
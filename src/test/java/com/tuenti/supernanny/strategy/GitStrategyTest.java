@@ -0,0 +1,97 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.tuenti.supernanny.SuperNannyUtil;
+import com.tuenti.supernanny.TestFiles;
+import com.tuenti.supernanny.Util;
+
+public class GitStrategyTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private GitStrategy strategy = Guice.createInjector(new AbstractModule() {
+		@Override
+		protected void configure() {
+			bind(Util.class).to(SuperNannyUtil.class);
+		}
+	}).getInstance(GitStrategy.class);
+
+	@Test
+	public void testExportUnsafeLinks() throws IOException {
+		Util util = strategy.util;
+		File work = tmp.newFolder("work");
+		String git = "git -C " + work + " ";
+		util.readProcess(git + "init -q");
+		TestFiles.write(new File(work, "lib/a.txt"), "a");
+		TestFiles.write(new File(work, "shared/x"), "x");
+		util.readProcess("ln -s a.txt " + work + "/lib/safe");
+		new File(work, "lib2").mkdirs();
+		util.readProcess("ln -s ../shared/x " + work + "/lib2/out");
+		util.readProcess(git + "add -A");
+		util.readProcess(git + "-c user.name=test -c user.email=test@localhost commit -q -m test");
+		String changeset = util.readProcess(git + "rev-parse HEAD").trim();
+
+		File lib = new File(tmp.getRoot(), "lib");
+		Assert.assertTrue(strategy.export(work, changeset, "lib", lib));
+		Assert.assertEquals("a", TestFiles.read(new File(lib, "safe")));
+
+		// the link would dangle, it's left to the checkout and rsync
+		File lib2 = new File(tmp.getRoot(), "lib2");
+		Assert.assertFalse(strategy.export(work, changeset, "lib2", lib2));
+		Assert.assertFalse(lib2.exists());
+
+		// inside of the whole tree
+		File all = new File(tmp.getRoot(), "all");
+		Assert.assertTrue(strategy.export(work, changeset, null, all));
+		Assert.assertEquals("x", TestFiles.read(new File(all, "lib2/out")));
+	}
+
+	@Test
+	public void testCheckoutDeepens() throws IOException {
+		Util util = strategy.util;
+		File work = tmp.newFolder("work");
+		String git = "git -C " + work + " ";
+		util.readProcess(git + "init -q");
+		String[] changesets = new String[30];
+		for (int i = 0; i < changesets.length; i++) {
+			TestFiles.write(new File(work, "a.txt"), "" + i);
+			util.readProcess(git + "add -A");
+			util.readProcess(git + "-c user.name=test -c user.email=test@localhost commit -q -m "
+					+ i);
+			changesets[i] = util.readProcess(git + "rev-parse HEAD").trim();
+		}
+		util.readProcess(git + "branch -f lib");
+
+		File clone = new File(tmp.getRoot(), "clone");
+		String uri = "file://" + work.getAbsolutePath();
+		strategy.init(clone, uri);
+		util.readProcess("git -C " + clone + " fetch -q --depth 1 origin lib");
+
+		// a few commits behind, deepened just enough
+		strategy.checkout(clone, uri, "lib", changesets[25]);
+		Assert.assertEquals("25", TestFiles.read(new File(clone, "a.txt")));
+		Assert.assertTrue(new File(clone, ".git/shallow").exists());
+
+		strategy.checkout(clone, uri, "lib", changesets[0]);
+		Assert.assertEquals("0", TestFiles.read(new File(clone, "a.txt")));
+	}
+
+	@Test
+	public void testIsUnsafeLink() {
+		Assert.assertFalse(GitStrategy.isUnsafeLink("a/b", "../c"));
+		Assert.assertFalse(GitStrategy.isUnsafeLink("a", "./b/../c"));
+		Assert.assertTrue(GitStrategy.isUnsafeLink("a", "../c"));
+		Assert.assertTrue(GitStrategy.isUnsafeLink("a", "/etc/passwd"));
+		Assert.assertTrue(GitStrategy.isUnsafeLink("a/b", "c/../../../d"));
+	}
+}
@@ -0,0 +1,125 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tuenti.supernanny.SuperNannyError;
+
+/**
+ * Against a stand-in command server speaking the protocol of "hg serve
+ * --cmdserver pipe".
+ */
+public class HgCommandServerTest {
+	private PipedInputStream serverOutput = new PipedInputStream();
+	private PipedOutputStream serverInput = new PipedOutputStream();
+	private Thread fake;
+	private HgCommandServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		final DataOutputStream out = new DataOutputStream(new PipedOutputStream(serverOutput));
+		final DataInputStream in = new DataInputStream(new PipedInputStream(serverInput));
+		fake = new Thread() {
+			@Override
+			public void run() {
+				try {
+					send(out, 'o', "capabilities: getencoding runcommand\nencoding: UTF-8");
+					String line;
+					while ((line = readLine(in)) != null) {
+						Assert.assertEquals("runcommand", line);
+						byte[] args = new byte[in.readInt()];
+						in.readFully(args);
+						answer(in, out, new String(args, "UTF-8").split("\0"));
+					}
+				} catch (IOException e) {
+					// the client is gone
+				}
+			}
+		};
+		fake.start();
+		server = new HgCommandServer(new File("repo"), null, serverOutput, serverInput);
+	}
+
+	private String readLine(DataInputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != '\n') {
+			if (c == -1) {
+				return null;
+			}
+			line.append((char) c);
+		}
+		return line.toString();
+	}
+
+	private void send(DataOutputStream out, char channel, String data) throws IOException {
+		byte[] bytes = data.getBytes("UTF-8");
+		out.write(channel);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.flush();
+	}
+
+	private void result(DataOutputStream out, int code) throws IOException {
+		out.write('r');
+		out.writeInt(4);
+		out.writeInt(code);
+		out.flush();
+	}
+
+	private void answer(DataInputStream in, DataOutputStream out, String[] args)
+			throws IOException {
+		if (args[0].equals("id")) {
+			send(out, 'e', "warning: ignored\n");
+			send(out, 'o', "abc123 ");
+			// optional channels the client doesn't know are skipped
+			send(out, 'd', "debug");
+			// input requests, answered with empty blocks
+			out.write('I');
+			out.writeInt(4096);
+			out.flush();
+			Assert.assertEquals(0, in.readInt());
+			out.write('L');
+			out.writeInt(4096);
+			out.flush();
+			Assert.assertEquals(0, in.readInt());
+			send(out, 'o', "tip\n");
+			result(out, 0);
+		} else {
+			send(out, 'o', "pulling\n");
+			send(out, 'e', "abort: " + args[args.length - 1] + " not found\n");
+			result(out, 255);
+		}
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		server.close();
+		fake.join(5000);
+	}
+
+	@Test(timeout = 10000)
+	public void testRunCommand() throws IOException {
+		Assert.assertEquals("abc123 tip\n", server.runCommand("id"));
+		// the session goes on after a failed command
+		try {
+			server.runCommand("pull", "-r", "missing");
+			Assert.fail("Failed command didn't throw");
+		} catch (SuperNannyError e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("hg pull -r missing"));
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("abort: missing not found"));
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("exit code 255"));
+		}
+		Assert.assertEquals("abc123 tip\n", server.runCommand("id"));
+	}
+}
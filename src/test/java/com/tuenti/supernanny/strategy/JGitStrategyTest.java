@@ -0,0 +1,86 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.tuenti.supernanny.TestFiles;
+import com.tuenti.supernanny.Util;
+
+public class JGitStrategyTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private JGitStrategy strategy = Guice.createInjector(new AbstractModule() {
+		@Override
+		protected void configure() {
+			bind(Util.class).toInstance(Mockito.mock(Util.class));
+		}
+	}).getInstance(JGitStrategy.class);
+
+	private RevCommit commit(Git git, String content, String tag) throws Exception {
+		TestFiles.write(new File(git.getRepository().getWorkTree(), ".DEP"), content);
+		git.add().addFilepattern(".DEP").call();
+		RevCommit commit = git.commit().setMessage(content).call();
+		git.tag().setName(tag).setAnnotated(false).call();
+		return commit;
+	}
+
+	@Test
+	public void testFetchTags() throws Exception {
+		// the remote, cloned bare like the ones in the servers
+		File work = tmp.newFolder("work");
+		Git git = Git.init().setDirectory(work).call();
+		RevCommit v1 = commit(git, "one", "lib-1.0");
+		RevCommit v2 = commit(git, "two", "lib-2.0");
+		File bare = tmp.newFolder("bare");
+		Git.cloneRepository().setBare(true).setURI(work.toURI().toString()).setDirectory(bare)
+				.call();
+		String uri = bare.toURI().toString();
+
+		String[] tags = strategy.getTags(uri, "lib");
+		Arrays.sort(tags);
+		Assert.assertEquals(Arrays.asList("lib-1.0", "lib-2.0"), Arrays.asList(tags));
+		Assert.assertEquals(v1.name(), strategy.resolveReference(uri, "lib-1.0"));
+		Assert.assertEquals(v2.name(), strategy.resolveReference(uri, "master"));
+		Assert.assertNull(strategy.resolveReference(uri, "lib-3.0"));
+		Map<String, String> refs = strategy.listRefs(uri);
+		Assert.assertEquals(v1.name(), refs.get("refs/tags/lib-1.0"));
+		Assert.assertEquals(v2.name(), refs.get("refs/heads/master"));
+
+		File clone = new File(tmp.getRoot(), "clone");
+		strategy.init(clone, uri);
+		Assert.assertEquals(v1.name(), strategy.checkoutVersion(uri, "lib", "lib-1.0", v1.name(),
+				clone));
+		Assert.assertEquals("one", TestFiles.read(new File(clone, ".DEP")));
+		Assert.assertEquals(v2.name(), strategy.checkoutVersion(uri, "lib", "lib-2.0", v2.name(),
+				clone));
+		Assert.assertEquals("two", TestFiles.read(new File(clone, ".DEP")));
+		Assert.assertEquals(v2.name(), strategy.getRepoChangeset(clone));
+
+		// already fetched, only checked out again
+		Assert.assertEquals(v1.name(), strategy.checkoutVersion(uri, "lib", "lib-1.0", v1.name(),
+				clone));
+		Assert.assertEquals("one", TestFiles.read(new File(clone, ".DEP")));
+		Assert.assertTrue(strategy.hasChangeset(clone, v2.name()));
+		Assert.assertFalse(strategy.hasChangeset(clone, "0123456789012345678901234567890123456789"));
+		Assert.assertFalse(strategy.hasChangeset(clone, "lib-1.0"));
+
+		// re-created, the previous clone is closed
+		strategy.init(clone, uri);
+		Assert.assertEquals(v2.name(), strategy.checkoutVersion(uri, "lib", "lib-2.0", v2.name(),
+				clone));
+		strategy.closeAll();
+	}
+}
@@ -0,0 +1,133 @@
+package com.tuenti.supernanny.strategy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.Assert;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.Guice;
+import com.tuenti.supernanny.SuperNannyError;
+import com.tuenti.supernanny.TestFiles;
+
+public class TarArchiverTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private TarArchiver archiver = Guice.createInjector().getInstance(TarArchiver.class);
+
+	private void roundTrip(String extension) throws Exception {
+		File source = tmp.newFolder("source");
+		TestFiles.write(new File(source, ".DEP"), "dep");
+		TestFiles.write(new File(source, "bin/run"), "run");
+		new File(source, "bin/run").setExecutable(true);
+		TestFiles.write(new File(source, ".git/HEAD"), "excluded");
+		TestFiles.write(new File(source, ".gitignore"), "excluded");
+		Runtime.getRuntime().exec(new String[] { "ln", "-s", "bin/run", new File(source, "link").getPath() }).waitFor();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		archiver.create(source, out, extension, new String[] { ".git", ".hg" });
+
+		File destination = tmp.newFolder("destination");
+		archiver.extract(new ByteArrayInputStream(out.toByteArray()), "test" + extension, destination);
+
+		Assert.assertEquals("dep", TestFiles.read(new File(destination, ".DEP")));
+		Assert.assertEquals("run", TestFiles.read(new File(destination, "bin/run")));
+		Assert.assertTrue(new File(destination, "bin/run").canExecute());
+		Assert.assertFalse(new File(destination, ".DEP").canExecute());
+		Assert.assertFalse(new File(destination, ".git").exists());
+		Assert.assertFalse(new File(destination, ".gitignore").exists());
+		// the link is kept as a link
+		Assert.assertEquals("run", TestFiles.read(new File(destination, "link")));
+		Assert.assertEquals(new File(destination, "bin/run").getCanonicalPath(),
+				new File(destination, "link").getCanonicalPath());
+	}
+
+	@Test
+	public void testGz() throws Exception {
+		roundTrip(ArchiveStrategy.TAR_GZ_EXT);
+	}
+
+	@Test
+	public void testBz2() throws Exception {
+		roundTrip(ArchiveStrategy.TAR_BZ2_EXT);
+	}
+
+	@Test
+	public void testXz() throws Exception {
+		roundTrip(ArchiveStrategy.TAR_XZ_EXT);
+	}
+
+	@Test
+	public void testParallelGz() throws Exception {
+		File source = tmp.newFolder("source");
+		// several blocks, with random data so they don't compress to nothing
+		byte[] data = new byte[ParallelCompressorOutputStream.BLOCK_SIZE * 2 + 12345];
+		new Random(42).nextBytes(data);
+		FileOutputStream f = new FileOutputStream(new File(source, "data"));
+		f.write(data);
+		f.close();
+		TestFiles.write(new File(source, ".DEP"), "dep");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ParallelCompressorOutputStream compressor = new ParallelCompressorOutputStream(out,
+				ArchiveStrategy.TAR_GZ_EXT, archiver, executor, 4);
+		archiver.createTar(source, compressor, new String[0]);
+		executor.shutdown();
+		Assert.assertEquals(out.size(), compressor.getBytesOut());
+		Assert.assertTrue(compressor.getBytesIn() > data.length);
+
+		File destination = tmp.newFolder("destination");
+		archiver.extract(new ByteArrayInputStream(out.toByteArray()), "test.tar.gz", destination);
+
+		Assert.assertEquals("dep", TestFiles.read(new File(destination, ".DEP")));
+		byte[] extracted = new byte[data.length];
+		InputStream in = new FileInputStream(new File(destination, "data"));
+		int off = 0;
+		int read;
+		while (off < extracted.length && (read = in.read(extracted, off, extracted.length - off)) != -1) {
+			off += read;
+		}
+		Assert.assertEquals(-1, in.read());
+		in.close();
+		Assert.assertTrue(Arrays.equals(data, extracted));
+	}
+
+	@Test
+	public void testHardLinkOutside() throws Exception {
+		File outside = tmp.newFolder("outside");
+		TestFiles.write(new File(outside, "secret"), "secret");
+		File destination = tmp.newFolder("destination");
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		TarArchiveOutputStream tar = new TarArchiveOutputStream(out);
+		TarArchiveEntry link = new TarArchiveEntry("copy", TarArchiveEntry.LF_LINK);
+		link.setLinkName("../" + outside.getName() + "/secret");
+		tar.putArchiveEntry(link);
+		tar.closeArchiveEntry();
+		tar.close();
+
+		try {
+			archiver.extract(new TarArchiveInputStream(new ByteArrayInputStream(out.toByteArray())),
+					destination);
+			Assert.fail("Extracted a hard link to a file outside of the destination");
+		} catch (SuperNannyError e) {
+			Assert.assertFalse(new File(destination, "copy").exists());
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.tuenti.supernanny.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.Assert;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.tuenti.supernanny.SuperNannyUtil;
+import com.tuenti.supernanny.TestFiles;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.strategy.TarArchiver;
+
+public class IncrementalUpdaterTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private Injector injector = Guice.createInjector(new AbstractModule() {
+		@Override
+		protected void configure() {
+			bind(Util.class).to(SuperNannyUtil.class);
+		}
+	});
+	private IncrementalUpdater updater = injector.getInstance(IncrementalUpdater.class);
+	private TarArchiver archiver = injector.getInstance(TarArchiver.class);
+
+	/**
+	 * Update the destination from a tar stream of the source folder.
+	 */
+	private void update(File source, File destination) throws IOException {
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		archiver.createTar(source, tar, new String[0]);
+		updater.update(new TarArchiveInputStream(new ByteArrayInputStream(tar.toByteArray())),
+				destination);
+	}
+
+	@Test
+	public void testUpdate() throws Exception {
+		File destination = new File(tmp.getRoot(), "lib");
+
+		File v1 = tmp.newFolder("v1");
+		TestFiles.write(new File(v1, "same"), "same");
+		TestFiles.write(new File(v1, "dir/changed"), "old");
+		TestFiles.write(new File(v1, "old/removed"), "removed");
+		TestFiles.write(new File(v1, "file-then-dir"), "file");
+		TestFiles.write(new File(v1, "modified"), "original");
+		TestFiles.write(new File(v1, "deleted"), "deleted");
+		update(v1, destination);
+		Assert.assertTrue(new File(destination, IncrementalUpdater.MANIFEST_FILE).exists());
+		File same = new File(destination, "same");
+		same.setLastModified(1000000000L);
+
+		// local changes, undone by the update
+		TestFiles.write(new File(destination, "modified"), "modifiex");
+		new File(destination, "deleted").delete();
+		// not in the manifest, left alone
+		TestFiles.write(new File(destination, "old/output"), "output");
+
+		File v2 = tmp.newFolder("v2");
+		TestFiles.write(new File(v2, "same"), "same");
+		TestFiles.write(new File(v2, "dir/changed"), "new");
+		TestFiles.write(new File(v2, "added"), "added");
+		TestFiles.write(new File(v2, "file-then-dir/file"), "dir");
+		TestFiles.write(new File(v2, "modified"), "original");
+		TestFiles.write(new File(v2, "deleted"), "deleted");
+		new File(v2, "empty").mkdirs();
+		update(v2, destination);
+
+		// not rewritten
+		Assert.assertEquals(1000000000L, same.lastModified());
+		Assert.assertEquals("new", TestFiles.read(new File(destination, "dir/changed")));
+		Assert.assertEquals("added", TestFiles.read(new File(destination, "added")));
+		Assert.assertEquals("dir", TestFiles.read(new File(destination, "file-then-dir/file")));
+		Assert.assertEquals("original", TestFiles.read(new File(destination, "modified")));
+		Assert.assertEquals("deleted", TestFiles.read(new File(destination, "deleted")));
+		Assert.assertTrue(new File(destination, "empty").isDirectory());
+		Assert.assertFalse(new File(destination, "old/removed").exists());
+		Assert.assertEquals("output", TestFiles.read(new File(destination, "old/output")));
+
+		// folders of the previous version are removed once empty
+		File v3 = tmp.newFolder("v3");
+		TestFiles.write(new File(v3, "same"), "same");
+		new File(destination, "old/output").delete();
+		update(v3, destination);
+		Assert.assertFalse(new File(destination, "old").exists());
+		Assert.assertFalse(new File(destination, "empty").exists());
+		Assert.assertFalse(new File(destination, "file-then-dir").exists());
+		Assert.assertEquals("same", TestFiles.read(same));
+	}
+
+	/**
+	 * Without manifest nothing is known of what's there, it's replaced.
+	 */
+	@Test
+	public void testUpdateWithoutManifest() throws Exception {
+		File destination = tmp.newFolder("lib");
+		TestFiles.write(new File(destination, "stale"), "stale");
+
+		File v1 = tmp.newFolder("v1");
+		TestFiles.write(new File(v1, "a"), "a");
+		update(v1, destination);
+		Assert.assertFalse(new File(destination, "stale").exists());
+		Assert.assertEquals("a", TestFiles.read(new File(destination, "a")));
+	}
+}
@@ -0,0 +1,54 @@
+package com.tuenti.supernanny.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class ReplayableInputStreamTest {
+	private byte[] content = new byte[100000];
+
+	public ReplayableInputStreamTest() {
+		new Random(42).nextBytes(content);
+	}
+
+	private byte[] read(InputStream in, int max) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int read;
+		while (out.size() < max
+				&& (read = in.read(buffer, 0, Math.min(buffer.length, max - out.size()))) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+		ReplayableInputStream in = new ReplayableInputStream(new ByteArrayInputStream(content),
+				content.length);
+		// a failed upload read part of it
+		read(in, 5000);
+		Assert.assertTrue(in.replay());
+		Assert.assertTrue(Arrays.equals(content, read(in, Integer.MAX_VALUE)));
+		// and a complete one can be replayed too
+		Assert.assertTrue(in.replay());
+		Assert.assertTrue(Arrays.equals(content, read(in, Integer.MAX_VALUE)));
+	}
+
+	@Test
+	public void testOverCapacity() throws IOException {
+		ReplayableInputStream in = new ReplayableInputStream(new ByteArrayInputStream(content),
+				1000);
+		read(in, 999);
+		Assert.assertTrue(in.replay());
+		read(in, 2000);
+		Assert.assertFalse(in.replay());
+	}
+}
@@ -0,0 +1,68 @@
+package repo;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.repo.index.BinaryIndex;
+import com.tuenti.supernanny.repo.index.IndexReader;
+import com.tuenti.supernanny.util.Versions;
+
+public class BinaryIndexTest {
+	/**
+	 * index1.bin is index1.txt written by create_index.py --binary.
+	 */
+	@Test
+	public void testSameAsText() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("./testData/index1.txt")));
+		List<ArchiveArtifact> artifacts = new IndexReader(bufferedReader).parse();
+		BinaryIndex index = BinaryIndex.open(new File("./testData/index1.bin"));
+		Assert.assertEquals(3, index.getNameCount());
+
+		Map<String, ArchiveArtifact> byFile = new HashMap<String, ArchiveArtifact>();
+		for (ArchiveArtifact a : artifacts) {
+			byFile.put(a.getFilename(), a);
+		}
+		int found = 0;
+		for (String name : new String[] { "libphonenumber", "supervisor-common", "fefw-fbi" }) {
+			for (ArchiveArtifact actual : index.getArtifacts(name)) {
+				ArchiveArtifact expected = byFile.get(actual.getFilename());
+				Assert.assertEquals(expected.getName(), actual.getName());
+				Assert.assertEquals(expected.getVersion(), actual.getVersion());
+				Assert.assertTrue(Arrays.equals(Versions.parse(expected.getVersion().getVersionString()),
+						actual.getVersion().getParsedVersion()));
+				Assert.assertEquals(expected.getMd5(), actual.getMd5());
+				Assert.assertEquals(expected.getSha256(), actual.getSha256());
+				Assert.assertEquals(expected.getRequirements(), actual.getRequirements());
+				for (int i = 0; i < expected.getRequirements().size(); i++) {
+					Requirement e = expected.getRequirements().get(i);
+					Requirement a = actual.getRequirements().get(i);
+					Assert.assertEquals(e.getType(), a.getType());
+					Assert.assertEquals(e.getRepoType(), a.getRepoType());
+					Assert.assertEquals(e.getRepo(), a.getRepo());
+				}
+				found++;
+			}
+		}
+		Assert.assertEquals(artifacts.size(), found);
+		Assert.assertTrue(index.getArtifacts("missing").isEmpty());
+		Assert.assertTrue(index.getArtifacts("supervisor").isEmpty());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNotBinary() throws IOException {
+		new BinaryIndex(ByteBuffer.wrap("Name: foo\nVersion: 1.0\nFile: foo-1.0.tar.xz\n".getBytes()));
+	}
+}
@@ -0,0 +1,149 @@
+package repo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.Assert;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Modules;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.index.IndexCache;
+import com.tuenti.supernanny.repo.index.IndexCache.CachedIndex;
+import com.tuenti.supernanny.repo.index.IndexReader;
+
+public class IndexCacheTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("./testData/index1.txt")));
+		List<ArchiveArtifact> artifacts = new IndexReader(bufferedReader).parse();
+
+		File cacheFile = new File(tmp.getRoot(), "index.cache");
+		IndexCache cache = new IndexCache();
+		cache.writeCache(cacheFile, new CachedIndex("\"abc\"", 1234L, "http://localhost/index.gz", artifacts, 42L));
+
+		CachedIndex read = cache.readCache(cacheFile);
+		Assert.assertEquals("\"abc\"", read.etag);
+		Assert.assertEquals(1234L, read.lastModified);
+		Assert.assertEquals("http://localhost/index.gz", read.source);
+		Assert.assertEquals(42L, read.sequence);
+		Assert.assertEquals(artifacts.size(), read.artifacts.size());
+		for (int i = 0; i < artifacts.size(); i++) {
+			ArchiveArtifact expected = artifacts.get(i);
+			ArchiveArtifact actual = read.artifacts.get(i);
+			Assert.assertEquals(expected.getName(), actual.getName());
+			Assert.assertEquals(expected.getVersion(), actual.getVersion());
+			Assert.assertEquals(expected.getFilename(), actual.getFilename());
+			Assert.assertEquals(expected.getMd5(), actual.getMd5());
+			Assert.assertEquals(expected.getSha256(), actual.getSha256());
+			Assert.assertEquals(expected.getRequirements(), actual.getRequirements());
+		}
+	}
+
+	/**
+	 * Whatever byte of the cache gets corrupted, reading it fails with an
+	 * IOException, which the callers take as a cache miss.
+	 */
+	@Test
+	public void testCorruptCache() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("./testData/index1.txt")));
+		List<ArchiveArtifact> artifacts = new IndexReader(bufferedReader).parse();
+		File cacheFile = new File(tmp.getRoot(), "index.cache");
+		IndexCache cache = new IndexCache();
+		cache.writeCache(cacheFile, new CachedIndex("\"abc\"", 1234L, "http://localhost/index.gz", artifacts, 42L));
+		byte[] data = readAll(cacheFile);
+
+		File corrupt = new File(tmp.getRoot(), "corrupt.cache");
+		for (int i = 0; i < data.length; i++) {
+			byte[] copy = data.clone();
+			copy[i] ^= 0xff;
+			FileOutputStream out = new FileOutputStream(corrupt);
+			out.write(copy);
+			out.close();
+			try {
+				cache.readCache(corrupt);
+			} catch (IOException e) {
+				// expected, unless the byte was in a string
+			}
+		}
+	}
+
+	private byte[] readAll(File f) throws IOException {
+		byte[] data = new byte[(int) f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/**
+	 * A truncated index must fail instead of caching the entries read until
+	 * the cut with the validators of the whole file.
+	 */
+	@Test
+	public void testTruncatedIndex() throws IOException {
+		StringBuilder index = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			index.append("Name: foo\nVersion: 1.").append(i).append("\nFile: foo-1.").append(i)
+					.append(".tar.xz\nMD5: ").append(i).append("\nDeps:\n\n");
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+		gzip.write(index.toString().getBytes("UTF-8"));
+		gzip.close();
+
+		File repo = tmp.newFolder("repo");
+		final File cacheFolder = tmp.newFolder("cache");
+		FileOutputStream out = new FileOutputStream(new File(repo, "index.gz"));
+		out.write(Arrays.copyOf(bytes.toByteArray(), bytes.size() / 2));
+		out.close();
+
+		final Util util = Mockito.mock(Util.class);
+		Mockito.when(util.getCacheFolder()).thenReturn(cacheFolder);
+		IndexCache cache = Guice.createInjector(
+				Modules.override(new FakeModule()).with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(Util.class).toInstance(util);
+					}
+				})).getInstance(IndexCache.class);
+		try {
+			cache.getIndex(repo.toURI().toString());
+			Assert.fail("Truncated index parsed");
+		} catch (IOException e) {
+			// expected
+		}
+		Assert.assertEquals(0, countFiles(cacheFolder));
+	}
+
+	private int countFiles(File dir) {
+		int count = 0;
+		for (File f : dir.listFiles()) {
+			count += f.isDirectory() ? countFiles(f) : 1;
+		}
+		return count;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -31,6 +32,7 @@ public class IndexTest {
 		Assert.assertEquals("libphonenumber", a.getName());
 		Assert.assertEquals(new Version("1.2.0"), a.getVersion());
 		Assert.assertEquals("libphonenumber-1.2.0.tar.bz2", a.getFilename());
+		Assert.assertNull(a.getSha256());
 
 		List<Requirement> expectedRequirements = new LinkedList<Requirement>();
 		expectedRequirements.add(new Requirement("tuenti-common", ReqType.LT, "7.8", RepositoryType.TARBZ2, "http://artifacts.tuenti.int/"));
@@ -41,6 +43,8 @@ public class IndexTest {
 		Assert.assertEquals("supervisor-common", a.getName());
 		Assert.assertEquals(new Version("0.33"), a.getVersion());
 		Assert.assertEquals("supervisor/supervisor-common-0.33.tar.bz2", a.getFilename());
+		Assert.assertEquals("456", a.getMd5());
+		Assert.assertEquals("9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08", a.getSha256());
 		Assert.assertEquals(new LinkedList<Requirement>(), a.getRequirements());
 
 		a = artifacts.get(2);
@@ -62,4 +66,31 @@ public class IndexTest {
 		Assert.assertEquals("supervisor-common-1.0.1.tar.bz2", a.getFilename());
 		Assert.assertEquals(new LinkedList<Requirement>(), a.getRequirements());
 	}
+
+	@Test
+	public void testDelta() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File("./testData/index1.txt")));
+		List<ArchiveArtifact> artifacts = new IndexReader(bufferedReader).parse();
+		bufferedReader = new BufferedReader(new FileReader(new File("./testData/delta1.txt")));
+		artifacts = new IndexReader(bufferedReader).applyDelta(artifacts);
+
+		Assert.assertEquals(4, artifacts.size());
+		// replaced in place
+		Assert.assertEquals("libphonenumber-1.2.0.tar.bz2", artifacts.get(0).getFilename());
+		Assert.assertEquals("fefw-fbi-2.1.tar.bz2", artifacts.get(1).getFilename());
+		Assert.assertEquals("789", artifacts.get(1).getMd5());
+		Assert.assertEquals(new LinkedList<Requirement>(), artifacts.get(1).getRequirements());
+		Assert.assertEquals("supervisor-common-1.0.1.tar.bz2", artifacts.get(2).getFilename());
+		// added at the end
+		ArchiveArtifact a = artifacts.get(3);
+		Assert.assertEquals("fefw-fbi-2.2.tar.bz2", a.getFilename());
+		Assert.assertEquals(new Version("2.2"), a.getVersion());
+		Assert.assertEquals(1, a.getRequirements().size());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBrokenDelta() throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new StringReader("Name: foo\nVersion: 1.0\n"));
+		new IndexReader(bufferedReader).applyDelta(new LinkedList<ArchiveArtifact>());
+	}
 }
@@ -0,0 +1,166 @@
+package repo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Assert;
+
+import org.apache.commons.codec.binary.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Modules;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.tuenti.supernanny.FakeModule;
+import com.tuenti.supernanny.SuperNannyUtil;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.cli.handlers.CliParser;
+import com.tuenti.supernanny.repo.ArchiveRepo;
+import com.tuenti.supernanny.repo.artifacts.Export;
+import com.tuenti.supernanny.strategy.ArchiveStrategy;
+
+/**
+ * Publishing to a stand-in WebDAV repo that adds what it receives to its
+ * index.
+ */
+public class PublishTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private HttpServer server;
+	private String url;
+	/** Uploaded archives by path. */
+	private Map<String, byte[]> uploads = new ConcurrentHashMap<String, byte[]>();
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					String path = exchange.getRequestURI().getPath();
+					String method = exchange.getRequestMethod();
+					if (method.equals("PUT")) {
+						uploads.put(path, readAll(exchange.getRequestBody()));
+						exchange.sendResponseHeaders(201, -1);
+					} else if (path.equals("/index")) {
+						send(exchange, getIndex().getBytes("UTF-8"));
+					} else if (uploads.containsKey(path)) {
+						send(exchange, uploads.get(path));
+					} else {
+						exchange.sendResponseHeaders(404, -1);
+					}
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private void send(HttpExchange exchange, byte[] body) throws IOException {
+		if (exchange.getRequestMethod().equals("HEAD")) {
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(body);
+	}
+
+	/**
+	 * Index of the uploaded lib-&lt;version&gt;.tar.gz archives.
+	 */
+	private String getIndex() {
+		StringBuilder index = new StringBuilder();
+		for (Map.Entry<String, byte[]> e : uploads.entrySet()) {
+			String file = e.getKey().substring(1);
+			String version = file.substring("lib-".length(), file.length()
+					- ArchiveStrategy.TAR_GZ_EXT.length());
+			index.append("Name: lib\nVersion: ").append(version).append("\nFile: ").append(file)
+					.append("\nMD5: ").append(md5(e.getValue())).append("\nDeps:\n\n");
+		}
+		return index.toString();
+	}
+
+	private String md5(byte[] data) {
+		try {
+			return new String(Hex.encodeHex(MessageDigest.getInstance("MD5").digest(data)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The external tar gives no compression figures, the published archive
+	 * must be verified anyway.
+	 */
+	@Test
+	public void testPublishExternalTar() throws IOException {
+		File folder = tmp.newFolder("lib");
+		FileWriter w = new FileWriter(new File(folder, "a.txt"));
+		w.write("a");
+		w.close();
+
+		final CliParser p = new CliParser();
+		p.externalTar = true;
+		final Util util = Mockito.spy(Guice.createInjector(
+				Modules.override(new FakeModule()).with(new AbstractModule() {
+					@Override
+					protected void configure() {
+						bind(CliParser.class).toInstance(p);
+					}
+				})).getInstance(SuperNannyUtil.class));
+		Mockito.doReturn(new String[] { "user", "password" }).when(util)
+				.getCredentialsFromProperties();
+		Mockito.doReturn(null).when(util).getCacheFolder();
+
+		ArchiveRepo repo = new ArchiveRepo(url, true, 10);
+		Guice.createInjector(Modules.override(new FakeModule()).with(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(CliParser.class).toInstance(p);
+				bind(Util.class).toInstance(util);
+			}
+		})).injectMembers(repo);
+		repo.publish(new Export(repo, "lib", folder), "1.0", "", "", ArchiveStrategy.TAR_GZ_EXT);
+
+		Assert.assertTrue(uploads.containsKey("/lib-1.0.tar.gz"));
+		// found in the index by the verification
+		Assert.assertTrue(repo.existsVersion("lib", "1.0"));
+	}
+}
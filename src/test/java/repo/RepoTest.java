@@ -10,6 +10,8 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import junit.framework.Assert;
 
@@ -21,6 +23,7 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Scopes;
+import com.google.inject.name.Names;
 import com.tuenti.supernanny.Util;
 import com.tuenti.supernanny.dependencies.RepositoryType;
 import com.tuenti.supernanny.repo.ArchiveRepo;
@@ -31,7 +34,11 @@ import com.tuenti.supernanny.repo.artifacts.ReqType;
 import com.tuenti.supernanny.repo.artifacts.Requirement;
 import com.tuenti.supernanny.repo.exceptions.ResolutionException;
 import com.tuenti.supernanny.repo.index.IndexReader;
+import com.tuenti.supernanny.resolution.BacktrackingResolver;
+import com.tuenti.supernanny.resolution.ConcurrentResolver;
 import com.tuenti.supernanny.resolution.EagerResolver;
+import com.tuenti.supernanny.resolution.LockFile;
+import com.tuenti.supernanny.resolution.ResolutionListener;
 import com.tuenti.supernanny.resolution.Resolver;
 import com.tuenti.supernanny.util.Version;
 
@@ -97,6 +104,8 @@ public class RepoTest {
 			protected void configure() {
 				bind(RepoProvider.class).in(Scopes.SINGLETON);
 				bind(Util.class).toInstance(util);
+				bind(ExecutorService.class).annotatedWith(Names.named("resolver")).toInstance(
+						Executors.newFixedThreadPool(4));
 			}
 		});
 	}
@@ -127,6 +136,148 @@ public class RepoTest {
 	}
 
 
+	@Test
+	public void testConcurrentResolution() throws Exception {
+		prepareRepo();
+
+		Resolver resolver = injector.getInstance(ConcurrentResolver.class);
+		List<Requirement> initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("befw", ReqType.EQ, "1.0.0", RepositoryType.TARBZ2,
+				"http://localhost"));
+		initialRequirements.add(new Requirement("flik", ReqType.SW, "1.*",
+				RepositoryType.TARBZ2, "http://localhost"));
+		Set<Artifact> artifacts = resolver.resolve(initialRequirements);
+
+		ArtifactData[] expected = { new ArtifactData("tuenti-common", "1.7.0"),
+				new ArtifactData("futi", "3.0"), new ArtifactData("tuenti-build", "9.0"),
+				new ArtifactData("befw", "1.0.0"), new ArtifactData("flik", "1.0"),
+				new ArtifactData("flak", "1.0"), new ArtifactData("flok", "1.0") };
+		expectArtifacts(expected, artifacts);
+
+		initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("conflicting", ReqType.EQ, "1.0",
+				RepositoryType.TARBZ2, "http://localhost"));
+		try {
+			resolver.resolve(initialRequirements);
+			Assert.fail();
+		} catch (ResolutionException e) {
+			Assert.assertTrue(e.getMessage().contains("Requirement conflict"));
+		}
+	}
+
+	@Test
+	public void testBacktracking() throws Exception {
+		prepareRepo("testData/index3.txt");
+
+		List<Requirement> initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("app", ReqType.EQ, "1.0", RepositoryType.TARBZ2,
+				"http://localhost"));
+		try {
+			injector.getInstance(EagerResolver.class).resolve(initialRequirements);
+			Assert.fail();
+		} catch (ResolutionException e) {
+			Assert.assertTrue(e.getMessage().contains("Requirement conflict"));
+		}
+
+		// lib 2.0 needs util 1.0, which needs an old base
+		Set<Artifact> artifacts = injector.getInstance(BacktrackingResolver.class).resolve(
+				initialRequirements);
+		expectArtifacts(new ArtifactData[] { new ArtifactData("app", "1.0"),
+				new ArtifactData("lib", "1.0"), new ArtifactData("util", "2.0"),
+				new ArtifactData("base", "2.0") }, artifacts);
+	}
+
+	@Test
+	public void testBacktrackingLikeEager() throws Exception {
+		prepareRepo();
+
+		Resolver resolver = injector.getInstance(BacktrackingResolver.class);
+		List<Requirement> initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("befw", ReqType.EQ, "1.0.0", RepositoryType.TARBZ2,
+				"http://localhost"));
+		initialRequirements.add(new Requirement("flik", ReqType.SW, "1.*",
+				RepositoryType.TARBZ2, "http://localhost"));
+		expectArtifacts(new ArtifactData[] { new ArtifactData("tuenti-common", "1.7.0"),
+				new ArtifactData("futi", "3.0"), new ArtifactData("tuenti-build", "9.0"),
+				new ArtifactData("befw", "1.0.0"), new ArtifactData("flik", "1.0"),
+				new ArtifactData("flak", "1.0"), new ArtifactData("flok", "1.0") },
+				resolver.resolve(initialRequirements));
+
+		initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("conflicting", ReqType.EQ, "1.0",
+				RepositoryType.TARBZ2, "http://localhost"));
+		try {
+			resolver.resolve(initialRequirements);
+			Assert.fail();
+		} catch (ResolutionException e) {
+			Assert.assertTrue(e.getMessage().contains("Requirement conflict"));
+		}
+
+		initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("something-weird", ReqType.EQ, "1.0",
+				RepositoryType.TARBZ2, "http://localhost"));
+		try {
+			resolver.resolve(initialRequirements);
+			Assert.fail();
+		} catch (ResolutionException e) {
+			String msg = e.getMessage();
+			Assert.assertTrue(msg.contains("No artifact found") && msg.contains("tuenti-build"));
+		}
+	}
+
+	@Test
+	public void testResolutionListener() throws Exception {
+		prepareRepo();
+
+		Resolver resolver = injector.getInstance(EagerResolver.class);
+		List<Requirement> initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("befw", ReqType.EQ, "1.0.0", RepositoryType.TARBZ2,
+				"http://localhost"));
+		final List<Artifact> notified = new ArrayList<Artifact>();
+		Set<Artifact> artifacts = resolver.resolve(initialRequirements, new ResolutionListener() {
+			@Override
+			public void artifactChosen(Artifact artifact) {
+				notified.add(artifact);
+			}
+		});
+
+		Assert.assertEquals("befw", notified.get(0).getName());
+		Assert.assertEquals(artifacts, new HashSet<Artifact>(notified));
+		Assert.assertEquals(artifacts.size(), notified.size());
+	}
+
+	@Test
+	public void testLockFile() throws Exception {
+		prepareRepo();
+
+		List<Requirement> initialRequirements = new ArrayList<Requirement>();
+		initialRequirements.add(new Requirement("befw", ReqType.EQ, "1.0.0", RepositoryType.TARBZ2,
+				"http://localhost"));
+		Set<Artifact> artifacts = injector.getInstance(EagerResolver.class).resolve(
+				initialRequirements);
+
+		LockFile lockFile = injector.getInstance(LockFile.class);
+		File file = File.createTempFile("supernanny", LockFile.SUFFIX);
+		try {
+			lockFile.write(file, artifacts);
+			List<Artifact> locked = lockFile.read(file);
+			Assert.assertEquals(artifacts.size(), locked.size());
+			for (Artifact artifact : locked) {
+				for (Artifact original : artifacts) {
+					if (original.getName().equals(artifact.getName())) {
+						Assert.assertEquals(original.toString(), artifact.toString());
+						Assert.assertEquals(((ArchiveArtifact) original).getMd5(),
+								((ArchiveArtifact) artifact).getMd5());
+						Assert.assertEquals(((ArchiveArtifact) original).getFilename(),
+								((ArchiveArtifact) artifact).getFilename());
+					}
+				}
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
 	@Test
 	public void testResolutionLibNotFound() throws Exception {
 		prepareRepo();
@@ -187,14 +338,17 @@ public class RepoTest {
 	}
 	
 	private void prepareRepo() throws FileNotFoundException, IOException {
+		prepareRepo("testData/index2.txt");
+	}
+
+	private void prepareRepo(String index) throws FileNotFoundException, IOException {
 		ArchiveRepo repo = new ArchiveRepo("http://localhost", false, 10) {
 			@Override
 			public RepositoryType getRepoType() {
 				return RepositoryType.TARBZ2;
 			}
 		};
-		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File(
-				"testData/index2.txt")));
+		BufferedReader bufferedReader = new BufferedReader(new FileReader(new File(index)));
 		IndexReader ir = new IndexReader(bufferedReader);
 		List<ArchiveArtifact> artifacts = ir.parse();
 		repo.setArtifacts(artifacts);
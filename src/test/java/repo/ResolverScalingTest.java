@@ -0,0 +1,124 @@
+package repo;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Scopes;
+import com.tuenti.supernanny.Util;
+import com.tuenti.supernanny.dependencies.RepositoryType;
+import com.tuenti.supernanny.repo.ArchiveRepo;
+import com.tuenti.supernanny.repo.RepoProvider;
+import com.tuenti.supernanny.repo.artifacts.ArchiveArtifact;
+import com.tuenti.supernanny.repo.artifacts.Artifact;
+import com.tuenti.supernanny.repo.artifacts.ReqType;
+import com.tuenti.supernanny.repo.artifacts.Requirement;
+import com.tuenti.supernanny.repo.index.IndexReader;
+import com.tuenti.supernanny.resolution.EagerResolver;
+
+/**
+ * Resolution work must grow linearly with the size of the dependency graph.
+ *
+ * The work is measured by the name lookups of the artifacts, instead of time,
+ * so the test doesn't depend on the speed of the host. Checking conflicts
+ * against every chosen artifact looks up a number of names quadratic in the
+ * size of the graph.
+ */
+public class ResolverScalingTest {
+	private static final int DEPS_PER_ARTIFACT = 3;
+
+	private final AtomicLong nameLookups = new AtomicLong();
+
+	private class CountingArtifact extends ArchiveArtifact {
+		public CountingArtifact(ArchiveArtifact a) {
+			super(a.getName(), a.getVersion(), a.getFilename(), a.getMd5(), a.getSha256(), null, a
+					.getRequirements());
+		}
+
+		@Override
+		public String getName() {
+			nameLookups.incrementAndGet();
+			return super.getName();
+		}
+	}
+
+	/**
+	 * Index like the ones in testData with two versions of each lib, lib-i
+	 * depending on the next few libs.
+	 */
+	private String makeIndex(int size) {
+		StringBuilder index = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			for (String version : new String[] { "1.0", "2.0" }) {
+				index.append("Name: lib-").append(i).append('\n');
+				index.append("Version: ").append(version).append('\n');
+				index.append("File: lib-").append(i).append('-').append(version).append(".tar.bz2\n");
+				index.append("MD5: 123\n");
+				index.append("Deps:\n");
+				for (int j = 1; j <= DEPS_PER_ARTIFACT && i + j < size; j++) {
+					index.append("  lib-").append(i + j).append(" TARBZ2 http://localhost >=2.0\n");
+				}
+				index.append('\n');
+			}
+		}
+		return index.toString();
+	}
+
+	private long countResolution(int size) throws Exception {
+		Injector injector = Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(RepoProvider.class).in(Scopes.SINGLETON);
+				bind(Util.class).toInstance(Mockito.mock(Util.class));
+			}
+		});
+		ArchiveRepo repo = new ArchiveRepo("http://localhost", false, 10) {
+			@Override
+			public RepositoryType getRepoType() {
+				return RepositoryType.TARBZ2;
+			}
+		};
+		List<ArchiveArtifact> artifacts = new ArrayList<ArchiveArtifact>();
+		for (ArchiveArtifact a : new IndexReader(new BufferedReader(new StringReader(
+				makeIndex(size)))).parse()) {
+			artifacts.add(new CountingArtifact(a));
+		}
+		repo.setArtifacts(artifacts);
+		injector.getInstance(RepoProvider.class).addRepo(RepositoryType.TARBZ2, "http://localhost",
+				repo);
+
+		List<Requirement> reqs = new ArrayList<Requirement>();
+		reqs.add(new Requirement("lib-0", ReqType.SW, "2.*", RepositoryType.TARBZ2,
+				"http://localhost"));
+		EagerResolver resolver = injector.getInstance(EagerResolver.class);
+
+		nameLookups.set(0);
+		Set<Artifact> resolved = resolver.resolve(reqs);
+		Assert.assertEquals(size, resolved.size());
+		return nameLookups.get();
+	}
+
+	@Test
+	public void testLinearScaling() throws Exception {
+		long base = countResolution(10000);
+		// lookups per artifact stay the same as the graph grows, quadratic
+		// resolution would double them each time
+		for (int size : new int[] { 20000, 40000 }) {
+			long lookups = countResolution(size);
+			Assert.assertTrue("Resolution doesn't scale linearly: " + base + " name lookups for "
+					+ 10000 + " artifacts vs " + lookups + " for " + size, lookups * 10000 < base
+					* size * 5 / 4);
+		}
+	}
+}